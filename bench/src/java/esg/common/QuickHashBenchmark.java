@@ -0,0 +1,134 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                             *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   QuickHash against the way it used to hash (one shared digest, the
+   hex string through BigInteger and String.format), for a short
+   string like a user's openid and a larger document like a
+   registration, plus the non-cryptographic FAST mode.  The threaded
+   variant shows what sharing one instance costs now that sum() no
+   longer needs callers to lock around it.
+
+**/
+package esg.common;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuickHashBenchmark {
+
+    private QuickHash sha1 = null;
+    private QuickHash fast = null;
+    private MessageDigest legacyDigest = null;
+    private String openid = null;
+    private String document = null;
+
+    @Setup
+    public void setup() throws Exception {
+        sha1 = new QuickHash("SHA1");
+        fast = new QuickHash(QuickHash.FAST);
+        legacyDigest = MessageDigest.getInstance("SHA1");
+        openid = "https://pcmdi.llnl.gov/esgf-idp/openid/benchmark";
+        StringBuilder sb = new StringBuilder(64*1024);
+        while(sb.length() < 64*1024) sb.append("<Node hostname=\"esgf-node.example.org\" shortName=\"example\" namespace=\"org.example\"/>\n");
+        document = sb.toString();
+    }
+
+    //What QuickHash#sum was (callers had to synchronize around it)
+    private synchronized String legacySum(String plaintext) throws Exception {
+        byte[] data = plaintext.getBytes("UTF-8");
+        legacyDigest.update(data,0,data.length);
+        return String.format("%1$032X",new BigInteger(1,legacyDigest.digest()));
+    }
+
+    @Benchmark
+    public String legacyOpenid() throws Exception { return legacySum(openid); }
+
+    @Benchmark
+    public String sha1Openid() { return sha1.sum(openid); }
+
+    @Benchmark
+    public String fastOpenid() { return fast.sum(openid); }
+
+    @Benchmark
+    public String legacyDocument() throws Exception { return legacySum(document); }
+
+    @Benchmark
+    public String sha1Document() { return sha1.sum(document); }
+
+    @Benchmark
+    public String fastDocument() { return fast.sum(document); }
+
+    @Benchmark
+    @Threads(4)
+    public String legacyOpenidThreaded() throws Exception { return legacySum(openid); }
+
+    @Benchmark
+    @Threads(4)
+    public String sha1OpenidThreaded() { return sha1.sum(openid); }
+}
@@ -0,0 +1,150 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description: Before/after timing of the metrics and notification
+   queries, against a real database: each query as it was, working
+   out the latest file versions from all of file_version (SUBQ), and
+   as it is, joining latest_file_version (schema migration 005).  Not a
+   JMH benchmark (a query is too slow, and needs a database), so it
+   is run on its own:
+
+      ant -f bench/build.xml sql-timing [-Dsql.iterations=5]
+
+   It connects with the node's esgf.properties, runs every query once
+   to warm up and then sql.iterations times, and prints the fastest,
+   median and slowest run of each in ms, with the number of rows.
+
+**/
+package esg.node.components.metrics;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.ResultSetHandler;
+
+import esg.common.db.DatabaseResource;
+import esg.common.util.ESGFProperties;
+
+public class MetricsQueryTiming {
+
+    //As the queries were before latest_file_version
+    private static final String SUBQ = "select fv.file_id, fv.size, fv.url from (select file_id, max(version) as mv from file_version group by file_id order by mv desc) as mver, file_version as fv where fv.file_id=mver.file_id and fv.version=mver.mv";
+
+    private static final String[][] QUERIES = {
+        { "MetricsExpDAO.query",
+          "select d.project, d.experiment, count(*), sum(lver.size) from ("+SUBQ+") as lver, file as f, dataset as d where lver.file_id=f.id and f.dataset_id=d.id group by project, experiment",
+          MetricsExpDAO.query },
+        { "MetricsExpDAO.download",
+          "select d.project, d.experiment, count(*), sum(size) from ("+SUBQ+") as lver, esgf_node_manager.access_logging as dl, file as f, dataset as d where dl.url=lver.url and lver.file_id=f.id and f.dataset_id=d.id group by project, experiment",
+          MetricsExpDAO.downloadQuery },
+        { "MetricsVarsDAO.query",
+          "select d.project, d.model, count(*), sum(lver.size) from ("+SUBQ+") as lver, file as f, dataset as d where lver.file_id=f.id and f.dataset_id=d.id group by project, model",
+          MetricsVarsDAO.query },
+        { "MetricsVarsDAO.download",
+          "select d.project, d.model, count(*), sum(size) from ("+SUBQ+") as lver, esgf_node_manager.access_logging as dl, file as f, dataset as d where dl.url=lver.url and lver.file_id=f.id and f.dataset_id=d.id group by project, model",
+          MetricsVarsDAO.downloadQuery },
+        { "MetricsUsersDAO.query",
+          "select dl.user_id, count(*), sum(size) from ("+SUBQ+") as lver, esgf_node_manager.access_logging as dl where lver.url=dl.url group by user_id",
+          MetricsUsersDAO.query },
+        { "NotificationDAO.notification",
+          "SELECT DISTINCT d.user_id, d.email, ds.name, d.url, fv.mod_time FROM dataset as ds, file as f, esgf_node_manager.access_logging as d, file_version as fv WHERE ds.id=f.dataset_id and fv.file_id=f.id and d.url=fv.url and fv.mod_time>d.date_fetched AND d.date_fetched > 0 ORDER BY d.user_id",
+          "SELECT DISTINCT d.user_id, d.email, ds.name, d.url, lver.mod_time FROM dataset as ds, esgf_node_manager.access_logging as d, esgf_node_manager.latest_file_version as lver WHERE ds.id=lver.dataset_id and d.url=lver.url and lver.mod_time>d.date_fetched AND d.date_fetched > 0 ORDER BY d.user_id" }
+    };
+
+    private static final ResultSetHandler<Integer> rowCounter = new ResultSetHandler<Integer>() {
+        public Integer handle(ResultSet rs) throws SQLException {
+            int rows = 0;
+            while(rs.next()) rows++;
+            return rows;
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = Math.max(1,Integer.getInteger("sql.iterations",5));
+        ESGFProperties props = new ESGFProperties();
+        DatabaseResource.init(props.getProperty("db.driver","org.postgresql.Driver")).setupDataSource(props);
+        QueryRunner runner = new QueryRunner(DatabaseResource.getInstance().getDataSource());
+        try{
+            System.out.println(String.format("%-30s %-7s %10s %10s %10s %8s","query","","min(ms)","median(ms)","max(ms)","rows"));
+            for(String[] query : QUERIES) {
+                time(runner,query[0],"before",query[1],iterations);
+                time(runner,query[0],"after",query[2],iterations);
+            }
+        }finally{
+            DatabaseResource.getInstance().shutdownResource();
+        }
+    }
+
+    private static void time(QueryRunner runner, String name, String which, String sql, int iterations) {
+        try{
+            int rows = runner.query(sql,rowCounter);
+            long[] millis = new long[iterations];
+            for(int i=0; i < iterations; i++) {
+                long start = System.nanoTime();
+                runner.query(sql,rowCounter);
+                millis[i] = (System.nanoTime()-start)/1000000L;
+            }
+            Arrays.sort(millis);
+            System.out.println(String.format("%-30s %-7s %10d %10d %10d %8d",name,which,millis[0],millis[iterations/2],millis[iterations-1],rows));
+        }catch(SQLException e) {
+            System.out.println(String.format("%-30s %-7s failed: %s",name,which,e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   The whole of AccessLoggingFilter.doFilter for one download, with the
+   database swapped for an in-memory DAO and the servlet behind the
+   filter swapped for a FilterChain that writes the file's worth of
+   bytes.  "kind" picks the path through the filter: a logged
+   download, an exempt url and an url the filter is not interested in.
+
+**/
+package esg.node.filters;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessLoggingFilterBenchmark {
+
+    @Param({"logged", "exempt", "uninteresting"})
+    public String kind;
+
+    @Param({"0", "8192"})
+    public int streamBufferSize;
+
+    @Param({"65536"})
+    public int fileSize;
+
+    //Records in memory what would have gone to the database
+    static final class InMemoryAccessLoggingDAO extends AccessLoggingDAO {
+        final AtomicInteger ids = new AtomicInteger(0);
+        volatile long egressBytes = 0;
+        public int nextID() { return ids.incrementAndGet(); }
+        public synchronized int logIngressInfo(String userID, String email, String url, String fileID, String remoteAddress,
+                                               String userAgent, String serviceName, long batchUpdateTime, long dateFetched) {
+            return ids.incrementAndGet();
+        }
+        public int logEgressInfo(int id, boolean success, long duration, long dataSize, long xferSize) {
+            egressBytes += xferSize;
+            return 1;
+        }
+    }
+
+    private File dataFile = null;
+    private AccessLoggingFilter filter = null;
+    private HttpServletRequest request = null;
+    private BenchStubs.NullOutputStream out = null;
+    private HttpServletResponse response = null;
+    private FilterChain chain = null;
+
+    @Setup
+    public void setup() throws Exception {
+        dataFile = File.createTempFile("bench",".nc");
+        FileOutputStream fos = new FileOutputStream(dataFile);
+        try{ fos.write(new byte[fileSize]); }finally{ fos.close(); }
+
+        filter = new AccessLoggingFilter();
+        filter.filterConfig = BenchStubs.filterConfig(new HashMap<String,String>());
+        filter.accessLoggingDAO = new InMemoryAccessLoggingDAO();
+        BenchStubs.setField(filter,"urlClassifier",
+                            new UrlClassifier(new String[] {".nc"}, new String[] {".xml"}, new String[] {"thredds/wms"}, "thredds/fileServer"));
+        Map<String,String> mounts = new HashMap<String,String>();
+        mounts.put("esg_dataroot",dataFile.getParent());
+        BenchStubs.setField(filter,"mpResolver",new MountedPathResolver(mounts));
+        BenchStubs.setField(filter,"fileSizeCache",new FileSizeCache(1000,60000L));
+        BenchStubs.setField(filter,"streamBufferSize",streamBufferSize);
+
+        String url = null;
+        if(kind.equals("exempt")) {
+            url = "http://localhost:8080/thredds/fileServer/esg_dataroot/catalog.xml";
+        }else if(kind.equals("uninteresting")) {
+            url = "http://localhost:8080/thredds/catalog/esg_dataroot/catalog.html";
+        }else {
+            url = "http://localhost:8080/thredds/fileServer/esg_dataroot/"+dataFile.getName();
+        }
+        Map<String,Object> attributes = new HashMap<String,Object>();
+        attributes.put(AccessLoggingFilter.AUTHORIZATION_REQUEST_ATTRIBUTE,Boolean.TRUE);
+        attributes.put("esg.openid","https://pcmdi.llnl.gov/esgf-idp/openid/benchmark");
+        attributes.put("userAgent","jmh");
+        request = BenchStubs.request(url,"127.0.0.1",attributes);
+        out = new BenchStubs.NullOutputStream();
+        response = BenchStubs.response(out);
+
+        final byte[] chunk = new byte[8192];
+        final int size = fileSize;
+        chain = new FilterChain() {
+                public void doFilter(ServletRequest req, ServletResponse resp) throws IOException, ServletException {
+                    javax.servlet.ServletOutputStream stream = resp.getOutputStream();
+                    for(int written = 0; written < size; written += chunk.length) {
+                        stream.write(chunk,0,Math.min(chunk.length,size-written));
+                    }
+                    stream.close();
+                }
+            };
+    }
+
+    @TearDown
+    public void tearDown() {
+        if(dataFile != null) dataFile.delete();
+    }
+
+    @Benchmark
+    public long doFilter() throws Exception {
+        filter.doFilter(request,response,chain);
+        return out.count;
+    }
+}
@@ -0,0 +1,142 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Bare bones stand-ins for the servlet container objects the
+   benchmarks drive the filters with.  Built as dynamic proxies so
+   that only the handful of methods the filters use need answering;
+   everything else returns null/0/false.
+
+**/
+package esg.node.filters;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+final class BenchStubs {
+
+    private BenchStubs() { }
+
+    //Counts and throws away what is written to it
+    static final class NullOutputStream extends ServletOutputStream {
+        long count = 0;
+        public void write(int b) throws IOException { count++; }
+        public void write(byte[] b, int off, int len) throws IOException { count += len; }
+        public boolean isReady() { return true; }
+        public void setWriteListener(WriteListener writeListener) { }
+    }
+
+    static HttpServletRequest request(final String url, final String remoteAddr, final Map<String,Object> attributes) {
+        return proxy(HttpServletRequest.class, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if(name.equals("getRequestURL")) return new StringBuffer(url);
+                    if(name.equals("getRemoteAddr")) return remoteAddr;
+                    if(name.equals("getAttribute")) return attributes.get(args[0]);
+                    return defaultValue(method.getReturnType());
+                }
+            });
+    }
+
+    static HttpServletResponse response(final ServletOutputStream out) {
+        return proxy(HttpServletResponse.class, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if(method.getName().equals("getOutputStream")) return out;
+                    return defaultValue(method.getReturnType());
+                }
+            });
+    }
+
+    static FilterConfig filterConfig(final Map<String,String> params) {
+        return proxy(FilterConfig.class, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if(name.equals("getInitParameter")) return params.get(args[0]);
+                    if(name.equals("getInitParameterNames")) return Collections.enumeration(params.keySet());
+                    if(name.equals("getFilterName")) return "bench";
+                    return defaultValue(method.getReturnType());
+                }
+            });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(BenchStubs.class.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if(!type.isPrimitive() || type == void.class) return null;
+        if(type == boolean.class) return Boolean.FALSE;
+        if(type == char.class) return Character.valueOf((char)0);
+        if(type == long.class) return Long.valueOf(0L);
+        if(type == float.class) return Float.valueOf(0f);
+        if(type == double.class) return Double.valueOf(0d);
+        if(type == byte.class) return Byte.valueOf((byte)0);
+        if(type == short.class) return Short.valueOf((short)0);
+        return Integer.valueOf(0);
+    }
+
+    static void setField(Object target, String name, Object value) throws Exception {
+        java.lang.reflect.Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target,value);
+    }
+}
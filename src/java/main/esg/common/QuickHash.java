@@ -60,7 +60,27 @@
 
    Needed to write a quick hash thingy for quick generation of
    'unique' keys etc.
-   
+
+   Safe to share between threads: each thread hashes with its own
+   digest (and scratch buffers), so sum() takes no lock.  What a
+   thread keeps is held as JDK types only (an Object[] in a plain
+   ThreadLocal), so a container's pooled threads don't pin the
+   webapp's class loader once it is undeployed.  The hex
+   string is built from a lookup table rather than through BigInteger
+   and String.format, but comes out exactly as it always has
+   (upper case, leading zeros dropped down to 32 digits), since these
+   sums are stored and compared across nodes.
+
+   Besides sum(String) there is a streaming form: update(...) as many
+   times as needed, then digest().  The updates and the digest have to
+   come from the same thread (the running state is per thread).
+
+   FAST selects a non-cryptographic hash (64 bits, 16 hex digits,
+   eight bytes at a time with murmur3's finalizer) for when all that
+   is needed is to notice a change; it is not collision resistant and
+   must not be used for anything that is compared with sums made by
+   other nodes (or stored, it may change).
+
 **/
 package esg.common;
 
@@ -68,33 +88,324 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.*;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.math.BigInteger;
 
 
 public class QuickHash {
-    
-    MessageDigest m = null;
-                                                
+
+    //Non-cryptographic mode
+    public static final String FAST = "FAST64";
+
+    private static final long FAST_SEED = 0x9E3779B97F4A7C15L;
+    private static final long FAST_C1   = 0x87C37B91114253D5L;
+    private static final long FAST_C2   = 0x4CF5AD432745937FL;
+    private static final int  MIN_DIGITS = 32;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    //Longer strings are converted with String#getBytes (faster than the char by char copy, but allocates)
+    private static final int SHORT_STRING = 256;
+
+    private final String algo;
+    private final boolean fast;
+    private final ThreadLocal<Object[]> slots = new ThreadLocal<Object[]>();
+
     public QuickHash(String algo) throws NoSuchAlgorithmException {
-        m = MessageDigest.getInstance(algo);
+        this.algo = algo;
+        this.fast = FAST.equalsIgnoreCase(algo);
+        if(!fast) MessageDigest.getInstance(algo); //fail now rather than on first use
     }
 
     public QuickHash() throws NoSuchAlgorithmException {
         this("SHA1");
     }
 
+    public String getAlgorithm() { return algo; }
+
     public String sum(String plaintext) {
-        byte[] data = null;
-        try {
-            data = plaintext.getBytes("UTF-8"); 
-        }catch(Throwable t) {t.printStackTrace();}
-        m.update(data,0,data.length);
-        BigInteger i = new BigInteger(1,m.digest());
-        return String.format("%1$032X", i);
-    }
-    
+        Object[] s = slots();
+        reset(s);
+        update(s,plaintext);
+        return finish(s);
+    }
+
+    //------------------------------------
+    //Streaming...
+    //------------------------------------
+
+    public QuickHash update(byte[] data) { return update(data,0,data.length); }
+
+    public QuickHash update(byte[] data, int offset, int length) {
+        update(slots(),data,offset,length);
+        return this;
+    }
+
+    //Consumes the buffer's remaining bytes
+    public QuickHash update(ByteBuffer data) {
+        update(slots(),data);
+        return this;
+    }
+
+    //As UTF-8
+    public QuickHash update(String text) {
+        update(slots(),text);
+        return this;
+    }
+
+    //Reads (as UTF-8) until the end of the reader, does not close it
+    public QuickHash update(Reader reader) throws IOException {
+        Object[] s = slots();
+        char[] chars = (char[])s[CHARS];
+        int n = 0;
+        while((n = reader.read(chars)) >= 0) {
+            update(s,chars,n,false);
+        }
+        update(s,chars,0,true);
+        return this;
+    }
+
+    //The sum of everything passed to update (on this thread) since the last digest
+    public String digest() { return finish(slots()); }
+
+    //Discards whatever was passed to update (on this thread)
+    public void reset() { reset(slots()); }
+
+    //------------------------------------
+    //Hex encoding...
+    //------------------------------------
+
+    //Every byte as two (upper case) hex digits
+    public static String hex(byte[] bytes) {
+        char[] out = new char[bytes.length*2];
+        hex(bytes,bytes.length,out);
+        return new String(out);
+    }
+
+    private static void hex(byte[] bytes, int length, char[] out) {
+        for(int i=0,j=0; i < length; i++) {
+            int b = bytes[i] & 0xFF;
+            out[j++] = HEX[b >>> 4];
+            out[j++] = HEX[b & 0x0F];
+        }
+    }
+
+    //What String.format("%1$032X", new BigInteger(1,bytes)) makes of
+    //the bytes: leading zeros dropped, then padded back up to 32
+    //digits.  The scratch has to hold at least 32 and length*2 chars.
+    static String legacyHex(byte[] bytes, int length, char[] scratch) {
+        int digits = length*2;
+        if(digits < MIN_DIGITS) {
+            int pad = MIN_DIGITS - digits;
+            for(int i=0; i < pad; i++) scratch[i] = '0';
+            for(int i=0,j=pad; i < length; i++) {
+                int b = bytes[i] & 0xFF;
+                scratch[j++] = HEX[b >>> 4];
+                scratch[j++] = HEX[b & 0x0F];
+            }
+            return new String(scratch,0,MIN_DIGITS);
+        }
+        hex(bytes,length,scratch);
+        int start = 0;
+        while(start < digits - MIN_DIGITS && scratch[start] == '0') start++;
+        return new String(scratch,start,digits-start);
+    }
+
+    //------------------------------------
+    //Per thread state...
+    //------------------------------------
+
+    //What a thread keeps, by slot
+    private static final int MD      = 0; //MessageDigest (null for FAST)
+    private static final int LONGS   = 1; //long[] of the FAST running state, by the indexes below
+    private static final int CHARS   = 2; //char[] read buffer
+    private static final int BYTES   = 3; //ByteBuffer (little endian) encoding and FAST word scratch
+    private static final int ENCODER = 4; //CharsetEncoder
+    private static final int PENDING = 5; //CharBuffer, chars of the reader left over from the last read (ex: half a surrogate pair)
+    private static final int HEXBUF  = 6; //char[] hex scratch
+    private static final int NUM_SLOTS = 7;
+
+    private static final int FAST_HASH  = 0;
+    private static final int WORD       = 1; //bytes of the FAST word being filled
+    private static final int WORD_BYTES = 2;
+    private static final int TOTAL      = 3;
+
+    private Object[] slots() {
+        Object[] s = slots.get();
+        if(s == null) {
+            s = new Object[NUM_SLOTS];
+            if(!fast) {
+                try{
+                    s[MD] = MessageDigest.getInstance(algo);
+                }catch(NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e); //checked in the constructor
+                }
+            }
+            s[LONGS] = new long[] { FAST_SEED, 0L, 0L, 0L };
+            s[CHARS] = new char[1024];
+            s[BYTES] = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+            s[ENCODER] = UTF8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            s[HEXBUF] = new char[128];
+            slots.set(s);
+        }
+        return s;
+    }
+
+    //The rest work on the calling thread's slots
+
+    private static void reset(Object[] s) {
+        MessageDigest md = (MessageDigest)s[MD];
+        if(md != null) md.reset();
+        long[] longs = (long[])s[LONGS];
+        longs[FAST_HASH] = FAST_SEED;
+        longs[WORD] = 0L;
+        longs[WORD_BYTES] = 0L;
+        longs[TOTAL] = 0L;
+        s[PENDING] = null;
+        ((CharsetEncoder)s[ENCODER]).reset();
+    }
+
+    private static void update(Object[] s, byte[] data, int offset, int length) {
+        MessageDigest md = (MessageDigest)s[MD];
+        if(md != null) { md.update(data,offset,length); return; }
+        long[] longs = (long[])s[LONGS];
+        int i = offset;
+        int end = offset+length;
+        while(longs[WORD_BYTES] != 0 && i < end) fastByte(longs,data[i++]);
+        if(end - i >= 8) {
+            //Read a word at a time through the (little endian) scratch buffer
+            ByteBuffer words = (ByteBuffer)s[BYTES];
+            byte[] scratch = words.array();
+            long h = longs[FAST_HASH];
+            int start = i;
+            if(data == scratch) {
+                for(; end - i >= 8; i += 8) h = fastMix(h,words.getLong(i));
+            }else {
+                while(end - i >= 8) {
+                    int n = Math.min(scratch.length,(end - i) & ~7);
+                    System.arraycopy(data,i,scratch,0,n);
+                    for(int j=0; j < n; j += 8) h = fastMix(h,words.getLong(j));
+                    i += n;
+                }
+            }
+            longs[FAST_HASH] = h;
+            longs[TOTAL] += (i - start);
+        }
+        while(i < end) fastByte(longs,data[i++]);
+    }
+
+    private static void update(Object[] s, ByteBuffer data) {
+        MessageDigest md = (MessageDigest)s[MD];
+        if(md != null) { md.update(data); return; }
+        if(data.hasArray()) {
+            update(s,data.array(),data.arrayOffset()+data.position(),data.remaining());
+            data.position(data.limit());
+            return;
+        }
+        long[] longs = (long[])s[LONGS];
+        while(data.hasRemaining()) fastByte(longs,data.get());
+    }
+
+    private static void fastByte(long[] longs, byte b) {
+        longs[WORD] |= (b & 0xFFL) << (longs[WORD_BYTES] << 3);
+        longs[TOTAL]++;
+        if(++longs[WORD_BYTES] == 8) {
+            longs[FAST_HASH] = fastMix(longs[FAST_HASH],longs[WORD]);
+            longs[WORD] = 0L;
+            longs[WORD_BYTES] = 0L;
+        }
+    }
+
+    private static long fastMix(long h, long w) { return Long.rotateLeft(h ^ (w * FAST_C1),31) * FAST_C2; }
+
+    private static long fastFinish(long[] longs) {
+        long h = (longs[WORD_BYTES] == 0) ? longs[FAST_HASH] : fastMix(longs[FAST_HASH],longs[WORD]);
+        h ^= longs[TOTAL];
+        //murmur3 fmix64
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static void update(Object[] s, String text) {
+        int length = text.length();
+        if(length > SHORT_STRING) {
+            byte[] data = text.getBytes(UTF8);
+            update(s,data,0,data.length);
+            return;
+        }
+        //ASCII straight into the scratch buffer, anything else through the encoder
+        byte[] out = ((ByteBuffer)s[BYTES]).array();
+        int n = 0;
+        for(int i=0; i < length; i++) {
+            char c = text.charAt(i);
+            if(c >= 0x80) {
+                update(s,out,0,n);
+                encode(s,CharBuffer.wrap(text,i,length),true);
+                return;
+            }
+            out[n++] = (byte)c;
+        }
+        update(s,out,0,n);
+    }
+
+    private static void update(Object[] s, char[] chars, int length, boolean endOfInput) {
+        CharBuffer in = CharBuffer.wrap(chars,0,length);
+        CharBuffer pending = (CharBuffer)s[PENDING];
+        if(pending != null && pending.hasRemaining()) {
+            CharBuffer joined = CharBuffer.allocate(pending.remaining()+length);
+            joined.put(pending).put(in).flip();
+            in = joined;
+        }
+        encode(s,in,endOfInput);
+        s[PENDING] = in.hasRemaining() ? CharBuffer.wrap(in.toString()) : null;
+    }
+
+    private static void encode(Object[] s, CharBuffer in, boolean endOfInput) {
+        ByteBuffer bytes = (ByteBuffer)s[BYTES];
+        CharsetEncoder encoder = (CharsetEncoder)s[ENCODER];
+        CoderResult result = null;
+        do{
+            bytes.clear();
+            result = encoder.encode(in,bytes,endOfInput);
+            update(s,bytes.array(),0,bytes.position());
+        }while(result.isOverflow());
+        if(endOfInput) {
+            bytes.clear();
+            encoder.flush(bytes);
+            update(s,bytes.array(),0,bytes.position());
+            encoder.reset();
+        }
+    }
+
+    private static String finish(Object[] s) {
+        MessageDigest md = (MessageDigest)s[MD];
+        String sum = null;
+        if(md != null) {
+            byte[] digest = md.digest();
+            char[] hex = (char[])s[HEXBUF];
+            sum = legacyHex(digest,digest.length,(digest.length*2 <= hex.length) ? hex : new char[Math.max(MIN_DIGITS,digest.length*2)]);
+        }else {
+            long h = fastFinish((long[])s[LONGS]);
+            char[] out = new char[16];
+            for(int i=15; i >= 0; i--) { out[i] = HEX[(int)(h & 0x0F)]; h >>>= 4; }
+            sum = new String(out);
+        }
+        reset(s);
+        return sum;
+    }
+
     public static void main(String[] args) {
         try { 
             String val = null;
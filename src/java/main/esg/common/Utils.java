@@ -67,6 +67,9 @@ import java.util.regex.Matcher;
 import java.net.Socket;
 import java.net.InetSocketAddress;
 
+import javax.management.ObjectName;
+import javax.management.MalformedObjectNameException;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.*;
@@ -88,13 +91,30 @@ public class Utils {
     private static final Pattern urlPattern = Pattern.compile(urlRegex,Pattern.CASE_INSENSITIVE);
     private static final String serviceUrlRegex = "http[s]?://([^:/]*)(:(?:[0-9]*))?/esgf-node-manager/node";
     private static final Pattern serviceUrlPattern = Pattern.compile(serviceUrlRegex,Pattern.CASE_INSENSITIVE);
-    private static QuickHash quickHash = null;
+    private static volatile QuickHash quickHash = null;
 
     //For version compare methods...
     private static final Pattern versionPattern = Pattern.compile("[v.-]([0-9]*)");
 
+    //Tells this webapp's copy of these classes from the other webapps'
+    //(each webapp in the container has a class loader of its own)
+    private static final String jmxContext = Integer.toHexString(System.identityHashCode(Utils.class.getClassLoader()));
+
     public static long nextSeq() { return msgCounter.getAndIncrement(); }
 
+    /**
+       The JMX name for one of this webapp's beans.  All the webapps in
+       the container share the platform MBeanServer (the node manager
+       and the filters in THREDDS each have their own DatabaseResource,
+       for example), so a "context" key is added to the name given to
+       keep them from taking each other's place.
+
+       @param name The bean's name, ex: "esg.common.db:type=DatabaseResource"
+    */
+    public static ObjectName jmxName(String name) throws MalformedObjectNameException {
+        return new ObjectName(name+",context="+jmxContext);
+    }
+
     public static String getNodeID() {
         String nodeID = null;
         if(null != nodeID) { return nodeID; }
@@ -58,13 +58,50 @@
 /**
    Description:
 
+   Singleton holding the pool of database connections the node
+   manager's components (and the filters) share.
+
+   The pool is set up by the first caller of setupDataSource and is
+   shared with every later one; each of them holds a reference that it
+   gives back with shutdownResource, and the pool is closed only when
+   the last one has been given back.  So one filter being torn down
+   does not pull the connections out from under the others.
+
+   The pool is tuned with these properties (defaults in parenthesis),
+   usually from esgf.properties:
+
+   db.pool.max.active             - max connections in use at once, -1 for no limit (20)
+   db.pool.max.idle               - max connections kept open while unused (8)
+   db.pool.min.idle               - connections kept open even when unused (0)
+   db.pool.max.wait               - max time (ms) to wait for a free connection, -1 forever (10000)
+   db.pool.validation.query       - query that checks a connection is still good (select 1)
+   db.pool.test.on.borrow         - validate every connection handed out (false)
+   db.pool.test.while.idle        - validate idle connections in the evictor (true)
+   db.pool.eviction.interval      - time (ms) between evictor runs, -1 for no evictor (60000)
+   db.pool.min.evictable.idle     - time (ms) a connection may be idle before it is evicted (300000)
+   db.pool.tests.per.eviction     - number of idle connections looked at per evictor run (3)
+   db.pool.statements.max         - prepared statements cached per connection, 0 for none (50)
+   db.pool.prepare.threshold      - executions of a statement before the driver makes it a
+                                    named server side statement, 0 never (driver default)
+
+   The pool's numbers, and those of the statements registered with
+   StatementRunner, are published over JMX as
+   "esg.common.db:type=DatabaseResource,context=..." (one per webapp
+   using it, see Utils.jmxName).
+
 **/
 package esg.common.db;
 
+import java.lang.management.ManagementFactory;
+import java.util.List;
 import java.util.Properties;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.sql.DataSource;
 
-import org.apache.commons.pool.ObjectPool;
+import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.commons.dbcp.ConnectionFactory;
 import org.apache.commons.dbcp.PoolingDataSource;
@@ -75,16 +112,24 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.*;
 
+import esg.common.Utils;
+
 //Singleton class for getting database DataSources
-public class DatabaseResource {
+public class DatabaseResource implements DatabaseResourceMXBean {
+
+    public static final String OBJECT_NAME = "esg.common.db:type=DatabaseResource";
 
     private static Log log = LogFactory.getLog(DatabaseResource.class);
     private static DatabaseResource instance = null;
-    private ObjectPool connectionPool = null;
+    private ObjectName registeredName = null;
+    private GenericObjectPool connectionPool = null;
     private PoolingDataSource dataSource = null;
     private String driverName = null;
+    private String connectURI = null;
+    private int maxStatements = 0;
+    private int references = 0;
 
-    public static DatabaseResource init(String driverName) {
+    public static synchronized DatabaseResource init(String driverName) {
         log.trace("Initializing... with Driver: ["+driverName+"]");
         if(instance == null) {
             instance = new DatabaseResource(driverName);
@@ -93,7 +138,7 @@ public class DatabaseResource {
         }
         return instance;
     }
-    public static DatabaseResource getInstance() { 
+    public static synchronized DatabaseResource getInstance() { 
         if(instance == null) log.warn("Instance is NULL!!! \"init\" must be called prior to calling this method!!");
         return instance; 
     }
@@ -110,9 +155,18 @@ public class DatabaseResource {
         }
     }
     
-    public DatabaseResource setupDataSource(Properties props) {
+    /**
+       Sets up the connection pool, or if it is already set up, takes
+       another reference to it (to be given back with shutdownResource).
+    */
+    public synchronized DatabaseResource setupDataSource(Properties props) {
         log.trace("Setting up data source... ");
         if(props == null) { log.error("Property object is ["+props+"]: Cannot setup up data source"); return this; }
+        if(dataSource != null) {
+            references++;
+            log.debug("Data source already set up, sharing it (references: "+references+")");
+            return this;
+        }
         //Ex: jdbc:postgresql://pcmdi3.llnl.gov:5432/esgcet
         String protocol = props.getProperty("db.protocol","jdbc:postgresql:");
         String host =     props.getProperty("db.host","localhost");
@@ -135,15 +189,62 @@ public class DatabaseResource {
             }
         }
 
-        String connectURI = protocol+"//"+host+":"+port+"/"+database;
+        connectURI = protocol+"//"+host+":"+port+"/"+database;
+        String prepareThreshold = props.getProperty("db.pool.prepare.threshold");
+        if(prepareThreshold != null) connectURI += "?prepareThreshold="+prepareThreshold.trim();
         log.info("Connection URI = "+connectURI);
+
         connectionPool = new GenericObjectPool(null);
+        connectionPool.setMaxActive(intProperty(props,"db.pool.max.active",20));
+        connectionPool.setMaxIdle(intProperty(props,"db.pool.max.idle",8));
+        connectionPool.setMinIdle(intProperty(props,"db.pool.min.idle",0));
+        connectionPool.setMaxWait(longProperty(props,"db.pool.max.wait",10000L));
+        connectionPool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+        connectionPool.setTestOnBorrow(Boolean.valueOf(props.getProperty("db.pool.test.on.borrow","false").trim()));
+        connectionPool.setTestWhileIdle(Boolean.valueOf(props.getProperty("db.pool.test.while.idle","true").trim()));
+        connectionPool.setTimeBetweenEvictionRunsMillis(longProperty(props,"db.pool.eviction.interval",60000L));
+        connectionPool.setMinEvictableIdleTimeMillis(longProperty(props,"db.pool.min.evictable.idle",300000L));
+        connectionPool.setNumTestsPerEvictionRun(intProperty(props,"db.pool.tests.per.eviction",3));
+
+        //Cache prepared statements per connection (the same handful of queries are issued over and over)
+        maxStatements = intProperty(props,"db.pool.statements.max",50);
+        KeyedObjectPoolFactory statementPoolFactory = null;
+        if(maxStatements > 0) {
+            statementPoolFactory = new GenericKeyedObjectPoolFactory(null,-1,GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL,0,1,maxStatements);
+        }
+        String validationQuery = props.getProperty("db.pool.validation.query","select 1");
+        if((validationQuery != null) && validationQuery.trim().isEmpty()) validationQuery = null;
+
         ConnectionFactory connectionFactory = new DriverManagerConnectionFactory(connectURI,user,password);
-        PoolableConnectionFactory poolableConnectionFactory = new PoolableConnectionFactory(connectionFactory,connectionPool,null,null,false,true);
+        PoolableConnectionFactory poolableConnectionFactory = new PoolableConnectionFactory(connectionFactory,connectionPool,statementPoolFactory,validationQuery,false,true);
         dataSource = new PoolingDataSource(connectionPool);
+        //Needed to reach driver specific APIs (ex: COPY in AccessLoggingCopyIngest)
+        dataSource.setAccessToUnderlyingConnectionAllowed(true);
+        references = 1;
+        registerMBean();
         return this;
     }
 
+    private static int intProperty(Properties props, String name, int defaultValue) {
+        String value = props.getProperty(name);
+        try{
+            return (value == null) ? defaultValue : Integer.parseInt(value.trim());
+        }catch(NumberFormatException e) {
+            log.warn("Bad value for "+name+": ["+value+"], using "+defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static long longProperty(Properties props, String name, long defaultValue) {
+        String value = props.getProperty(name);
+        try{
+            return (value == null) ? defaultValue : Long.parseLong(value.trim());
+        }catch(NumberFormatException e) {
+            log.warn("Bad value for "+name+": ["+value+"], using "+defaultValue);
+            return defaultValue;
+        }
+    }
+
     public String getDriverName() { return driverName; }
     
     public DataSource getDataSource() {
@@ -152,18 +253,81 @@ public class DatabaseResource {
     }
 
     public void showDriverStats() {
-        System.out.println(" NumActive: " + (connectionPool == null ? "X" : connectionPool.getNumActive()));
-        System.out.println(" NumIdle:   " + (connectionPool == null ? "X" : connectionPool.getNumIdle()));
+        log.info(" NumActive: " + (connectionPool == null ? "X" : connectionPool.getNumActive()));
+        log.info(" NumIdle:   " + (connectionPool == null ? "X" : connectionPool.getNumIdle()));
     }
 
-    public void shutdownResource() {
-        log.info("Shutting Down Database Resource! ("+driverName+")");
+    //------------------------------------
+    //DatabaseResourceMXBean
+    //------------------------------------
+
+    public String getConnectURI() { return connectURI; }
+    public int getNumActive() { return (connectionPool == null) ? 0 : connectionPool.getNumActive(); }
+    public int getNumIdle() { return (connectionPool == null) ? 0 : connectionPool.getNumIdle(); }
+    public int getMaxActive() { return (connectionPool == null) ? 0 : connectionPool.getMaxActive(); }
+    public int getMaxIdle() { return (connectionPool == null) ? 0 : connectionPool.getMaxIdle(); }
+    public int getMinIdle() { return (connectionPool == null) ? 0 : connectionPool.getMinIdle(); }
+    public long getMaxWait() { return (connectionPool == null) ? 0 : connectionPool.getMaxWait(); }
+    public int getMaxStatements() { return maxStatements; }
+    public synchronized int getReferences() { return references; }
+
+    public String[] getStatementStats() {
+        List<StatementRunner.Stats> stats = StatementRunner.getAllStats();
+        String[] ret = new String[stats.size()];
+        for(int i=0;i<ret.length;i++) ret[i] = stats.get(i).toString();
+        return ret;
+    }
+    public void resetStatementStats() { StatementRunner.resetAllStats(); }
+
+    private void registerMBean() {
         try{
-            connectionPool.close();
-        }catch(Exception ex) {
-            log.error("Problem with closing connection Pool!",ex);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = Utils.jmxName(OBJECT_NAME);
+            if(server.isRegistered(name)) {
+                log.warn("JMX name ["+name+"] is taken, database pool not registered");
+                return;
+            }
+            server.registerMBean(this,name);
+            registeredName = name;
+        }catch(Exception e) {
+            log.warn("Could not register database pool with JMX: "+e.getMessage());
+        }
+    }
+
+    private void unregisterMBean() {
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            //(only if it was us that registered it)
+            if(registeredName != null && server.isRegistered(registeredName)) server.unregisterMBean(registeredName);
+            registeredName = null;
+        }catch(Exception e) {
+            log.warn("Could not unregister database pool from JMX: "+e.getMessage());
+        }
+    }
+
+    /**
+       Gives back a reference taken by setupDataSource.  The pool is
+       closed (and the singleton dropped) with the last one.
+    */
+    public void shutdownResource() {
+        synchronized(DatabaseResource.class) {
+            synchronized(this) {
+                if(--references > 0) {
+                    log.info("Database Resource still in use ("+references+" references), not shutting down ("+driverName+")");
+                    return;
+                }
+                log.info("Shutting Down Database Resource! ("+driverName+")");
+                try{
+                    if(connectionPool != null) connectionPool.close();
+                }catch(Exception ex) {
+                    log.error("Problem with closing connection Pool!",ex);
+                }
+                unregisterMBean();
+                references = 0;
+                connectionPool = null;
+                dataSource = null;
+                if(instance == this) instance = null;
+            }
         }
-        dataSource = null;
-        instance = null;
     }
-}
\ No newline at end of file
+}
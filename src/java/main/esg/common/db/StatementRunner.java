@@ -0,0 +1,282 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                             *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   QueryRunner that keeps execution counts and times for the
+   statements registered with it.
+
+   The DAOs register their fixed queries (by name) when they are
+   initialized and keep calling query/update/batch with the same SQL
+   as before.  Because the connections handed out by DatabaseResource
+   pool their prepared statements (db.pool.statements.max), a
+   registered query is prepared once per connection and the same
+   PreparedStatement is reused from then on, which also lets the
+   driver switch it to a named server side statement (see
+   db.pool.prepare.threshold) so it is only planned once per
+   connection.
+
+   The numbers for all registered statements are kept together and
+   published through DatabaseResource's JMX bean.
+
+   A statement can also be given a fetch size (see setFetchSize) so
+   that large results are read a block of rows at a time; with
+   queryStreaming the handler then works through them as they arrive.
+
+**/
+package esg.common.db;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.ResultSetHandler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class StatementRunner extends QueryRunner {
+
+    private static final Log log = LogFactory.getLog(StatementRunner.class);
+
+    //Every registered statement, by name (shared by all the runners)
+    private static final ConcurrentMap<String,Stats> allStats = new ConcurrentHashMap<String,Stats>();
+
+    //This runner's registered statements, by SQL
+    private final ConcurrentMap<String,Stats> statsBySql = new ConcurrentHashMap<String,Stats>();
+
+    //Fetch sizes of the statements that have one, by SQL
+    private final ConcurrentMap<String,Integer> fetchSizes = new ConcurrentHashMap<String,Integer>();
+
+    public StatementRunner(DataSource dataSource) { super(dataSource); }
+
+    /**
+       Registers a statement so that its executions are counted and
+       timed.  Registering the same name again (ex: another instance of
+       the same DAO) adds to the same numbers.
+
+       @param name How the statement is reported (ex: "MetricsDAO.markTime")
+       @param sql The statement exactly as it is passed to query/update/batch
+    */
+    public Stats register(String name, String sql) {
+        Stats stats = new Stats(name,sql);
+        Stats existing = allStats.putIfAbsent(name,stats);
+        if(existing != null) stats = existing;
+        statsBySql.put(sql,stats);
+        log.trace("Registered statement ["+name+"]");
+        return stats;
+    }
+
+    /**
+       Has the driver read the results of a statement fetchSize rows at
+       a time rather than all of them at once.  The Postgres driver
+       only does so when autocommit is off, see queryStreaming.
+
+       @param sql The statement exactly as it is passed to query
+       @param fetchSize Rows per block, 0 (or less) for the driver's default
+    */
+    public void setFetchSize(String sql, int fetchSize) {
+        if(fetchSize > 0) fetchSizes.put(sql,fetchSize);
+        else fetchSizes.remove(sql);
+    }
+
+    protected PreparedStatement prepareStatement(Connection conn, String sql) throws SQLException {
+        PreparedStatement stmt = super.prepareStatement(conn,sql);
+        Integer fetchSize = fetchSizes.get(sql);
+        //(pooled statements are reused, so set it either way)
+        stmt.setFetchSize((fetchSize == null) ? 0 : fetchSize);
+        return stmt;
+    }
+
+    /**
+       Runs a query on a connection of its own with autocommit off
+       (committed as soon as it has been read), so that the fetch size
+       set for it is honored and the handler reads the rows through
+       the ResultSet as the driver brings them in, a block at a time,
+       instead of after they have all been held in memory.
+    */
+    public <T> T queryStreaming(String sql, ResultSetHandler<T> rsh, Object... params) throws SQLException {
+        Connection conn = prepareConnection();
+        boolean autoCommit = conn.getAutoCommit();
+        try{
+            if(autoCommit) conn.setAutoCommit(false);
+            T result = query(conn,sql,rsh,params);
+            conn.commit();
+            return result;
+        }catch(SQLException e) {
+            try{ conn.rollback(); }catch(SQLException ignore) {}
+            throw e;
+        }finally{
+            try{
+                if(autoCommit) conn.setAutoCommit(true);
+            }finally{
+                close(conn);
+            }
+        }
+    }
+
+    //NOTE: All the DataSource flavors of query, update and batch
+    //(and the other Connection ones) end up in these three.
+
+    public <T> T query(Connection conn, String sql, ResultSetHandler<T> rsh, Object... params) throws SQLException {
+        Stats stats = statsBySql.get(sql);
+        if(stats == null) return super.query(conn,sql,rsh,params);
+        long start = System.nanoTime();
+        boolean ok = false;
+        try{
+            T result = super.query(conn,sql,rsh,params);
+            ok = true;
+            return result;
+        }finally{
+            stats.record(System.nanoTime()-start,1,ok);
+        }
+    }
+
+    public int update(Connection conn, String sql, Object... params) throws SQLException {
+        Stats stats = statsBySql.get(sql);
+        if(stats == null) return super.update(conn,sql,params);
+        long start = System.nanoTime();
+        boolean ok = false;
+        try{
+            int result = super.update(conn,sql,params);
+            ok = true;
+            return result;
+        }finally{
+            stats.record(System.nanoTime()-start,1,ok);
+        }
+    }
+
+    public int[] batch(Connection conn, String sql, Object[][] params) throws SQLException {
+        Stats stats = statsBySql.get(sql);
+        if(stats == null) return super.batch(conn,sql,params);
+        long start = System.nanoTime();
+        boolean ok = false;
+        try{
+            int[] result = super.batch(conn,sql,params);
+            ok = true;
+            return result;
+        }finally{
+            stats.record(System.nanoTime()-start,(params == null) ? 0 : params.length,ok);
+        }
+    }
+
+    public static List<Stats> getAllStats() { return new ArrayList<Stats>(allStats.values()); }
+
+    public static void resetAllStats() {
+        for(Stats stats : allStats.values()) stats.reset();
+    }
+
+    //------------------------------------
+    //Per statement numbers...
+    //------------------------------------
+    public static final class Stats {
+        private final String name;
+        private final String sql;
+        private final AtomicLong executions = new AtomicLong(0);
+        private final AtomicLong rows = new AtomicLong(0);
+        private final AtomicLong errors = new AtomicLong(0);
+        private final AtomicLong totalNanos = new AtomicLong(0);
+        private final AtomicLong maxNanos = new AtomicLong(0);
+
+        Stats(String name, String sql) {
+            this.name = name;
+            this.sql = sql;
+        }
+
+        void record(long nanos, int numRows, boolean ok) {
+            executions.incrementAndGet();
+            rows.addAndGet(numRows);
+            if(!ok) errors.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while(nanos > max && !maxNanos.compareAndSet(max,nanos)) max = maxNanos.get();
+        }
+
+        void reset() {
+            executions.set(0);
+            rows.set(0);
+            errors.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+        }
+
+        public String getName() { return name; }
+        public String getSql() { return sql; }
+        public long getExecutions() { return executions.get(); }
+        //rows for batches (one per parameter set), otherwise the same as executions
+        public long getRows() { return rows.get(); }
+        public long getErrors() { return errors.get(); }
+        public long getTotalNanos() { return totalNanos.get(); }
+        public long getMaxNanos() { return maxNanos.get(); }
+
+        public String toString() {
+            long n = executions.get();
+            long total = totalNanos.get();
+            return name+": executions=["+n+"] rows=["+rows.get()+"] errors=["+errors.get()+"] total=["+(total/1000000L)+"ms] mean=["+((n == 0) ? 0 : (total/n)/1000L)+"us] max=["+(maxNanos.get()/1000L)+"us]";
+        }
+    }
+}
@@ -70,10 +70,10 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.*;
 
-import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
 
 import esg.common.db.DatabaseResource;
+import esg.common.db.StatementRunner;
 import esg.common.util.ESGFProperties;
 
 /**
@@ -84,7 +84,7 @@ import esg.common.util.ESGFProperties;
 */
 public class ESGAccessLogServiceImpl implements ESGAccessLogService {
     private static final Log log = LogFactory.getLog(ESGAccessLogService.class);
-    private QueryRunner queryRunner = null;
+    private StatementRunner queryRunner = null;
     private ResultSetHandler<List<String[]>> resultSetHandler = null;
     private int limit = 999;
     private static final String accessLogQuery = "SELECT id, user_id, url, file_id, remote_addr, user_agent, service_type, batch_update_time, date_fetched, success, duration FROM esgf_node_manager.access_logging WHERE date_fetched >= ? AND date_fetched < ? ORDER BY date_fetched ASC LIMIT ?";
@@ -116,7 +116,8 @@ public class ESGAccessLogServiceImpl implements ESGAccessLogService {
         log.error(ex);
     }
     
-	queryRunner = new QueryRunner(DatabaseResource.init(props.getProperty("db.driver","org.postgresql.Driver")).setupDataSource(props).getDataSource());
+	queryRunner = new StatementRunner(DatabaseResource.init(props.getProperty("db.driver","org.postgresql.Driver")).setupDataSource(props).getDataSource());
+	queryRunner.register("ESGAccessLogServiceImpl.accessLog",accessLogQuery);
 	
 	resultSetHandler = new ResultSetHandler<List<String[]>>() {
 	    public List<String[]> handle(ResultSet rs) throws SQLException {
@@ -61,13 +61,32 @@
    This class is a component implementation that is responsible for
    collecting and disseminating host and system wide information.
 
+   The metrics are read by a timer, every metrics.period seconds, all
+   the queries at once on their own connections, and published as an
+   immutable MetricsSnapshot that callers read without locking or
+   going to the database.  Only one refresh runs at a time.  Every
+   metrics.live.period seconds the live download counts are added
+   onto the download tables of the last one read and that is
+   published in its place, so reading the download statistics costs
+   callers no more than reading the snapshot.
+
 **/
 package esg.node.components.metrics;
 
 import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -81,18 +100,30 @@ public class ESGMetrics extends AbstractDataNodeComponent {
     
     private static Log log = LogFactory.getLog(ESGMetrics.class);
     private Properties props = null;
-    private boolean isBusy = false;
     private MetricsDAO metricsDAO = null;
     private MetricsExpDAO metricsExpDAO = null;
     private MetricsVarsDAO metricsVarsDAO = null;
     private MetricsUsersDAO metricsUsersDAO = null;
+    private MetricsRollupDAO metricsRollupDAO = null;
+    private long rebuildPeriodMillis = 0L;
+    private long lastRebuild = 0L;
+
+    //The metrics queries a refresh runs (in parallel)
+    private static final int NUM_QUERIES = 5;
 
-    //Local cache objects for results
-    private List<MetricsExpDAO.ExpInfo>    expInfos    = null;
-    private List<MetricsVarsDAO.VarInfo>   varInfos    = null;
-    private List<MetricsExpDAO.ExpInfo>    expInfosDL  = null; 
-    private List<MetricsVarsDAO.VarInfo>   varInfosDL  = null;
-    private List<MetricsUsersDAO.UserInfo> userInfosDL = null;
+    //What the last refresh read from the database
+    private volatile MetricsSnapshot database = MetricsSnapshot.EMPTY;
+    //What callers are served: the database snapshot with the live downloads
+    //added on, replaced as a whole by each refresh and each live period
+    private volatile MetricsSnapshot snapshot = MetricsSnapshot.EMPTY;
+    private final CountDownLatch firstRefresh = new CountDownLatch(1);
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private ExecutorService queryExecutor = null;
+    private Timer timer = null;
+
+    //Live counts from the access logging filter (null if metrics.live is false)
+    private LiveDownloadStats liveStats = null;
+    private long livePeriodMillis = 5000L;
 
     public ESGMetrics(String name) {
 	super(name);
@@ -106,53 +137,175 @@ public class ESGMetrics extends AbstractDataNodeComponent {
 	metricsExpDAO = new MetricsExpDAO(DatabaseResource.getInstance().getDataSource(),Utils.getNodeID(),props);
 	metricsVarsDAO = new MetricsVarsDAO(DatabaseResource.getInstance().getDataSource(),Utils.getNodeID(),props);
 	metricsUsersDAO = new MetricsUsersDAO(DatabaseResource.getInstance().getDataSource(),Utils.getNodeID(),props);
+	if(useRollups(props)) {
+	    metricsRollupDAO = new MetricsRollupDAO(DatabaseResource.getInstance().getDataSource(),Utils.getNodeID(),props);
+	    rebuildPeriodMillis = Long.parseLong(props.getProperty("metrics.rollup.rebuild.period","0"))*1000;
+	    lastRebuild = System.currentTimeMillis();
+	}
+	if(Boolean.valueOf(props.getProperty("metrics.live","true"))) {
+	    liveStats = new LiveDownloadStats();
+	    livePeriodMillis = Math.max(1L,Long.parseLong(props.getProperty("metrics.live.period","5")))*1000;
+	}
+
+	//One thread (so one pooled connection) per metrics query
+	queryExecutor = Executors.newFixedThreadPool(NUM_QUERIES, new ThreadFactory() {
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r,"ESGMetrics-query-"+threadNumber.getAndIncrement());
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
 	startMetricsCollection();
     }
 
-    //Note: The idea for the "open to the user" method calls is that
-    //they will lazily issue the initial query to be executed and then
-    //subsequently calls will get the cached values till the next time cycle.
+    public void stop() {
+	if(timer != null) timer.cancel();
+	if(queryExecutor != null) queryExecutor.shutdownNow();
+	super.stop();
+    }
+
+    //Note: Callers are served from the current snapshot, which the
+    //timer replaces every metrics period (and every live period); they
+    //never wait on the database, except for the very first calls if
+    //they come before the first refresh has been published.
+
+    /**
+       @return The current snapshot of all the metrics (with its
+       version and age), without going to the database
+    */
+    public MetricsSnapshot getSnapshot() { return current(); }
 
     //Methods for callers to use to get basic statistics...
-    public List<MetricsExpDAO.ExpInfo>   getExperimentStats() { 
-	return (expInfos == null) ? expInfos = metricsExpDAO.getMetricsInfo() : expInfos;
-    }
-    public List<MetricsVarsDAO.VarInfo> getVariableStats() { 
-	return (varInfos == null) ? varInfos = metricsVarsDAO.getMetricsInfo() : varInfos;	
-    }
+    public MetricsTable getExperimentStats() { return current().getExperiments(); }
+    public MetricsTable getVariableStats() { return current().getVariables(); }
 
     //Methods for callers to use to get download statistics...
-    public List<MetricsExpDAO.ExpInfo>   getDownloadExperimentStats() { 
-	return (expInfosDL == null) ? expInfosDL = metricsExpDAO.getDownloadMetricsInfo() : expInfosDL;
-    }
-    public List<MetricsVarsDAO.VarInfo> getDownloadVariableStats() { 
-	return (varInfosDL == null) ? varInfosDL = metricsVarsDAO.getDownloadMetricsInfo() : varInfosDL;
-    }
-    public List<MetricsUsersDAO.UserInfo> getDownloadUserStats() {
-	return (userInfosDL == null) ? userInfosDL = metricsUsersDAO.getDownloadMetricsInfo() : userInfosDL;
+    //(with the downloads since the database was read added from the live counts, when there are any)
+    public MetricsTable getDownloadExperimentStats() { return current().getDownloadExperiments(); }
+    public MetricsTable getDownloadVariableStats() { return current().getDownloadVariables(); }
+    public MetricsTable getDownloadUserStats() { return current().getDownloadUsers(); }
+
+    private MetricsSnapshot current() {
+	MetricsSnapshot s = snapshot;
+	if(s.getVersion() == 0L) {
+	    //Run the first refresh, or wait for the one already running
+	    refresh();
+	    try{
+		firstRefresh.await();
+	    }catch(InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	    s = snapshot;
+	}
+	return s;
     }
 
-    //Note: This is where the cache is replenished based on the cycle
-    //of the timer not based on calling environment calls.  Except in
-    //the initial case.  We only want to replenish the cache of
-    //objects that have had interest shown in them... i.e. objects
-    //that have already been requested at least once.
+    /**
+       Reads all the metrics again, the queries in parallel, and
+       publishes them as a new snapshot.  Only one refresh runs at a
+       time: if one is already running this returns straight away
+       (callers of the getters that come before the first snapshot is
+       published wait for it).  A list
+       that could not be read is carried over from the previous
+       snapshot.
+
+       @return true if everything was read
+    */
+    public boolean refresh() {
+	if(!refreshing.compareAndSet(false,true)) {
+	    log.debug("metrics refresh already running, not starting another");
+	    return false;
+	}
+	try{
+	    log.trace("metrics' refresh() called....");
+	    boolean ret = true;
 
-    //replenish cache objects...
-    private synchronized boolean fetchNodeStats() {
-	log.trace("metrics' fetchNodeStats() called....");
-	boolean ret = true;
+	    //Bring the download rollups up to date (every period, whether
+	    //or not anyone has asked yet, so each run only has one period's
+	    //worth of new access_logging rows to count)
+	    if(metricsRollupDAO != null) {
+		if(rebuildPeriodMillis > 0 && (System.currentTimeMillis() - lastRebuild) >= rebuildPeriodMillis) {
+		    if(metricsRollupDAO.rebuild()) lastRebuild = System.currentTimeMillis();
+		}
+		if(metricsRollupDAO.advance() < 0) ret = false;
+	    }
 
-	//General statistics...
-	if(expInfos  != null) expInfos  = metricsExpDAO.getMetricsInfo();
-	if(varInfos  != null) varInfos  = metricsVarsDAO.getMetricsInfo();
+	    //Where the live counts stand as the download statistics are
+	    //read (downloads the database and the live counts see at
+	    //different times may be off by one period's worth, until the
+	    //next period)...
+	    Map<String,long[]> expLiveBase  = liveBaseline(LiveDownloadStats.EXPERIMENTS);
+	    Map<String,long[]> varLiveBase  = liveBaseline(LiveDownloadStats.MODELS);
+	    Map<String,long[]> userLiveBase = liveBaseline(LiveDownloadStats.USERS);
 
-	//Download statistics...
-	if(expInfosDL  != null)	expInfosDL  = metricsExpDAO.getDownloadMetricsInfo();
-	if(varInfosDL  != null)	varInfosDL  = metricsVarsDAO.getDownloadMetricsInfo();
-	if(userInfosDL != null)	userInfosDL = metricsUsersDAO.getDownloadMetricsInfo();
+	    Future<MetricsTable> expFuture = queryExecutor.submit(new Callable<MetricsTable>() {
+		    public MetricsTable call() { return metricsExpDAO.getMetricsInfo(); }
+		});
+	    Future<MetricsTable> varFuture = queryExecutor.submit(new Callable<MetricsTable>() {
+		    public MetricsTable call() { return metricsVarsDAO.getMetricsInfo(); }
+		});
+	    Future<MetricsTable> expDLFuture = queryExecutor.submit(new Callable<MetricsTable>() {
+		    public MetricsTable call() { return metricsExpDAO.getDownloadMetricsInfo(); }
+		});
+	    Future<MetricsTable> varDLFuture = queryExecutor.submit(new Callable<MetricsTable>() {
+		    public MetricsTable call() { return metricsVarsDAO.getDownloadMetricsInfo(); }
+		});
+	    Future<MetricsTable> userDLFuture = queryExecutor.submit(new Callable<MetricsTable>() {
+		    public MetricsTable call() { return metricsUsersDAO.getDownloadMetricsInfo(); }
+		});
 
-	return ret;
+	    MetricsTable expInfos    = result(expFuture);
+	    MetricsTable varInfos    = result(varFuture);
+	    MetricsTable expInfosDL  = result(expDLFuture);
+	    MetricsTable varInfosDL  = result(varDLFuture);
+	    MetricsTable userInfosDL = result(userDLFuture);
+	    if(expInfos == null || varInfos == null || expInfosDL == null || varInfosDL == null || userInfosDL == null) ret = false;
+
+	    MetricsSnapshot previous = database;
+	    MetricsSnapshot fresh = new MetricsSnapshot(previous.getVersion()+1,System.currentTimeMillis(),
+					   (expInfos    != null) ? expInfos    : previous.getExperiments(),
+					   (varInfos    != null) ? varInfos    : previous.getVariables(),
+					   (expInfosDL  != null) ? expInfosDL  : previous.getDownloadExperiments(),
+					   (varInfosDL  != null) ? varInfosDL  : previous.getDownloadVariables(),
+					   (userInfosDL != null) ? userInfosDL : previous.getDownloadUsers(),
+					   (expInfosDL  != null) ? expLiveBase  : previous.expLiveBase,
+					   (varInfosDL  != null) ? varLiveBase  : previous.varLiveBase,
+					   (userInfosDL != null) ? userLiveBase : previous.userLiveBase);
+	    database = fresh;
+	    publish(fresh);
+	    log.trace("Published "+fresh);
+	    return ret;
+	}finally{
+	    refreshing.set(false);
+	    firstRefresh.countDown();
+	}
+    }
+
+    //Serves the snapshot read from the database with the live
+    //downloads since then added on (unless a newer one has been read)
+    private synchronized void publish(MetricsSnapshot db) {
+	if(db != database) return;
+	if(liveStats == null) {
+	    snapshot = db;
+	    return;
+	}
+	snapshot = db.withLive(withLive(db.getDownloadExperiments(),LiveDownloadStats.EXPERIMENTS,db.expLiveBase),
+			       withLive(db.getDownloadVariables(),LiveDownloadStats.MODELS,db.varLiveBase),
+			       withLive(db.getDownloadUsers(),LiveDownloadStats.USERS,db.userLiveBase),
+			       System.currentTimeMillis());
+    }
+
+    //The query's result, null if it failed
+    private MetricsTable result(Future<MetricsTable> future) {
+	try{
+	    return future.get();
+	}catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}catch(ExecutionException e) {
+	    log.error(e.getCause());
+	}
+	return null;
     }
     
     private void startMetricsCollection() {
@@ -162,34 +315,70 @@ public class ESGMetrics extends AbstractDataNodeComponent {
 	log.trace("metrics delay: "+delay+" sec");
 	log.trace("metrics period: "+period+" sec");
 	
-	Timer timer = new Timer();
+	timer = new Timer("ESGMetrics",true);
 	timer.schedule(new TimerTask() {
 		public final void run() {
-		    //log.trace("Checking for new datanode information... [busy? "+ESGMetrics.this.isBusy+"]");
-		    if(!ESGMetrics.this.isBusy) {
-			ESGMetrics.this.isBusy = true;
-			if(fetchNodeStats()) {
-			    metricsDAO.markLastCompletionTime();
-			}
-			ESGMetrics.this.isBusy = false;
+		    if(refresh()) {
+			metricsDAO.markLastCompletionTime();
 		    }
 		}
 	    },delay*1000,period*1000);
+	if(liveStats != null) {
+	    log.trace("metrics live period: "+(livePeriodMillis/1000)+" sec");
+	    timer.schedule(new TimerTask() {
+		    public final void run() {
+			MetricsSnapshot db = database;
+			if(db.getVersion() > 0L) publish(db);
+		    }
+		},delay*1000+livePeriodMillis,livePeriodMillis);
+	}
+    }
+
+    //------------------------------------
+    //Live download counts...
+    //------------------------------------
+
+    private Map<String,long[]> liveBaseline(String attribute) {
+	return (liveStats == null) ? null : liveStats.readBaseline(attribute);
+    }
+
+    //The table with the live downloads since the baseline added on
+    //(for experiments and models only onto the keys the database has,
+    //the filter's may be spelled differently, see LiveDownloadStats)
+    private MetricsTable withLive(MetricsTable table, String attribute, Map<String,long[]> base) {
+	Map<String,long[]> now = (liveStats == null || base == null) ? null : liveStats.read(attribute);
+	if(now == null) return table;
+	Map<String,long[]> added = new HashMap<String,long[]>();
+	for(Map.Entry<String,long[]> entry : now.entrySet()) {
+	    long[] delta = LiveDownloadStats.delta(entry.getValue(),base.get(entry.getKey()));
+	    if(delta[0] != 0) added.put(entry.getKey(),delta);
+	}
+	return table.plus(added,LiveDownloadStats.USERS.equals(attribute));
     }
 
-    //TODO:
-    //Put in code that will eventually timeout the cache objects and free the memory up via GC.
+    //Download statistics come from the rollup tables unless
+    //metrics.rollup is set to false (then from the full queries)
+    static boolean useRollups(Properties props) {
+	return (props == null) || Boolean.valueOf(props.getProperty("metrics.rollup","true"));
+    }
+
+    //How many rows at a time the metrics queries read (metrics.fetch.size)
+    static int fetchSize(Properties props) {
+	return (props == null) ? 1000 : Integer.parseInt(props.getProperty("metrics.fetch.size","1000"));
+    }
 
     public boolean handleESGQueuedEvent(ESGEvent event) {
 	log.trace("handling enqueued event ["+getName()+"]:["+this.getClass().getName()+"]: Got A QueuedEvent!!!!: "+event);
 	//TODO
 	//Fill this event with data from calling:
+	//(all from the same snapshot)
+	MetricsSnapshot s = current();
 	StringBuilder sb = new StringBuilder();
-	sb.append(getExperimentStats().toString()+"\n");
-	sb.append(getVariableStats().toString()+"\n");
-	sb.append(getDownloadExperimentStats().toString()+"\n");
-	sb.append(getDownloadVariableStats().toString()+"\n");
-	sb.append(getDownloadUserStats().toString()+"\n");
+	sb.append(s.getExperiments().toString()+"\n");
+	sb.append(s.getVariables().toString()+"\n");
+	sb.append(s.getDownloadExperiments().toString()+"\n");
+	sb.append(s.getDownloadVariables().toString()+"\n");
+	sb.append(s.getDownloadUsers().toString()+"\n");
 	
 	event.setData(sb.toString());
 	
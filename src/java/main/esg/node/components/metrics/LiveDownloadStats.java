@@ -0,0 +1,172 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description: Reads the live download counts the access logging
+   filter keeps in memory (esg.node.filters.DownloadAggregator) over
+   JMX, when the filter runs in the same JVM as the node manager (the
+   usual single Tomcat data node).  Each webapp with the filter has
+   counts of its own, these are added up.  Only JMX open types cross
+   over, so nothing of the filters' classes is needed here.
+
+   ESGMetrics adds the change in these counts since the last time it
+   read the database onto what it read, so the download statistics
+   move between metrics periods without any queries; the database
+   stays the record of the history, the live counts only cover the
+   gap since the last period.  (The filter takes the project,
+   experiment and model from the download url, the database from the
+   dataset, so the live experiment and model counts are only added to
+   keys the database already has; a download whose url does not give
+   the database's key shows up with the next period.)
+
+**/
+package esg.node.components.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class LiveDownloadStats {
+
+    private static final Log log = LogFactory.getLog(LiveDownloadStats.class);
+
+    static final String EXPERIMENTS = "ExperimentCounts";
+    static final String MODELS      = "ModelCounts";
+    static final String USERS       = "UserCounts";
+
+    private final MBeanServer server;
+    private final ObjectName pattern;
+
+    public LiveDownloadStats() {
+	this.server = ManagementFactory.getPlatformMBeanServer();
+	ObjectName objectName = null;
+	try{
+	    //(one per webapp, told apart by a context key)
+	    objectName = new ObjectName("esg.node.filters:type=DownloadAggregator,*");
+	}catch(Exception e) {
+	    log.error(e);
+	}
+	this.pattern = objectName;
+    }
+
+    public boolean isAvailable() { return !names().isEmpty(); }
+
+    private Set<ObjectName> names() {
+	if(pattern == null) return Collections.<ObjectName>emptySet();
+	return server.queryNames(pattern,null);
+    }
+
+    /**
+       @param attribute One of EXPERIMENTS, MODELS or USERS
+       @return key -> {downloads, bytes} where the key is
+       key(project,name), added up over all the webapps with the
+       filter, or null if no filter's counts are available
+    */
+    Map<String,long[]> read(String attribute) {
+	Set<ObjectName> names = names();
+	if(names.isEmpty()) return null;
+	try{
+	    Map<String,long[]> values = new HashMap<String,long[]>();
+	    for(ObjectName name : names) {
+		CompositeData[] counts = (CompositeData[])server.getAttribute(name,attribute);
+		for(CompositeData count : counts) {
+		    String key = key((String)count.get("project"),(String)count.get("name"));
+		    long downloads = (Long)count.get("downloads");
+		    long bytes = (Long)count.get("bytes");
+		    long[] value = values.get(key);
+		    if(value == null) {
+			values.put(key,new long[] { downloads, bytes });
+		    }else{
+			value[0] += downloads;
+			value[1] += bytes;
+		    }
+		}
+	    }
+	    return values;
+	}catch(Exception e) {
+	    log.warn("Could not read live download counts ["+attribute+"]: "+e.getMessage());
+	    return null;
+	}
+    }
+
+    //Empty map rather than null, for a baseline
+    Map<String,long[]> readBaseline(String attribute) {
+	Map<String,long[]> values = read(attribute);
+	return (values == null) ? Collections.<String,long[]>emptyMap() : values;
+    }
+
+    static String key(String project, String name) {
+	return (project == null || project.isEmpty()) ? name : project+"\t"+name;
+    }
+
+    //The {downloads, bytes} added since the baseline (the counts start over if the filter is restarted)
+    static long[] delta(long[] now, long[] baseline) {
+	if(baseline == null || now[0] < baseline[0]) return now;
+	return new long[] { now[0]-baseline[0], now[1]-baseline[1] };
+    }
+
+}
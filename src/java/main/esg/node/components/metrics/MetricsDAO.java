@@ -77,7 +77,6 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import javax.sql.DataSource;
 
-import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
 
 import org.apache.commons.logging.Log;
@@ -86,6 +85,7 @@ import org.apache.commons.logging.impl.*;
 
 import esg.common.Utils;
 import esg.common.ESGInvalidObjectStateException;
+import esg.common.db.StatementRunner;
 
 
 public class MetricsDAO implements Serializable {
@@ -93,14 +93,15 @@ public class MetricsDAO implements Serializable {
     private static final String markTimeQuery      = "UPDATE esgf_node_manager.metrics_run_log SET last_run_time = ? WHERE id = ?";
     private static final String regCheckEntryQuery = "SELECT COUNT(*) FROM esgf_node_manager.metrics_run_log WHERE id = ?";
     private static final String regAddEntryQuery   = "INSERT INTO esgf_node_manager.metrics_run_log (id, last_run_time) VALUES ( ? , ? )";
-    static final String SUBQ = "select fv.file_id, fv.size, fv.url from (select file_id, max(version) as mv from file_version group by file_id order by mv desc) as mver, file_version as fv where fv.file_id=mver.file_id and fv.version=mver.mv";
+    //The latest version of each file: file_id, version, size, url, mod_time, dataset_id (kept up to date by a trigger on file_version)
+    static final String LATEST = "esgf_node_manager.latest_file_version";
 
     
     private static final Log log = LogFactory.getLog(MetricsDAO.class);
 
     private Properties props = null;
     private DataSource dataSource = null;
-    private QueryRunner queryRunner = null;
+    private StatementRunner queryRunner = null;
     private String nodeID = null;
 
     public MetricsDAO(DataSource dataSource,String nodeID, Properties props) {
@@ -138,7 +139,10 @@ public class MetricsDAO implements Serializable {
     public void setDataSource(DataSource dataSource) {
 	log.trace("Setting Up Metrics DAO's Pooled Data Source");
 	this.dataSource = dataSource;
-	this.queryRunner = new QueryRunner(dataSource);
+	this.queryRunner = new StatementRunner(dataSource);
+	queryRunner.register("MetricsDAO.markTime",markTimeQuery);
+	queryRunner.register("MetricsDAO.regCheckEntry",regCheckEntryQuery);
+	queryRunner.register("MetricsDAO.regAddEntry",regAddEntryQuery);
     }
     
     private void setNodeID(String nodeID) { 
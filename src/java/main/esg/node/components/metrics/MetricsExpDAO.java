@@ -64,8 +64,6 @@
 package esg.node.components.metrics;
 
 import java.util.Properties;
-import java.util.List;
-import java.util.Vector;
 import java.io.Serializable;
 
 import java.sql.ResultSet;
@@ -94,72 +92,59 @@ public class MetricsExpDAO extends ESGDAO {
     public MetricsExpDAO(DataSource dataSource) { this(dataSource, null, new Properties()); }
     public MetricsExpDAO() { super(); }
     
-    public void init() { buildResultSetHandler(); }
+    public void init() {
+	buildResultSetHandler();
+	registerStatement("query",query);
+	registerStatement("download",downloadQuery);
+	registerStatement("rollup",rollupQuery);
+    }
     
-    public void setProperties(Properties props) { this.props = props; }
+    public void setProperties(Properties props) {
+	this.props = props;
+	int fetchSize = ESGMetrics.fetchSize(props);
+	for(String sql : statements()) getQueryRunner().setFetchSize(sql,fetchSize);
+    }
     
     //------------------------------------
     //Query...
     //------------------------------------
-    private static final String query = "select d.project, d.experiment, count(*), sum(lver.size) from ("+MetricsDAO.SUBQ+") as lver, file as f, dataset as d where lver.file_id=f.id and f.dataset_id=d.id group by project, experiment";
+    static final String query = "select d.project, d.experiment, count(*), sum(lver.size) from "+MetricsDAO.LATEST+" as lver, dataset as d where lver.dataset_id=d.id group by project, experiment";
 
-    private static final String downloadQuery = "select d.project, d.experiment, count(*), sum(size) from ("+MetricsDAO.SUBQ+") as lver, esgf_node_manager.access_logging as dl, file as f, dataset as d where dl.url=lver.url and lver.file_id=f.id and f.dataset_id=d.id group by project, experiment";
+    static final String downloadQuery = "select d.project, d.experiment, count(*), sum(lver.size) from "+MetricsDAO.LATEST+" as lver, esgf_node_manager.access_logging as dl, dataset as d where dl.url=lver.url and lver.dataset_id=d.id group by project, experiment";
     
-    public List<MetricsExpDAO.ExpInfo> getMetricsInfo() { return performQuery(query); }
-    public List<MetricsExpDAO.ExpInfo> getDownloadMetricsInfo() { return performQuery(downloadQuery); }
+    //Kept up to date by MetricsRollupDAO (unless metrics.rollup is false)
+    private static final String rollupQuery = "select project, experiment, downloads, bytes from esgf_node_manager.metrics_dl_experiment";
+
+    private String[] statements() { return new String[] { query, downloadQuery, rollupQuery }; }
+
+    public MetricsTable getMetricsInfo() { return performQuery(query); }
+    public MetricsTable getDownloadMetricsInfo() { return performQuery(ESGMetrics.useRollups(props) ? rollupQuery : downloadQuery); }
     
-    private List<MetricsExpDAO.ExpInfo> performQuery(String query) {
+    private MetricsTable performQuery(String query) {
 	if(this.dataSource == null) {
 	    log.error("The datasource ["+dataSource+"] is not valid, Please call setDataSource(...) first!!!");
 	    return null;
 	}
 	log.trace("Getting Metrics: Experiment Information... \n Query = "+query);
 	
-	List<ExpInfo> expInfos = null;
+	MetricsTable table = null;
 	try{
-	    expInfos = getQueryRunner().query(query, metricsExpHandler);
+	    table = getQueryRunner().queryStreaming(query, metricsHandler);
 	}catch(SQLException ex) {
 	    log.error(ex);
 	}
 	
-	return expInfos;
-	
+	return table;
     }
     
     //------------------------------------
     //Result Handling...
     //------------------------------------
-    private ResultSetHandler<List <MetricsExpDAO.ExpInfo>> metricsExpHandler = null;
+    static final String[] COLUMNS = { "project", "experiment" };
+    private ResultSetHandler<MetricsTable> metricsHandler = null;
     protected void buildResultSetHandler() {
 	log.trace("Setting up result handler");
-	metricsExpHandler = new ResultSetHandler<List<MetricsExpDAO.ExpInfo>> () {
-	    public List<MetricsExpDAO.ExpInfo> handle(ResultSet rs) throws SQLException {
-		List<MetricsExpDAO.ExpInfo> expInfos = new Vector<ExpInfo>();
-		ExpInfo expInfo = new ExpInfo();
-		if(!rs.next()) return expInfos;
-		do{
-		    expInfo.project = rs.getString(1);
-		    expInfo.experiment = rs.getString(2);
-		    expInfo.count = rs.getInt(3);
-		    expInfo.sum = rs.getLong(4);
-		    expInfos.add(expInfo);
-		    expInfo = new ExpInfo();
-		}while(rs.next());
-		return expInfos;
-	    }
-	};
-    }
-    
-    //------------------------------------
-    //Result Encapsulation...
-    //------------------------------------
-    public class ExpInfo {
-	public String project = null;
-	public String experiment = null;
-	public int count = -1;
-	public long sum = -1L;
-
-	public String toString() { return "project: ["+project+"] experiment: ["+experiment+"] count: ["+count+"] sum: ["+sum+"]"; }
+	metricsHandler = MetricsTable.handler(COLUMNS);
     }
 
     public String toString() {
@@ -0,0 +1,314 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description: Keeps the download metrics rollups (downloads and bytes
+   per project/experiment, per project/model and per user) up to date
+   incrementally.
+
+   Rather than re-aggregating all of access_logging against all of
+   file_version every metrics period, each call to advance() counts
+   only the access_logging rows with ids above the watermark kept in
+   this node's metrics_run_log row (last_access_logging_id), adds
+   them into the rollup tables and moves the watermark, all in one
+   transaction.  So the cost of a metrics period follows the traffic
+   since the last one, not the size of the history.  A long backlog
+   (first run, node down for a while) is worked through in chunks of
+   metrics.rollup.chunk ids, a transaction each.
+
+   Like the full queries, a download is counted against the latest
+   version of its file, but "latest" as of when the row is rolled up.
+
+   Ids are not committed in id order (they are handed out a block at a
+   time, the write-behind batches commit a little later, and deferred
+   or spooled records can be written well after their id was taken),
+   so the watermark is held back: it never goes past the first row
+   fetched less than metrics.rollup.lag seconds ago, which leaves
+   time for the rows below it to settle.  Rows that still land below
+   the watermark are picked up by re-scanning the last
+   metrics.rollup.rescan ids below it on each advance: the ids already
+   counted there are kept in metrics_dl_rolled (and dropped once they
+   fall out of the window), so each row is counted once however many
+   times it is re-scanned.  Only rows landing further back than that
+   are missed; rebuild() starts the rollups over from nothing for
+   those, which ESGMetrics does every metrics.rollup.rebuild.period
+   seconds if that is set (it is off by default).
+
+**/
+package esg.node.components.metrics;
+
+import java.util.Properties;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+import esg.node.core.*;
+
+public class MetricsRollupDAO extends ESGDAO {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log log = LogFactory.getLog(MetricsRollupDAO.class);
+    private Properties props = null;
+    private long chunkSize = 100000L;
+    private long lagSeconds = 300L;
+    private long rescanIds = 50000L;
+
+    public MetricsRollupDAO(DataSource dataSource, String nodeID, Properties props) {
+	super(dataSource,nodeID);
+	this.setProperties(props);
+    }
+    public MetricsRollupDAO(DataSource dataSource) { this(dataSource, null, new Properties()); }
+    public MetricsRollupDAO() { super(); }
+
+    public void init() {
+	buildResultSetHandler();
+	registerStatement("watermark",watermarkQuery);
+	registerStatement("maxId",maxIdQuery);
+	registerStatement("settledId",settledIdQuery);
+	registerStatement("rolledFrom",rolledFromQuery);
+	registerStatement("createNewIds",createNewIdsQuery);
+	registerStatement("fillNewIds",fillNewIdsQuery);
+	registerStatement("createDelta",createDeltaQuery);
+	registerStatement("fillDelta",fillDeltaQuery);
+	registerStatement("updateExperiment",updateExperimentQuery);
+	registerStatement("insertExperiment",insertExperimentQuery);
+	registerStatement("updateModel",updateModelQuery);
+	registerStatement("insertModel",insertModelQuery);
+	registerStatement("updateUser",updateUserQuery);
+	registerStatement("insertUser",insertUserQuery);
+	registerStatement("markRolled",markRolledQuery);
+	registerStatement("pruneRolled",pruneRolledQuery);
+	registerStatement("setWatermark",setWatermarkQuery);
+    }
+
+    public void setProperties(Properties props) {
+	this.props = props;
+	if(props == null) return;
+	chunkSize = Math.max(1L,Long.parseLong(props.getProperty("metrics.rollup.chunk",""+chunkSize)));
+	lagSeconds = Math.max(0L,Long.parseLong(props.getProperty("metrics.rollup.lag",""+lagSeconds)));
+	rescanIds = Math.max(0L,Long.parseLong(props.getProperty("metrics.rollup.rescan",""+rescanIds)));
+    }
+
+    //------------------------------------
+    //Query...
+    //------------------------------------
+    private static final String watermarkQuery = "select last_access_logging_id from esgf_node_manager.metrics_run_log where id = ? for update";
+    private static final String maxIdQuery = "select max(id) from esgf_node_manager.access_logging";
+    //The highest id the watermark may move to: just below the first row past it that is too recent to have settled
+    private static final String settledIdQuery = "select coalesce(min(id)-1, ?) from esgf_node_manager.access_logging where id > ? and date_fetched > ?";
+    private static final String rolledFromQuery = "select last_rolled_id from esgf_node_manager.metrics_run_log where id = ?";
+    private static final String setWatermarkQuery = "update esgf_node_manager.metrics_run_log set last_access_logging_id = ?, last_rolled_id = ? where id = ?";
+
+    //The ids not counted yet, picked once so that the rows counted and the rows marked counted are the same (dropped at commit)
+    private static final String createNewIdsQuery = "create temporary table metrics_dl_new (id bigint) on commit drop";
+    private static final String fillNewIdsQuery = "insert into metrics_dl_new select dl.id from esgf_node_manager.access_logging as dl where dl.id > ? and dl.id <= ? and not exists (select 1 from esgf_node_manager.metrics_dl_rolled as r where r.id=dl.id)";
+    private static final String markRolledQuery = "insert into esgf_node_manager.metrics_dl_rolled (id) select id from metrics_dl_new";
+    private static final String pruneRolledQuery = "delete from esgf_node_manager.metrics_dl_rolled where id <= ?";
+
+    //The new rows at the finest grain, for the three rollups to be built from (dropped at commit)
+    private static final String createDeltaQuery = "create temporary table metrics_dl_delta (project character varying, experiment character varying, model character varying, user_id character varying, downloads bigint, bytes bigint) on commit drop";
+    static final String fillDeltaQuery = "insert into metrics_dl_delta select coalesce(d.project,''), coalesce(d.experiment,''), coalesce(d.model,''), dl.user_id, count(*), coalesce(sum(lver.size),0) from metrics_dl_new as nid, esgf_node_manager.access_logging as dl, "+MetricsDAO.LATEST+" as lver, dataset as d where dl.id=nid.id and lver.url=dl.url and lver.dataset_id=d.id group by 1, 2, 3, 4";
+
+    private static final String updateExperimentQuery = "update esgf_node_manager.metrics_dl_experiment as r set downloads = r.downloads + n.downloads, bytes = r.bytes + n.bytes from (select project, experiment, sum(downloads) as downloads, sum(bytes) as bytes from metrics_dl_delta group by project, experiment) as n where r.project=n.project and r.experiment=n.experiment";
+    private static final String insertExperimentQuery = "insert into esgf_node_manager.metrics_dl_experiment (project, experiment, downloads, bytes) select project, experiment, sum(downloads), sum(bytes) from metrics_dl_delta as n where not exists (select 1 from esgf_node_manager.metrics_dl_experiment as r where r.project=n.project and r.experiment=n.experiment) group by project, experiment";
+    private static final String updateModelQuery = "update esgf_node_manager.metrics_dl_model as r set downloads = r.downloads + n.downloads, bytes = r.bytes + n.bytes from (select project, model, sum(downloads) as downloads, sum(bytes) as bytes from metrics_dl_delta group by project, model) as n where r.project=n.project and r.model=n.model";
+    private static final String insertModelQuery = "insert into esgf_node_manager.metrics_dl_model (project, model, downloads, bytes) select project, model, sum(downloads), sum(bytes) from metrics_dl_delta as n where not exists (select 1 from esgf_node_manager.metrics_dl_model as r where r.project=n.project and r.model=n.model) group by project, model";
+    private static final String updateUserQuery = "update esgf_node_manager.metrics_dl_user as r set downloads = r.downloads + n.downloads, bytes = r.bytes + n.bytes from (select user_id, sum(downloads) as downloads, sum(bytes) as bytes from metrics_dl_delta group by user_id) as n where r.user_id=n.user_id";
+    private static final String insertUserQuery = "insert into esgf_node_manager.metrics_dl_user (user_id, downloads, bytes) select user_id, sum(downloads), sum(bytes) from metrics_dl_delta as n where not exists (select 1 from esgf_node_manager.metrics_dl_user as r where r.user_id=n.user_id) group by user_id";
+
+    private static final String[] clearQueries = {
+	"delete from esgf_node_manager.metrics_dl_experiment",
+	"delete from esgf_node_manager.metrics_dl_model",
+	"delete from esgf_node_manager.metrics_dl_user",
+	"delete from esgf_node_manager.metrics_dl_rolled"
+    };
+
+    /**
+       Rolls up all the access_logging rows above the watermark.
+       @return The number of access_logging ids moved past, or -1 on error
+    */
+    public synchronized long advance() {
+	if(this.dataSource == null) {
+	    log.error("The datasource ["+dataSource+"] is not valid, Please call setDataSource(...) first!!!");
+	    return -1L;
+	}
+	long total = 0L;
+	long n = 0L;
+	while((n = advanceChunk()) > 0) total += n;
+	if(n < 0) return -1L;
+	if(total > 0) log.debug("Metrics rollups advanced past ["+total+"] access_logging ids");
+	return total;
+    }
+
+    /**
+       Empties the rollups and puts the watermark back to 0, so that the
+       next advance() counts all of access_logging again.
+       @return true if the rollups were cleared
+    */
+    public synchronized boolean rebuild() {
+	Connection conn = null;
+	try{
+	    conn = dataSource.getConnection();
+	    conn.setAutoCommit(false);
+	    getQueryRunner().query(conn,watermarkQuery,longHandler,getNodeID());
+	    for(String clearQuery : clearQueries) getQueryRunner().update(conn,clearQuery);
+	    getQueryRunner().update(conn,setWatermarkQuery,0L,0L,getNodeID());
+	    conn.commit();
+	    log.info("Cleared the metrics rollups, they will be rebuilt from access_logging");
+	    return true;
+	}catch(SQLException ex) {
+	    rollback(conn);
+	    log.error(ex);
+	    return false;
+	}finally{
+	    close(conn);
+	}
+    }
+
+    //One transaction: at most chunkSize ids past the watermark, plus
+    //whatever has landed in the re-scan window below it
+    private long advanceChunk() {
+	Connection conn = null;
+	try{
+	    conn = dataSource.getConnection();
+	    conn.setAutoCommit(false);
+	    //Locks this node's run log row until commit, so runs don't overlap
+	    Long watermark = getQueryRunner().query(conn,watermarkQuery,longHandler,getNodeID());
+	    if(watermark == null) {
+		log.error("No metrics_run_log entry for ["+getNodeID()+"], can't roll up download metrics");
+		conn.rollback();
+		return -1L;
+	    }
+	    long maxId = getQueryRunner().query(conn,maxIdQuery,longHandler);
+	    if(maxId > watermark && lagSeconds > 0) {
+		long cutoff = System.currentTimeMillis()/1000 - lagSeconds;
+		maxId = getQueryRunner().query(conn,settledIdQuery,longHandler,maxId,watermark,cutoff);
+	    }
+	    long high = Math.max(watermark,Math.min(maxId,watermark+chunkSize));
+
+	    //Everything above last_rolled_id has its counted ids in
+	    //metrics_dl_rolled, so may be re-scanned
+	    long rolledFrom = getQueryRunner().query(conn,rolledFromQuery,longHandler,getNodeID());
+	    long low = Math.max(rolledFrom,watermark-rescanIds);
+	    long newRolledFrom = Math.max(rolledFrom,high-rescanIds);
+	    if(high == watermark && (rescanIds == 0 || low >= watermark)) {
+		conn.commit();
+		return 0L;
+	    }
+
+	    getQueryRunner().update(conn,createNewIdsQuery);
+	    int counted = getQueryRunner().update(conn,fillNewIdsQuery,low,high);
+	    getQueryRunner().update(conn,createDeltaQuery);
+	    getQueryRunner().update(conn,fillDeltaQuery);
+	    getQueryRunner().update(conn,updateExperimentQuery);
+	    getQueryRunner().update(conn,insertExperimentQuery);
+	    getQueryRunner().update(conn,updateModelQuery);
+	    getQueryRunner().update(conn,insertModelQuery);
+	    getQueryRunner().update(conn,updateUserQuery);
+	    getQueryRunner().update(conn,insertUserQuery);
+	    getQueryRunner().update(conn,markRolledQuery);
+	    getQueryRunner().update(conn,pruneRolledQuery,newRolledFrom);
+	    getQueryRunner().update(conn,setWatermarkQuery,high,newRolledFrom,getNodeID());
+	    conn.commit();
+	    log.trace("Metrics rollups: ids ("+low+", "+high+"], ["+counted+"] rows counted");
+	    return high - watermark;
+	}catch(SQLException ex) {
+	    rollback(conn);
+	    log.error(ex);
+	    return -1L;
+	}finally{
+	    close(conn);
+	}
+    }
+
+    private void rollback(Connection conn) {
+	if(conn != null) try{ conn.rollback(); }catch(SQLException ignore) { }
+    }
+
+    private void close(Connection conn) {
+	if(conn == null) return;
+	try{ conn.setAutoCommit(true); }catch(SQLException ignore) { }
+	try{ conn.close(); }catch(SQLException ignore) { }
+    }
+
+    //------------------------------------
+    //Result Handling...
+    //------------------------------------
+    private ResultSetHandler<Long> longHandler = null;
+    protected void buildResultSetHandler() {
+	log.trace("Setting up result handler");
+	longHandler = new ResultSetHandler<Long>() {
+	    public Long handle(ResultSet rs) throws SQLException {
+		if(!rs.next()) return null;
+		return rs.getLong(1);
+	    }
+	};
+    }
+
+    public String toString() {
+	return this.getClass().getName()+":(1)["+this.getClass().getName()+"] - [Q:"+fillDeltaQuery+"] "+((dataSource == null) ? "[OK]\n" : "[INVALID]\n");
+    }
+
+}
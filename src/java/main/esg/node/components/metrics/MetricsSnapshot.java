@@ -0,0 +1,156 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description: One complete set of the metrics ESGMetrics serves,
+   as read by one refresh.  A snapshot never changes once published
+   (nor do the MetricsTables in it), so readers share it without
+   locks or copies; each refresh publishes a new one with the next
+   version number.
+
+   The live download counts (see LiveDownloadStats) as they were when
+   the download lists were read go along with them, so that the
+   downloads since can be added on: ESGMetrics does that every few
+   seconds, publishing a copy of the snapshot (same version) with the
+   download tables replaced, see withLive().
+
+**/
+package esg.node.components.metrics;
+
+import java.util.Map;
+
+public final class MetricsSnapshot {
+
+    static final MetricsSnapshot EMPTY = new MetricsSnapshot(0L,0L,null,null,null,null,null,null,null,null);
+
+    private final long version;
+    private final long time;
+    private final long liveTime;
+    private final MetricsTable experiments;
+    private final MetricsTable variables;
+    private final MetricsTable downloadExperiments;
+    private final MetricsTable downloadVariables;
+    private final MetricsTable downloadUsers;
+    final Map<String,long[]> expLiveBase;
+    final Map<String,long[]> varLiveBase;
+    final Map<String,long[]> userLiveBase;
+
+    MetricsSnapshot(long version, long time,
+		    MetricsTable experiments,
+		    MetricsTable variables,
+		    MetricsTable downloadExperiments,
+		    MetricsTable downloadVariables,
+		    MetricsTable downloadUsers,
+		    Map<String,long[]> expLiveBase,
+		    Map<String,long[]> varLiveBase,
+		    Map<String,long[]> userLiveBase) {
+	this(version,time,0L,experiments,variables,downloadExperiments,downloadVariables,downloadUsers,expLiveBase,varLiveBase,userLiveBase);
+    }
+
+    private MetricsSnapshot(long version, long time, long liveTime,
+			    MetricsTable experiments,
+			    MetricsTable variables,
+			    MetricsTable downloadExperiments,
+			    MetricsTable downloadVariables,
+			    MetricsTable downloadUsers,
+			    Map<String,long[]> expLiveBase,
+			    Map<String,long[]> varLiveBase,
+			    Map<String,long[]> userLiveBase) {
+	this.version = version;
+	this.time = time;
+	this.liveTime = liveTime;
+	this.experiments = orEmpty(experiments,MetricsExpDAO.COLUMNS);
+	this.variables = orEmpty(variables,MetricsVarsDAO.COLUMNS);
+	this.downloadExperiments = orEmpty(downloadExperiments,MetricsExpDAO.COLUMNS);
+	this.downloadVariables = orEmpty(downloadVariables,MetricsVarsDAO.COLUMNS);
+	this.downloadUsers = orEmpty(downloadUsers,MetricsUsersDAO.COLUMNS);
+	this.expLiveBase = expLiveBase;
+	this.varLiveBase = varLiveBase;
+	this.userLiveBase = userLiveBase;
+    }
+
+    private static MetricsTable orEmpty(MetricsTable table, String[] columns) {
+	return (table == null) ? MetricsTable.empty(columns) : table;
+    }
+
+    //0 until the first refresh
+    public long getVersion() { return version; }
+
+    //When the refresh that made it finished (ms since the epoch, 0 until the first refresh)
+    public long getTime() { return time; }
+
+    //How old it is (ms), -1 until the first refresh
+    public long getAgeMillis() { return (time == 0L) ? -1L : System.currentTimeMillis() - time; }
+
+    //When the live downloads were last added onto the download tables (0 if they have not been)
+    public long getLiveTime() { return liveTime; }
+
+    //The same snapshot with these download tables (the database's with the live downloads added on)
+    MetricsSnapshot withLive(MetricsTable downloadExperiments, MetricsTable downloadVariables, MetricsTable downloadUsers, long liveTime) {
+	return new MetricsSnapshot(version,time,liveTime,experiments,variables,downloadExperiments,downloadVariables,downloadUsers,
+				   expLiveBase,varLiveBase,userLiveBase);
+    }
+
+    public MetricsTable getExperiments() { return experiments; }
+    public MetricsTable getVariables() { return variables; }
+    public MetricsTable getDownloadExperiments() { return downloadExperiments; }
+    public MetricsTable getDownloadVariables() { return downloadVariables; }
+    public MetricsTable getDownloadUsers() { return downloadUsers; }
+
+    public String toString() { return "metrics snapshot: version ["+version+"] age ["+getAgeMillis()+"ms]"; }
+
+}
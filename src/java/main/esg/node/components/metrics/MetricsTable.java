@@ -0,0 +1,308 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description: The result of one of the metrics queries, held by
+   column.  Each row is one or two keys (ex: project and experiment),
+   a count and a sum.  The key strings are dictionary encoded (each
+   distinct value is kept once and the rows hold its index into the
+   dictionary) and the counts and sums are plain long[]
+   arrays, so a table is a handful of objects however many rows it
+   has.  A table never changes once it is built, so it can be shared
+   freely.
+
+   The DAOs build them straight from the ResultSet (see handler()),
+   reading the rows as the driver fetches them.
+
+**/
+package esg.node.components.metrics;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+
+public final class MetricsTable {
+
+    private static final int INITIAL_ROWS = 256;
+
+    private final String[] columns;    //names of the key columns
+    private final String[] dictionary; //the distinct key values
+    private final int[][] keys;        //[column][row] -> index into the dictionary
+    private final long[] counts;
+    private final long[] sums;
+    private final int size;
+
+    private MetricsTable(String[] columns, String[] dictionary, int[][] keys, long[] counts, long[] sums, int size) {
+	this.columns = columns;
+	this.dictionary = dictionary;
+	this.keys = keys;
+	this.counts = counts;
+	this.sums = sums;
+	this.size = size;
+    }
+
+    static MetricsTable empty(String... columns) { return new Builder(columns,0).build(); }
+
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+
+    //How many key columns there are (one or two) and what they are called
+    public int getNumKeys() { return columns.length; }
+    public String getColumn(int column) { return columns[column]; }
+
+    public String getKey(int row, int column) { return dictionary[keys[column][row]]; }
+
+    //Where the key is in the dictionary: rows with the same code have the same key
+    public int getKeyCode(int row, int column) { return keys[column][row]; }
+    public int getDictionarySize() { return dictionary.length; }
+    public String getDictionaryValue(int code) { return dictionary[code]; }
+
+    public long getCount(int row) { return counts[row]; }
+    public long getSum(int row) { return sums[row]; }
+
+    public long getTotalCount() {
+	long total = 0L;
+	for(int row = 0; row < size; row++) total += counts[row];
+	return total;
+    }
+
+    public long getTotalSum() {
+	long total = 0L;
+	for(int row = 0; row < size; row++) total += sums[row];
+	return total;
+    }
+
+    /**
+       @return The row numbers, largest sum first (rows with the same
+       sum stay in the order they are in)
+    */
+    public int[] orderBySum() {
+	int[] order = new int[size];
+	for(int row = 0; row < size; row++) order[row] = row;
+	if(size > 1) sortBySum(order,new int[size],0,size);
+	return order;
+    }
+
+    //The same rows, largest sum first
+    public MetricsTable sortedBySum() {
+	int[] order = orderBySum();
+	int[][] sortedKeys = new int[columns.length][size];
+	long[] sortedCounts = new long[size];
+	long[] sortedSums = new long[size];
+	for(int i = 0; i < size; i++) {
+	    int row = order[i];
+	    for(int column = 0; column < columns.length; column++) sortedKeys[column][i] = keys[column][row];
+	    sortedCounts[i] = counts[row];
+	    sortedSums[i] = sums[row];
+	}
+	return new MetricsTable(columns,dictionary,sortedKeys,sortedCounts,sortedSums,size);
+    }
+
+    //(merge sort of the row numbers, descending by sum)
+    private void sortBySum(int[] order, int[] tmp, int from, int to) {
+	if(to - from < 2) return;
+	int mid = (from + to) >>> 1;
+	sortBySum(order,tmp,from,mid);
+	sortBySum(order,tmp,mid,to);
+	if(sums[order[mid-1]] >= sums[order[mid]]) return;
+	System.arraycopy(order,from,tmp,from,to-from);
+	int i = from, j = mid, k = from;
+	while(i < mid && j < to) order[k++] = (sums[tmp[j]] > sums[tmp[i]]) ? tmp[j++] : tmp[i++];
+	while(i < mid) order[k++] = tmp[i++];
+	while(j < to) order[k++] = tmp[j++];
+    }
+
+    /**
+       @param added key -> {count, sum} to add on, where the key is
+       LiveDownloadStats.key(project,name) for two key columns and the
+       key itself for one
+       @param addNewKeys Whether keys that are not in this table get
+       rows of their own (at the end), or are left out
+       @return A new table with the counts and sums added to the rows
+       with the same keys
+    */
+    MetricsTable plus(Map<String,long[]> added, boolean addNewKeys) {
+	if(added.isEmpty()) return this;
+	Builder builder = new Builder(columns,size+added.size());
+	Map<String,Integer> rows = new HashMap<String,Integer>(size*2);
+	for(int row = 0; row < size; row++) {
+	    String first = getKey(row,0);
+	    String second = (columns.length > 1) ? getKey(row,1) : null;
+	    rows.put(key(first,second),builder.add(first,second,counts[row],sums[row]));
+	}
+	for(Map.Entry<String,long[]> entry : added.entrySet()) {
+	    long[] value = entry.getValue();
+	    Integer row = rows.get(entry.getKey());
+	    if(row != null) {
+		builder.addTo(row,value[0],value[1]);
+	    }else if(!addNewKeys) {
+		continue;
+	    }else if(columns.length > 1) {
+		String[] parts = entry.getKey().split("\t",2);
+		builder.add((parts.length > 1) ? parts[0] : "",parts[parts.length-1],value[0],value[1]);
+	    }else{
+		builder.add(entry.getKey(),null,value[0],value[1]);
+	    }
+	}
+	return builder.build();
+    }
+
+    private String key(String first, String second) {
+	return (columns.length > 1) ? LiveDownloadStats.key(first,second) : first;
+    }
+
+    //Same format as the lists of info objects this replaces
+    public String toString() {
+	StringBuilder sb = new StringBuilder(32+size*64);
+	sb.append('[');
+	for(int row = 0; row < size; row++) {
+	    if(row > 0) sb.append(", ");
+	    for(int column = 0; column < columns.length; column++) {
+		sb.append(columns[column]).append(": [").append(getKey(row,column)).append("] ");
+	    }
+	    sb.append("count: [").append(counts[row]).append("] sum: [").append(sums[row]).append(']');
+	}
+	return sb.append(']').toString();
+    }
+
+    //------------------------------------
+    //Building...
+    //------------------------------------
+
+    /**
+       Reads a result whose columns are the keys (as many as there are
+       names given), then the count and the sum, into a table.
+    */
+    static ResultSetHandler<MetricsTable> handler(final String... columns) {
+	if(columns.length < 1 || columns.length > 2) throw new IllegalArgumentException("A metrics table has one or two key columns, not "+columns.length);
+	return new ResultSetHandler<MetricsTable>() {
+	    public MetricsTable handle(ResultSet rs) throws SQLException {
+		Builder builder = new Builder(columns,INITIAL_ROWS);
+		if(columns.length == 1) {
+		    while(rs.next()) builder.add(rs.getString(1),null,rs.getLong(2),rs.getLong(3));
+		}else{
+		    while(rs.next()) builder.add(rs.getString(1),rs.getString(2),rs.getLong(3),rs.getLong(4));
+		}
+		return builder.build();
+	    }
+	};
+    }
+
+    static final class Builder {
+	private final String[] columns;
+	private final Map<String,Integer> codes = new HashMap<String,Integer>();
+	private String[] dictionary;
+	private int[][] keys;
+	private long[] counts;
+	private long[] sums;
+	private int size = 0;
+
+	Builder(String[] columns, int capacity) {
+	    this.columns = columns;
+	    capacity = Math.max(capacity,1);
+	    dictionary = new String[capacity];
+	    keys = new int[columns.length][capacity];
+	    counts = new long[capacity];
+	    sums = new long[capacity];
+	}
+
+	//Adds a row (the second key is ignored for a one key table) and returns its row number
+	int add(String first, String second, long count, long sum) {
+	    if(size == counts.length) grow();
+	    keys[0][size] = code(first);
+	    if(columns.length > 1) keys[1][size] = code(second);
+	    counts[size] = count;
+	    sums[size] = sum;
+	    return size++;
+	}
+
+	void addTo(int row, long count, long sum) {
+	    counts[row] += count;
+	    sums[row] += sum;
+	}
+
+	MetricsTable build() {
+	    int[][] trimmedKeys = new int[columns.length][];
+	    for(int column = 0; column < columns.length; column++) trimmedKeys[column] = Arrays.copyOf(keys[column],size);
+	    return new MetricsTable(columns,Arrays.copyOf(dictionary,codes.size()),trimmedKeys,
+				    Arrays.copyOf(counts,size),Arrays.copyOf(sums,size),size);
+	}
+
+	private int code(String value) {
+	    Integer code = codes.get(value);
+	    if(code != null) return code;
+	    int next = codes.size();
+	    if(next == dictionary.length) dictionary = Arrays.copyOf(dictionary,next*2);
+	    dictionary[next] = value;
+	    codes.put(value,next);
+	    return next;
+	}
+
+	private void grow() {
+	    int capacity = counts.length*2;
+	    for(int column = 0; column < columns.length; column++) keys[column] = Arrays.copyOf(keys[column],capacity);
+	    counts = Arrays.copyOf(counts,capacity);
+	    sums = Arrays.copyOf(sums,capacity);
+	}
+    }
+
+}
@@ -63,8 +63,6 @@
 package esg.node.components.metrics;
 
 import java.util.Properties;
-import java.util.List;
-import java.util.Vector;
 import java.io.Serializable;
 
 import java.sql.ResultSet;
@@ -92,63 +90,54 @@ public class MetricsUsersDAO extends ESGDAO {
     public MetricsUsersDAO(DataSource dataSource) { this(dataSource,null,new Properties()); }
     public MetricsUsersDAO() { super(); }
     
-    public void init() { buildResultSetHandler(); }
+    public void init() {
+	buildResultSetHandler();
+	registerStatement("query",query);
+	registerStatement("rollup",rollupQuery);
+    }
 
-    public void setProperties(Properties props) { this.props = props; }
+    public void setProperties(Properties props) {
+	this.props = props;
+	int fetchSize = ESGMetrics.fetchSize(props);
+	for(String sql : statements()) getQueryRunner().setFetchSize(sql,fetchSize);
+    }
 
     //------------------------------------
     //Query...
     //------------------------------------
-    private static final String query = "select dl.user_id, count(*), sum(size) from ("+MetricsDAO.SUBQ+") as lver, esgf_node_manager.access_logging as dl where lver.url=dl.url group by user_id";
+    static final String query = "select dl.user_id, count(*), sum(lver.size) from "+MetricsDAO.LATEST+" as lver, esgf_node_manager.access_logging as dl where lver.url=dl.url group by user_id";
+
+    //Kept up to date by MetricsRollupDAO (unless metrics.rollup is false)
+    private static final String rollupQuery = "select user_id, downloads, bytes from esgf_node_manager.metrics_dl_user";
+
+    private String[] statements() { return new String[] { query, rollupQuery }; }
 
-    public List<MetricsUsersDAO.UserInfo> getDownloadMetricsInfo() {
+    public MetricsTable getDownloadMetricsInfo() {
 	if(this.dataSource == null) {
 	    log.error("The datasource ["+dataSource+"] is not valid, Please call setDataSource(...) first!!!");
 	    return null;
 	}
+	String query = ESGMetrics.useRollups(props) ? rollupQuery : MetricsUsersDAO.query;
 	log.trace("Getting Metrics: User Infos... \n Query = "+query);
 	
-	List<UserInfo> userInfos = null;
+	MetricsTable table = null;
 	try{
-	    userInfos = getQueryRunner().query(query, metricsUsersHandler, getNodeID());
+	    table = getQueryRunner().queryStreaming(query, metricsHandler);
 	}catch(SQLException ex) {
 	    log.error(ex);
 	}
 	
-	return userInfos;
+	return table;
     }
 
     //------------------------------------
     //Result Handling...
     //------------------------------------
-    private ResultSetHandler<List <MetricsUsersDAO.UserInfo>> metricsUsersHandler = null;
+    static final String[] COLUMNS = { "userid" };
+    private ResultSetHandler<MetricsTable> metricsHandler = null;
     protected void buildResultSetHandler() {
 	log.trace("Setting up result handler");
-	metricsUsersHandler = new ResultSetHandler<List<MetricsUsersDAO.UserInfo>> () {
-	    public List<MetricsUsersDAO.UserInfo> handle(ResultSet rs) throws SQLException {
-		List<MetricsUsersDAO.UserInfo> userInfos = new Vector<UserInfo>();
-		UserInfo userInfo = new UserInfo();
-		if(!rs.next()) return userInfos;
-		do{
-		    userInfo.userid = rs.getString(1);
-		    userInfo.count = rs.getInt(2);
-		    userInfo.sum = rs.getLong(3);
-		    userInfo = new UserInfo();
-		}while(rs.next());
-		return userInfos;
-	    }
-	};
-    }
-        
-    //------------------------------------
-    //Result Encapsulation...
-    //------------------------------------
-    public class UserInfo {
-	public String userid = null;
-	public int count = -1;
-	public long sum = -1L;
-
-	public String toString() { return "userid: ["+userid+"] count: ["+count+"] sum: ["+sum+"]"; }
+	metricsHandler = MetricsTable.handler(COLUMNS);
     }
 
     public String toString() {
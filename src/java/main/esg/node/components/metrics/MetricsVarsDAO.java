@@ -64,8 +64,6 @@
 package esg.node.components.metrics;
 
 import java.util.Properties;
-import java.util.List;
-import java.util.Vector;
 import java.io.Serializable;
 
 import java.sql.ResultSet;
@@ -94,70 +92,58 @@ public class MetricsVarsDAO extends ESGDAO {
     public MetricsVarsDAO(DataSource dataSource) { this(dataSource,null, new Properties()); }
     public MetricsVarsDAO() { super(); }
     
-    public void init() { buildResultSetHandler(); }
+    public void init() {
+	buildResultSetHandler();
+	registerStatement("query",query);
+	registerStatement("download",downloadQuery);
+	registerStatement("rollup",rollupQuery);
+    }
 
-    public void setProperties(Properties props) { this.props = props; }
+    public void setProperties(Properties props) {
+	this.props = props;
+	int fetchSize = ESGMetrics.fetchSize(props);
+	for(String sql : statements()) getQueryRunner().setFetchSize(sql,fetchSize);
+    }
     //------------------------------------
     //Query...
     //------------------------------------
-    private static final String query = "select d.project, d.model, count(*), sum(lver.size) from ("+MetricsDAO.SUBQ+") as lver, file as f, dataset as d where lver.file_id=f.id and f.dataset_id=d.id group by project, model";
+    static final String query = "select d.project, d.model, count(*), sum(lver.size) from "+MetricsDAO.LATEST+" as lver, dataset as d where lver.dataset_id=d.id group by project, model";
 
-    private static final String downloadQuery = "select d.project, d.model, count(*), sum(size) from ("+MetricsDAO.SUBQ+") as lver, esgf_node_manager.access_logging as dl, file as f, dataset as d where dl.url=lver.url and lver.file_id=f.id and f.dataset_id=d.id group by project, model";
+    static final String downloadQuery = "select d.project, d.model, count(*), sum(lver.size) from "+MetricsDAO.LATEST+" as lver, esgf_node_manager.access_logging as dl, dataset as d where dl.url=lver.url and lver.dataset_id=d.id group by project, model";
     
-    public List<MetricsVarsDAO.VarInfo> getMetricsInfo() { return performQuery(query); }
-    public List<MetricsVarsDAO.VarInfo> getDownloadMetricsInfo() { return performQuery(downloadQuery); }
+    //Kept up to date by MetricsRollupDAO (unless metrics.rollup is false)
+    private static final String rollupQuery = "select project, model, downloads, bytes from esgf_node_manager.metrics_dl_model";
 
-    private List<MetricsVarsDAO.VarInfo> performQuery(String query) {
+    private String[] statements() { return new String[] { query, downloadQuery, rollupQuery }; }
 
+    public MetricsTable getMetricsInfo() { return performQuery(query); }
+    public MetricsTable getDownloadMetricsInfo() { return performQuery(ESGMetrics.useRollups(props) ? rollupQuery : downloadQuery); }
+    
+    private MetricsTable performQuery(String query) {
 	if(this.dataSource == null) {
 	    log.error("The datasource ["+dataSource+"] is not valid, Please call setDataSource(...) first!!!");
 	    return null;
 	}
 	log.trace("Getting Metrics: Variable Information... \n Query = "+query);
 	
-	List<VarInfo> varInfos = null;
+	MetricsTable table = null;
 	try{
-	    varInfos = getQueryRunner().query(query, metricsVarsHandler);
+	    table = getQueryRunner().queryStreaming(query, metricsHandler);
 	}catch(SQLException ex) {
 	    log.error(ex);
 	}
 	
-	return varInfos;
+	return table;
     }
     
     //------------------------------------
     //Result Handling...
     //------------------------------------
-    private ResultSetHandler<List <MetricsVarsDAO.VarInfo>> metricsVarsHandler = null;
+    static final String[] COLUMNS = { "project", "model" };
+    private ResultSetHandler<MetricsTable> metricsHandler = null;
     protected void buildResultSetHandler() {
 	log.trace("Setting up result handler");
-	metricsVarsHandler = new ResultSetHandler<List<MetricsVarsDAO.VarInfo>> () {
-	    public List<MetricsVarsDAO.VarInfo> handle(ResultSet rs) throws SQLException {
-		List<MetricsVarsDAO.VarInfo> varInfos = new Vector<VarInfo>();
-		VarInfo varInfo = new VarInfo();
-		if(!rs.next()) return varInfos;
-		do{
-		    varInfo.project = rs.getString(1);
-		    varInfo.model = rs.getString(2);
-		    varInfo.count = rs.getInt(3);
-		    varInfo.sum = rs.getLong(4);
-		    varInfo = new VarInfo();
-		}while(rs.next());
-		return varInfos;
-	    }
-	};
-    }
-    
-    //------------------------------------
-    //Result Encapsulation...
-    //------------------------------------
-    public class VarInfo {
-	public String project = null;
-	public String model = null;
-	public int count = -1;
-	public long sum = -1L;
-
-	public String toString() { return "project: ["+project+"] model: ["+model+"] count: ["+count+"] sum: ["+sum+"]"; }
+	metricsHandler = MetricsTable.handler(COLUMNS);
     }
 
     public String toString() {
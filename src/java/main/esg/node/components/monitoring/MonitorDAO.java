@@ -86,7 +86,6 @@ import java.nio.charset.*;
 import java.nio.channels.*;
 
 
-import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
 
 import org.apache.commons.logging.Log;
@@ -95,6 +94,7 @@ import org.apache.commons.logging.impl.*;
 
 import esg.common.Utils;
 import esg.common.ESGInvalidObjectStateException;
+import esg.common.db.StatementRunner;
 
 
 public class MonitorDAO implements Serializable {
@@ -107,7 +107,7 @@ public class MonitorDAO implements Serializable {
 
     private Properties props = null;
     private DataSource dataSource = null;
-    private QueryRunner queryRunner = null;
+    private StatementRunner queryRunner = null;
     private String nodeID = null;
 
     //Used for fetching disk usage information
@@ -171,7 +171,10 @@ public class MonitorDAO implements Serializable {
     public void setDataSource(DataSource dataSource) {
         log.trace("Setting Up Monitor DAO's Pooled Data Source");
         this.dataSource = dataSource;
-        this.queryRunner = new QueryRunner(dataSource);
+        this.queryRunner = new StatementRunner(dataSource);
+        queryRunner.register("MonitorDAO.markTime",markTimeQuery);
+        queryRunner.register("MonitorDAO.regCheckEntry",regCheckEntryQuery);
+        queryRunner.register("MonitorDAO.regAddEntry",regAddEntryQuery);
     }
     
     private void setNodeID(String nodeID) { 
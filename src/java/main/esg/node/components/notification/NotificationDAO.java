@@ -76,7 +76,6 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import javax.sql.DataSource;
 
-import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
 
 import org.apache.commons.logging.Log;
@@ -85,12 +84,13 @@ import org.apache.commons.logging.impl.*;
 
 import esg.common.Utils;
 import esg.common.ESGInvalidObjectStateException;
+import esg.common.db.StatementRunner;
 
 //import esg.security.OpenId2EmailAddressResolution;
 
 public class NotificationDAO implements Serializable {
 
-    private static final String notificationQuery = "SELECT DISTINCT d.user_id, d.email, ds.name, d.url, fv.mod_time FROM dataset as ds, file as f, esgf_node_manager.access_logging as d, file_version as fv WHERE ds.id=f.dataset_id and fv.file_id=f.id and d.url=fv.url and fv.mod_time>d.date_fetched AND d.date_fetched > (SELECT distinct MAX(notify_time) FROM esgf_node_manager.notification_run_log where id = ? ) ORDER BY d.user_id";
+    private static final String notificationQuery = "SELECT DISTINCT d.user_id, d.email, ds.name, d.url, lver.mod_time FROM dataset as ds, esgf_node_manager.access_logging as d, esgf_node_manager.latest_file_version as lver WHERE ds.id=lver.dataset_id and d.url=lver.url and lver.mod_time>d.date_fetched AND d.date_fetched > (SELECT distinct MAX(notify_time) FROM esgf_node_manager.notification_run_log where id = ? ) ORDER BY d.user_id";
     private static final String markTimeQuery      = "UPDATE esgf_node_manager.notification_run_log SET notify_time = ? WHERE id = ?";
     private static final String regCheckEntryQuery = "SELECT COUNT(*) FROM esgf_node_manager.notification_run_log WHERE id = ?";
     private static final String regAddEntryQuery   = "INSERT INTO esgf_node_manager.notification_run_log (id, notify_time) VALUES ( ? , ? )";
@@ -98,7 +98,7 @@ public class NotificationDAO implements Serializable {
     private static final Log log = LogFactory.getLog(NotificationDAO.class);
 
     private DataSource dataSource = null;
-    private QueryRunner queryRunner = null;
+    private StatementRunner queryRunner = null;
     private ResultSetHandler<List<NotificationDAO.NotificationRecipientInfo> > handler = null;
     private String nodeID = null;
     private Map<String,String> emailResolverCache = null;
@@ -199,7 +199,11 @@ public class NotificationDAO implements Serializable {
     public void setDataSource(DataSource dataSource) {
         log.trace("Setting Up Notification DAO's Pooled Data Source");
         this.dataSource = dataSource;
-        this.queryRunner = new QueryRunner(dataSource);
+        this.queryRunner = new StatementRunner(dataSource);
+        queryRunner.register("NotificationDAO.notification",notificationQuery);
+        queryRunner.register("NotificationDAO.markTime",markTimeQuery);
+        queryRunner.register("NotificationDAO.regCheckEntry",regCheckEntryQuery);
+        queryRunner.register("NotificationDAO.regAddEntry",regAddEntryQuery);
     }
     
     //NOTE: I made this private because I can't think of any
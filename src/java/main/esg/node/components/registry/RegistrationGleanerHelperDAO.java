@@ -63,11 +63,11 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import javax.sql.DataSource;
-import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import esg.common.db.DatabaseResource;
+import esg.common.db.StatementRunner;
 
 /**
    Description:
@@ -79,7 +79,7 @@ public class RegistrationGleanerHelperDAO {
 
     private Properties props = null;
     private DataSource dataSource = null;
-    private QueryRunner queryRunner = null;
+    private StatementRunner queryRunner = null;
     private ResultSetHandler<Map<String,String>> attributeGroupsResultSetHandler = null;
     
     //-------------------------------------
@@ -103,7 +103,8 @@ public class RegistrationGleanerHelperDAO {
     public void setDataSource(DataSource dataSource) {
         log.trace("Helper, Setting Up RegistrationGleaners's Pooled Data Source");
         this.dataSource = dataSource;
-        this.queryRunner = new QueryRunner(dataSource);
+        this.queryRunner = new StatementRunner(dataSource);
+        queryRunner.register("RegistrationGleanerHelperDAO.attributeGroups",attributeGroupsQuery);
     }
     
     //Create handlers for query results
@@ -58,6 +58,10 @@
 /**
    Description:
    Base class for basic Data Access Objects.
+
+   Queries go through a StatementRunner: subclasses register their
+   fixed queries in init() (see registerStatement) so that each one is
+   counted and timed, and planned only once per pooled connection.
    
 **/
 package esg.node.core;
@@ -70,7 +74,6 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import javax.sql.DataSource;
 
-import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
 
 import org.apache.commons.logging.Log;
@@ -78,6 +81,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.*;
 
 import esg.common.Utils;
+import esg.common.db.StatementRunner;
 import esg.common.ESGInvalidObjectStateException;
 
 public abstract class ESGDAO implements Serializable {
@@ -85,7 +89,7 @@ public abstract class ESGDAO implements Serializable {
     private static final Log log = LogFactory.getLog(ESGDAO.class);
     
     protected DataSource dataSource = null;
-    private QueryRunner queryRunner = null;
+    private StatementRunner queryRunner = null;
     private String nodeID = null;
 
     public ESGDAO(DataSource dataSource, String nodeID) {
@@ -102,16 +106,21 @@ public abstract class ESGDAO implements Serializable {
     
     public final void setDataSource(DataSource dataSource) {
 	this.dataSource = dataSource;
-	this.queryRunner = new QueryRunner(dataSource);
+	this.queryRunner = new StatementRunner(dataSource);
     }
     protected final DataSource getDataSource() { return this.dataSource; }
-    protected final QueryRunner getQueryRunner() { return this.queryRunner; }
+    protected final StatementRunner getQueryRunner() { return this.queryRunner; }
     protected final void setNodeID(String nodeID) { this.nodeID = nodeID; }
     protected final String getNodeID() {
 	if(nodeID == null) throw new ESGInvalidObjectStateException("NodeID cannot be NULL!");
 	return nodeID; 
     }
 
+    //Registers one of the subclass' fixed queries (reported as <ClassName>.<name>)
+    protected final void registerStatement(String name, String sql) {
+	queryRunner.register(this.getClass().getSimpleName()+"."+name,sql);
+    }
+
     public abstract void init();
     protected abstract void buildResultSetHandler();
     
@@ -0,0 +1,123 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Holds the tuple of information that makes up one row of the
+   esgf_node_manager.access_logging table.  The ingress fields are
+   filled in when the download starts, the egress fields when the
+   response stream is closed.  Carrying the whole tuple around in one
+   object lets it be handed off to the write-behind machinery
+   (see AccessLoggingWriter) instead of being written on the request
+   thread.
+
+**/
+package esg.node.filters;
+
+public class AccessLogRecord {
+
+    //Ingress information...
+    public int    id = -1;
+    public String userID = null;
+    public String email = null;
+    public String url = null;
+    public String fileID = null;
+    public String remoteAddress = null;
+    public String userAgent = null;
+    public String serviceName = null;
+    public long   batchUpdateTime = 0L;
+    public long   dateFetched = 0L;
+
+    //Set once the ingress row is in the database (the id alone does
+    //not say so: it is taken from the allocator before the record is
+    //queued for insertion)
+    public volatile boolean inserted = false;
+
+    //Egress information...
+    public boolean success = false;
+    public long    duration = -1L;
+    public long    dataSize = -1L;
+    public long    xferSize = -1L;
+
+    public AccessLogRecord() { }
+
+    public AccessLogRecord(String userID,
+                           String email,
+                           String url,
+                           String fileID,
+                           String remoteAddress,
+                           String userAgent,
+                           String serviceName,
+                           long batchUpdateTime,
+                           long dateFetched) {
+        this.userID = userID;
+        this.email = email;
+        this.url = url;
+        this.fileID = fileID;
+        this.remoteAddress = remoteAddress;
+        this.userAgent = userAgent;
+        this.serviceName = serviceName;
+        this.batchUpdateTime = batchUpdateTime;
+        this.dateFetched = dateFetched;
+    }
+
+    public void setEgressInfo(boolean success, long duration, long dataSize, long xferSize) {
+        this.success = success;
+        this.duration = duration;
+        this.dataSize = dataSize;
+        this.xferSize = xferSize;
+    }
+
+    public String toString() {
+        return "id: ["+id+"] userID: ["+userID+"] url: ["+url+"] remoteAddress: ["+remoteAddress+"] service: ["+serviceName+"] "+
+            "dateFetched: ["+dateFetched+"] success: ["+success+"] duration: ["+duration+"] dataSize: ["+dataSize+"] xferSize: ["+xferSize+"]";
+    }
+}
@@ -0,0 +1,296 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Bulk ingest of access logging records with PostgreSQL's COPY,
+   used by AccessLoggingDAO's batched (write-behind) methods when
+   access.logging.writebehind.copy is on.
+
+   Ingress records are streamed straight into access_logging with
+   "COPY ... FROM STDIN", which costs the server far less per row
+   than even a batched INSERT.  COPY cannot update, so egress records
+   are streamed into the access_logging_egress staging table (see
+   schema migration 003) and merged into access_logging with a single
+   UPDATE ... FROM every so often (mergeEgress).
+
+   The driver's CopyManager (org.postgresql.copy, driver 8.4 and
+   later) is looked up reflectively so that the filters still run,
+   with the plain JDBC batches, against an older driver.  It needs the
+   driver's own connection, which the pool hands out only when access
+   to the underlying connection is allowed (DatabaseResource does).
+
+**/
+package esg.node.filters;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.DelegatingConnection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class AccessLoggingCopyIngest {
+
+    private static final Log log = LogFactory.getLog(AccessLoggingCopyIngest.class);
+
+    static final String ingressCopy =
+        "COPY esgf_node_manager.access_logging (id, user_id, user_id_hash, user_idp, email, url, file_id, remote_addr, user_agent, service_type, batch_update_time, date_fetched, success) FROM STDIN";
+    static final String completeCopy =
+        "COPY esgf_node_manager.access_logging (id, user_id, user_id_hash, user_idp, email, url, file_id, remote_addr, user_agent, service_type, batch_update_time, date_fetched, success, duration, data_size, xfer_size) FROM STDIN";
+    static final String egressCopy =
+        "COPY esgf_node_manager.access_logging_egress (id, success, duration, data_size, xfer_size) FROM STDIN";
+    private static final String egressLock =
+        "LOCK TABLE esgf_node_manager.access_logging_egress IN EXCLUSIVE MODE";
+    private static final String egressMerge =
+        "UPDATE esgf_node_manager.access_logging AS a SET success = s.success, duration = s.duration, data_size = s.data_size, xfer_size = s.xfer_size "+
+        "FROM esgf_node_manager.access_logging_egress AS s WHERE a.id = s.id";
+    private static final String egressClear =
+        "DELETE FROM esgf_node_manager.access_logging_egress";
+
+    private final DataSource dataSource;
+    private final long mergeIntervalMillis;
+    private Method getCopyAPI = null;
+    private Method copyIn = null;
+    private long lastMerge = System.currentTimeMillis();
+    private int numStaged = 0;
+
+    public AccessLoggingCopyIngest(DataSource dataSource, long mergeIntervalMillis) {
+        this.dataSource = dataSource;
+        this.mergeIntervalMillis = Math.max(0L,mergeIntervalMillis);
+        try{
+            ClassLoader loader = AccessLoggingCopyIngest.class.getClassLoader();
+            getCopyAPI = Class.forName("org.postgresql.PGConnection",true,loader).getMethod("getCopyAPI");
+            copyIn = Class.forName("org.postgresql.copy.CopyManager",true,loader).getMethod("copyIn",String.class,Reader.class);
+        }catch(Exception e) {
+            log.warn("PostgreSQL CopyManager is not available (driver 8.4 or later is needed), COPY ingest disabled: "+e);
+            getCopyAPI = null;
+            copyIn = null;
+        }
+    }
+
+    public boolean isAvailable() { return (copyIn != null); }
+
+    //------------------------------------
+    //Ingress...
+    //------------------------------------
+
+    /**
+       COPYs the given (already id'd) records into access_logging.  As
+       COPY is all or nothing, either all of them are in or none.
+
+       @return The number of rows copied
+    */
+    public int copyIngress(List<AccessLogRecord> records, AccessLoggingDAO dao) throws SQLException {
+        return copy(ingressCopy,rows(records,dao,false));
+    }
+
+    /**
+       As copyIngress, but with the egress information too (for the
+       deferred mode, see AccessLoggingInFlight).
+    */
+    public int copyComplete(List<AccessLogRecord> records, AccessLoggingDAO dao) throws SQLException {
+        return copy(completeCopy,rows(records,dao,true));
+    }
+
+    private StringBuilder rows(List<AccessLogRecord> records, AccessLoggingDAO dao, boolean complete) {
+        StringBuilder sb = new StringBuilder(records.size()*256);
+        for(AccessLogRecord r : records) {
+            field(sb,r.id).append('\t');
+            field(sb,r.userID).append('\t');
+            field(sb,dao.hashUserID(r.userID)).append('\t');
+            field(sb,dao.userIdp(r.userID)).append('\t');
+            field(sb,r.email).append('\t');
+            field(sb,dao.strip(r.url)).append('\t');
+            field(sb,r.fileID).append('\t');
+            field(sb,r.remoteAddress).append('\t');
+            field(sb,r.userAgent).append('\t');
+            field(sb,r.serviceName).append('\t');
+            sb.append(r.batchUpdateTime).append('\t');
+            sb.append(r.dateFetched).append('\t');
+            if(complete) {
+                sb.append(r.success ? 't' : 'f').append('\t');
+                sb.append(r.duration).append('\t');
+                sb.append(r.dataSize).append('\t');
+                sb.append(r.xferSize).append('\n');
+            }else {
+                sb.append('f').append('\n');
+            }
+        }
+        return sb;
+    }
+
+    //------------------------------------
+    //Egress...
+    //------------------------------------
+
+    /**
+       COPYs the egress information of the given records into the
+       staging table, to be merged by mergeEgress.  Records without a
+       valid id are skipped.
+
+       @return The number of rows staged
+    */
+    public int copyEgress(List<AccessLogRecord> records) throws SQLException {
+        StringBuilder sb = new StringBuilder(records.size()*48);
+        int n = 0;
+        for(AccessLogRecord r : records) {
+            if(r.id <= 0) continue;
+            sb.append(r.id).append('\t');
+            sb.append(r.success ? 't' : 'f').append('\t');
+            sb.append(r.duration).append('\t');
+            sb.append(r.dataSize).append('\t');
+            sb.append(r.xferSize).append('\n');
+            n++;
+        }
+        if(n == 0) return 0;
+        int staged = copy(egressCopy,sb);
+        synchronized(this) { numStaged += staged; }
+        return staged;
+    }
+
+    /**
+       Applies the staged egress rows to access_logging and empties the
+       staging table, in one transaction.  Unless forced, does nothing
+       until the merge interval has elapsed since the last merge.
+
+       @return The number of access_logging rows updated
+    */
+    public synchronized int mergeEgress(boolean force) throws SQLException {
+        long now = System.currentTimeMillis();
+        if(numStaged == 0 || (!force && (now - lastMerge) < mergeIntervalMillis)) return 0;
+        lastMerge = now;
+        Connection conn = null;
+        Statement stmt = null;
+        try{
+            conn = dataSource.getConnection();
+            conn.setAutoCommit(false);
+            stmt = conn.createStatement();
+            //Keep other writers' COPYs out between the update and the delete
+            stmt.execute(egressLock);
+            int updated = stmt.executeUpdate(egressMerge);
+            stmt.executeUpdate(egressClear);
+            conn.commit();
+            numStaged = 0;
+            if(log.isDebugEnabled()) log.debug("Merged staged egress records: "+updated);
+            return updated;
+        }catch(SQLException e) {
+            if(conn != null) try{ conn.rollback(); }catch(SQLException ignore) { }
+            throw e;
+        }finally{
+            if(stmt != null) try{ stmt.close(); }catch(SQLException ignore) { }
+            if(conn != null) {
+                try{ conn.setAutoCommit(true); }catch(SQLException ignore) { }
+                try{ conn.close(); }catch(SQLException ignore) { }
+            }
+        }
+    }
+
+    //------------------------------------
+    //Internals...
+    //------------------------------------
+
+    private int copy(String sql, CharSequence rows) throws SQLException {
+        if(!isAvailable()) throw new SQLException("COPY ingest is not available");
+        Connection conn = null;
+        try{
+            conn = dataSource.getConnection();
+            Connection pgConn = conn;
+            if(conn instanceof DelegatingConnection) {
+                pgConn = ((DelegatingConnection)conn).getInnermostDelegate();
+                if(pgConn == null) throw new SQLException("Access to the driver's connection is not allowed by the pool");
+            }
+            Object copyManager = getCopyAPI.invoke(pgConn);
+            return (int)((Number)copyIn.invoke(copyManager,sql,new StringReader(rows.toString()))).longValue();
+        }catch(InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof SQLException) throw (SQLException)cause;
+            throw new SQLException("COPY failed: "+cause,cause);
+        }catch(IllegalAccessException e) {
+            throw new SQLException("COPY failed: "+e,e);
+        }finally{
+            if(conn != null) try{ conn.close(); }catch(SQLException ignore) { }
+        }
+    }
+
+    private static StringBuilder field(StringBuilder sb, int value) { return sb.append(value); }
+
+    //COPY text format: \N for null, backslash escapes for the
+    //delimiter, line breaks and the backslash itself
+    static StringBuilder field(StringBuilder sb, String value) {
+        if(value == null) return sb.append("\\N");
+        for(int i=0;i<value.length();i++) {
+            char c = value.charAt(i);
+            switch(c) {
+            case '\\': sb.append("\\\\"); break;
+            case '\t': sb.append("\\t"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            default: sb.append(c);
+            }
+        }
+        return sb;
+    }
+
+    public String toString() {
+        return "AccessLoggingCopyIngest: [available="+isAvailable()+", staged="+numStaged+", mergeInterval="+mergeIntervalMillis+"ms]";
+    }
+}
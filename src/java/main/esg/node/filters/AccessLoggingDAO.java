@@ -63,58 +63,52 @@
 package esg.node.filters;
 
 import java.io.Serializable;
+import java.util.List;
+import java.util.ArrayList;
 import java.util.Properties;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import javax.sql.DataSource;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
-import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
 
+import esg.common.db.StatementRunner;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.*;
 
-import esg.common.QuickHash;
 
 public class AccessLoggingDAO implements Serializable {
 
     //TODO figure out what these queries should be!
-    private static final String getNextPrimaryKeyValQuery = "select nextval('esgf_node_manager.access_logging_id_seq')";
+    private static final String getNextPrimaryKeyValsQuery = "select nextval('esgf_node_manager.access_logging_id_seq') from generate_series(1,?)";
     private static final String accessLoggingIngressQuery = 
         "insert into esgf_node_manager.access_logging (id, user_id, user_id_hash, user_idp, email, url, file_id, remote_addr, user_agent, service_type, batch_update_time, date_fetched, success) "+
         "values ( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String accessLoggingCompleteQuery = 
+        "insert into esgf_node_manager.access_logging (id, user_id, user_id_hash, user_idp, email, url, file_id, remote_addr, user_agent, service_type, batch_update_time, date_fetched, success, duration, data_size, xfer_size) "+
+        "values ( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String accessLoggingEgressQuery = 
         "update esgf_node_manager.access_logging set success = ?, duration = ?, data_size = ?, xfer_size = ? where id = ?";
     
     private static final Log log = LogFactory.getLog(AccessLoggingDAO.class);
 
-    //URL Pattern: "http[s]?://([^:/]*)(:(?:[0-9]*))?/(.*/)*(.*$)"
-    //group 1 = host <<---what we want
-    //group 2 = port
-    //group 3 = path
-    //group 4 = file
-    //We want to pull out group1, the host
-    //userid = openid
-    private static final String  regex      = "http[s]?://([^:/]*)(:(?:[0-9]*))?/(.*/)*(.*$)";
-    private static final Pattern urlPattern = Pattern.compile(regex,Pattern.CASE_INSENSITIVE);
     private static final String  stripRegex = "http[s]?://([^:/]*)(:(?:[0-9]*))?/thredds/fileServer/(.*$)";
     private static final Pattern urlStripPattern = Pattern.compile(stripRegex,Pattern.CASE_INSENSITIVE);
     
     private DataSource dataSource = null;
-    private QueryRunner queryRunner = null;
-    private ResultSetHandler<Integer> idResultSetHandler = null;
-    private QuickHash quickHash = null;
+    private StatementRunner queryRunner = null;
+    private ResultSetHandler<int[]> idsResultSetHandler = null;
+    private AccessLoggingIdAllocator idAllocator = null;
+    private volatile UserInfoCache userInfoCache = new UserInfoCache(10000);
+    private volatile AccessLoggingCopyIngest copyIngest = null;
     
     public AccessLoggingDAO(DataSource dataSource) {
         this.setDataSource(dataSource);
-        try{
-            this.quickHash = new QuickHash("SHA1");
-        }catch(java.security.NoSuchAlgorithmException e) {
-            log.error(e);
-        }
     }
     
     //Not preferred constructor but here for serialization requirement.
@@ -125,18 +119,70 @@ public class AccessLoggingDAO implements Serializable {
     
     public void setDataSource(DataSource dataSource) {
         this.dataSource = dataSource;
-        this.queryRunner = new QueryRunner(dataSource);
-        this.idResultSetHandler = new ResultSetHandler<Integer>() {
-		    public Integer handle(ResultSet rs) throws SQLException {
-                if(!rs.next()) { return -1; }
-                return rs.getInt(1);
-		    }
-		};
-        
+        this.queryRunner = new StatementRunner(dataSource);
+        queryRunner.register("AccessLoggingDAO.getNextPrimaryKeyVals",getNextPrimaryKeyValsQuery);
+        queryRunner.register("AccessLoggingDAO.ingress",accessLoggingIngressQuery);
+        queryRunner.register("AccessLoggingDAO.egress",accessLoggingEgressQuery);
+        queryRunner.register("AccessLoggingDAO.complete",accessLoggingCompleteQuery);
+        this.idsResultSetHandler = new ResultSetHandler<int[]>() {
+            public int[] handle(ResultSet rs) throws SQLException {
+                ArrayList<Integer> ids = new ArrayList<Integer>();
+                while(rs.next()) { ids.add(rs.getInt(1)); }
+                int[] out = new int[ids.size()];
+                for(int i=0;i<out.length;i++) { out[i] = ids.get(i); }
+                return out;
+            }
+        };
+        this.idAllocator = new AccessLoggingIdAllocator(this,(idAllocator == null) ? 50 : idAllocator.getBlockSize());
+    }
+
+    /**
+       Sets how many primary keys are reserved from the database at a
+       time.  A block size of 1 makes every ingress go to the sequence.
+    */
+    public void setIdBlockSize(int blockSize) { idAllocator.setBlockSize(blockSize); }
+
+    //How many users' hash and IdP are remembered (see UserInfoCache)
+    public void setUserCacheSize(int size) { userInfoCache = new UserInfoCache(size); }
+
+    /**
+       Switches the batched methods over to COPY (see
+       AccessLoggingCopyIngest), if the driver supports it.
+
+       @param mergeIntervalMillis How often staged egress records are merged
+       @return true if COPY ingest is now in use
+    */
+    public synchronized boolean enableCopyIngest(long mergeIntervalMillis) {
+        AccessLoggingCopyIngest ingest = new AccessLoggingCopyIngest(dataSource,mergeIntervalMillis);
+        copyIngest = ingest.isAvailable() ? ingest : null;
+        return (copyIngest != null);
+    }
+    public boolean isCopyIngestEnabled() { return (copyIngest != null); }
+
+    /**
+       @return The next primary key for an access_logging record,
+       usually without touching the database (-1 on failure)
+    */
+    public int nextID() { return idAllocator.nextID(); }
+
+    /**
+       Reserves a number of values from the access_logging_id_seq
+       sequence in a single round trip.
+
+       @param count The number of keys to reserve
+       @return The reserved keys (empty if the reservation failed)
+    */
+    int[] reservePrimaryKeys(int count) {
+        try{
+            return queryRunner.query(getNextPrimaryKeyValsQuery,idsResultSetHandler,count);
+        }catch(SQLException ex) {
+            log.error(ex);
+        }
+        return new int[0];
     }
     
     //(NOTE: The variable serviceName maps to database field service_type)
-    public synchronized int logIngressInfo(String userID,  
+    public int logIngressInfo(String userID,  
                               String email, 
                               String url, 
                               String fileID, 
@@ -145,25 +191,70 @@ public class AccessLoggingDAO implements Serializable {
                               String serviceName, 
                               long batchUpdateTime,
                               long dateFetched) {
-        int id = -1;
+        return logIngressInfo(-1,userID,email,url,fileID,remoteAddress,userAgent,serviceName,batchUpdateTime,dateFetched);
+    }
+
+    public int logIngressInfo(AccessLogRecord r) {
+        return (r.id = logIngressInfo(r.id,r.userID,r.email,r.url,r.fileID,r.remoteAddress,r.userAgent,r.serviceName,r.batchUpdateTime,r.dateFetched));
+    }
+
+    //If the id passed in is not valid the next one is taken from the allocator
+    private int logIngressInfo(int id,
+                               String userID,  
+                               String email, 
+                               String url, 
+                               String fileID, 
+                               String remoteAddress, 
+                               String userAgent, 
+                               String serviceName, 
+                               long batchUpdateTime,
+                               long dateFetched) {
         int numRecordsInserted = -1;
         try{
-            //fetch the next value to use as the primary key for this record
-            id = queryRunner.query(getNextPrimaryKeyValQuery,idResultSetHandler);
+            //the primary key comes from the block of pre-reserved sequence values
+            if(id <= 0) id = idAllocator.nextID();
+            if(id <= 0) return -1;
 
             //TODO: Perhaps the url can be used to resolve the dataset???
             //That is the bit of information we really want to also have.
             //What we really need is an absolute id for a file!!!
-            log.info("logging issuing:\n queryRunner.update(accessLoggingIngressQuery,\n"+id+",\n"+userID+",\n"+quickHash.sum(userID)+",\n"+userIdp(userID)+",\n"+email+",\n"+strip(url)+",\n"+fileID+",\n"+remoteAddress+",\n"+userAgent+",\n"+serviceName+",\n"+batchUpdateTime+",\n"+dateFetched+",\n"+false+");");
+            UserInfoCache.UserInfo user = userInfoCache.get(userID);
+            if(log.isDebugEnabled()) log.debug("logging issuing:\n queryRunner.update(accessLoggingIngressQuery,\n"+id+",\n"+userID+",\n"+user.hash+",\n"+user.idp+",\n"+email+",\n"+strip(url)+",\n"+fileID+",\n"+remoteAddress+",\n"+userAgent+",\n"+serviceName+",\n"+batchUpdateTime+",\n"+dateFetched+",\n"+false+");");
             numRecordsInserted = queryRunner.update(accessLoggingIngressQuery,
-                                                    id,userID,quickHash.sum(userID),userIdp(userID),email,strip(url),fileID,remoteAddress,userAgent,serviceName,batchUpdateTime,dateFetched,false);
-            log.info("numRecordsInserted: "+numRecordsInserted);
+                                                    id,userID,user.hash,user.idp,email,strip(url),fileID,remoteAddress,userAgent,serviceName,batchUpdateTime,dateFetched,false);
+            if(log.isDebugEnabled()) log.debug("numRecordsInserted: "+numRecordsInserted);
         }catch(SQLException ex) {
             log.error(ex);
         }
         return (numRecordsInserted > 0) ? id : -1;
     }
     
+    /**
+       Inserts a whole record, ingress and egress information, in one
+       statement (the deferred mode, see AccessLoggingInFlight).
+
+       @return The id of the inserted row, -1 if it was not inserted
+    */
+    public int logCompleteInfo(AccessLogRecord r) {
+        int numRecordsInserted = -1;
+        try{
+            if(r.id <= 0) r.id = idAllocator.nextID();
+            if(r.id <= 0) return -1;
+            numRecordsInserted = queryRunner.update(accessLoggingCompleteQuery,completeParams(r));
+            if(log.isDebugEnabled()) log.debug("numRecordsInserted (complete): "+numRecordsInserted);
+        }catch(SQLException ex) {
+            log.error(ex);
+        }
+        return (numRecordsInserted > 0) ? r.id : -1;
+    }
+
+    private Object[] completeParams(AccessLogRecord r) {
+        UserInfoCache.UserInfo user = userInfoCache.get(r.userID);
+        return new Object[] { r.id, r.userID, user.hash, user.idp, r.email,
+                              strip(r.url), r.fileID, r.remoteAddress, r.userAgent, r.serviceName,
+                              r.batchUpdateTime, r.dateFetched, r.success, r.duration, r.dataSize, r.xferSize };
+    }
+
     //Upon egress update the ingress record with additional
     //information that can only be obtained on egress of the filter
     //this information is duration (though I am skeptical that it
@@ -185,23 +276,152 @@ public class AccessLoggingDAO implements Serializable {
         return ret;
     }
 
-    //NOTE: w.r.t performance... we could move the Matcher off the
-    //stack on make it final on the heap so we don't have to
-    //instantiate it per call.  That may be faster ,but at the cost of
-    //concurrency since we would then have to make this static.
-    //However, right now the call to logIngressInfo that calls this is
-    //sync'd so we could sync this to and there won't be any extra
-    //penalty.  Think about it... Right now let's save optimization
-    //for later. -gavin
-    private String userIdp(String userid) {
-        String idpHostname = "<no-idp>";
-        Matcher m = urlPattern.matcher(userid);
-        if(m.find()) idpHostname=m.group(1);
-        return idpHostname;
+    //------------------------------------
+    //Batched (write-behind) variants...
+    //------------------------------------
+
+    /**
+       Inserts the ingress information of all the given records in a
+       single JDBC batch.  Records that do not have a primary key yet
+       are given one from the id allocator, so that the subsequent
+       egress batch can find them.  Records that could not be inserted
+       get an id of -1.  With COPY ingest they are all copied in one go
+       (and either all make it or none).
+
+       @param records The records to insert
+       @return The number of records inserted
+    */
+    public synchronized int logIngressInfoBatch(List<AccessLogRecord> records) {
+        if(records.isEmpty()) return 0;
+        int numRecordsInserted = 0;
+        try{
+            List<AccessLogRecord> batched = new ArrayList<AccessLogRecord>(records.size());
+            List<Object[]> params = new ArrayList<Object[]>(records.size());
+            for(AccessLogRecord record : records) {
+                if(record.id <= 0) record.id = idAllocator.nextID();
+                if(record.id <= 0) continue;
+                batched.add(record);
+                if(copyIngest != null) continue;
+                UserInfoCache.UserInfo user = userInfoCache.get(record.userID);
+                params.add(new Object[] { record.id, record.userID, user.hash, user.idp, record.email,
+                                          strip(record.url), record.fileID, record.remoteAddress, record.userAgent, record.serviceName,
+                                          record.batchUpdateTime, record.dateFetched, false });
+            }
+            if(batched.isEmpty()) return 0;
+            if(copyIngest != null) {
+                numRecordsInserted = copyIngest.copyIngress(batched,this);
+                if(log.isDebugEnabled()) log.debug("numRecordsInserted (copy): "+numRecordsInserted);
+                return numRecordsInserted;
+            }
+            int[] results = queryRunner.batch(accessLoggingIngressQuery,params.toArray(new Object[params.size()][]));
+            int i = 0;
+            for(AccessLogRecord record : batched) {
+                if(results[i++] == Statement.EXECUTE_FAILED) { record.id = -1; }
+                else { numRecordsInserted++; }
+            }
+            if(log.isDebugEnabled()) log.debug("numRecordsInserted (batch): "+numRecordsInserted);
+        }catch(SQLException ex) {
+            log.error(ex);
+            for(AccessLogRecord record : records) { record.id = -1; }
+        }
+        return numRecordsInserted;
+    }
+
+    /**
+       Updates the egress information of all the given records in a
+       single JDBC batch.  Records without a valid id (never made it
+       into the database on ingress) are skipped.  With COPY ingest the
+       records are staged instead, and merged every so often.
+
+       @param records The records to update
+       @return The number of records updated
+    */
+    public int logEgressInfoBatch(List<AccessLogRecord> records) {
+        if(copyIngest != null) {
+            try{
+                int numRecordsStaged = copyIngest.copyEgress(records);
+                copyIngest.mergeEgress(false);
+                return numRecordsStaged;
+            }catch(SQLException ex) {
+                log.error(ex);
+                return 0;
+            }
+        }
+        ArrayList<Object[]> params = new ArrayList<Object[]>(records.size());
+        for(AccessLogRecord record : records) {
+            if(record.id <= 0) continue;
+            params.add(new Object[] { record.success, record.duration, record.dataSize, record.xferSize, record.id });
+        }
+        if(params.isEmpty()) return 0;
+        int numRecordsUpdated = 0;
+        try{
+            int[] results = queryRunner.batch(accessLoggingEgressQuery,params.toArray(new Object[params.size()][]));
+            for(int result : results) {
+                if(result != Statement.EXECUTE_FAILED) numRecordsUpdated++;
+            }
+        }catch(SQLException ex) {
+            log.error(ex);
+        }
+        return numRecordsUpdated;
     }
 
+    /**
+       Inserts all the given whole records (see logCompleteInfo) in a
+       single JDBC batch, or COPY.  Records that could not be inserted
+       get an id of -1.
+
+       @param records The records to insert
+       @return The number of records inserted
+    */
+    public synchronized int logCompleteInfoBatch(List<AccessLogRecord> records) {
+        if(records.isEmpty()) return 0;
+        int numRecordsInserted = 0;
+        try{
+            List<AccessLogRecord> batched = new ArrayList<AccessLogRecord>(records.size());
+            for(AccessLogRecord record : records) {
+                if(record.id <= 0) record.id = idAllocator.nextID();
+                if(record.id > 0) batched.add(record);
+            }
+            if(batched.isEmpty()) return 0;
+            if(copyIngest != null) return copyIngest.copyComplete(batched,this);
+            Object[][] params = new Object[batched.size()][];
+            for(int i=0; i < params.length; i++) params[i] = completeParams(batched.get(i));
+            int[] results = queryRunner.batch(accessLoggingCompleteQuery,params);
+            int i = 0;
+            for(AccessLogRecord record : batched) {
+                if(results[i++] == Statement.EXECUTE_FAILED) { record.id = -1; }
+                else { numRecordsInserted++; }
+            }
+        }catch(SQLException ex) {
+            log.error(ex);
+            for(AccessLogRecord record : records) { record.id = -1; }
+            return 0;
+        }
+        return numRecordsInserted;
+    }
+
+    /**
+       Merges the egress records staged by COPY ingest into
+       access_logging, if the merge interval has elapsed (or always if
+       forced).  Does nothing unless COPY ingest is in use.
+    */
+    public int mergeStagedEgress(boolean force) {
+        if(copyIngest == null) return 0;
+        try{
+            return copyIngest.mergeEgress(force);
+        }catch(SQLException ex) {
+            log.error(ex);
+            return 0;
+        }
+    }
+
+    String hashUserID(String userID) { return userInfoCache.hash(userID); }
+
+    //The IdP host out of the user's openid (remembered per user, see UserInfoCache)
+    String userIdp(String userid) { return userInfoCache.idp(userid); }
+
     //pulls off the first
-    private String strip(String url) {
+    String strip(String url) {
         String strippedUrl = url;
         Matcher m = urlStripPattern.matcher(url);
         if(m.find()) strippedUrl=m.group(3);
@@ -59,6 +59,7 @@
   <filter>
     <filter-name>AccessLoggingFilter</filter-name>
     <filter-class>esg.node.filters.AccessLoggingFilter</filter-class>
+    <async-supported>true</async-supported>
     <!--
     <init-param>
       <param-name>db.driver</param-name>
@@ -111,6 +112,61 @@
     <url-pattern>/*</url-pattern>
   </filter-mapping>
 
+  Optional parameters (as init-params or in esgf.properties):
+
+  access.logging.id.block.size          - number of primary keys reserved from the database at a time (default 50)
+  access.logging.user.cache.size        - number of users whose id hash and IdP host are remembered (default 10000)
+  access.logging.filesize.cache.size    - number of download file sizes remembered, 0 to disable (default 10000)
+  access.logging.filesize.cache.ttl     - how long (ms) a file size is remembered (default 60000)
+  access.logging.filesize.cache.watch   - true to forget sizes of files as soon as they change (default false)
+  access.logging.filesize.cache.watch.max - max number of directories watched for changes (default 1000)
+  access.logging.stream.buffer.size     - bytes buffered by the counting stream, 0 for pass-through (default 0)
+  access.logging.sendfile               - true to let Tomcat sendfile large downloads (default false).  This gives
+                                           up the accounting of those downloads: Tomcat will not sendfile a counted
+                                           (wrapped) response, so they are logged with an xfer_size of -1
+                                           (unverified) and success false, whether or not they completed
+  access.logging.sendfile.paths         - comma separated request paths (under the context, ex: /static/) served by a
+                                           servlet that sendfiles, such as Tomcat's DefaultServlet or the DRS filter's
+                                           stream mode.  Only those are left unwrapped; everything else (THREDDS'
+                                           fileServer streams its responses itself) is counted as usual (default none)
+  access.logging.sendfile.min.size      - smallest file Tomcat will sendfile, its sendfileSize (default 49152)
+  access.logging.writebehind.enabled     - true to write log records from a background thread (default false)
+  access.logging.writebehind.capacity    - max number of records queued in memory (default 10000)
+  access.logging.writebehind.batch.size  - max number of records written per JDBC batch (default 100)
+  access.logging.writebehind.flush.interval - max time (ms) a record waits before being flushed (default 1000)
+  access.logging.writebehind.overflow    - block | drop | sync, what to do when the queue is full (default block)
+  access.logging.writebehind.copy        - true to write the batches with COPY rather than INSERT/UPDATE (default false),
+                                           needs driver 8.4+ and schema migration 003, see AccessLoggingCopyIngest
+  access.logging.writebehind.copy.merge.interval - max time (ms) between merges of the staged egress records (default 5000)
+  access.logging.deferred                - true to write each record once, whole, when the download ends, rather than
+                                           inserting it at the start and updating it at the end (default false),
+                                           see AccessLoggingInFlight
+  access.logging.deferred.abandon.timeout - time (ms) after which a download that has not ended is logged as
+                                           unsuccessful (default 21600000, 6 hours)
+  access.logging.deferred.reap.interval  - how often (ms) to look for abandoned downloads and snapshot the ones
+                                           in flight (default 60000)
+  access.logging.spool                   - true to append the records to a local spool that is drained into the
+                                           database in the background (default false), implies access.logging.deferred,
+                                           see AccessLoggingSpool
+  access.logging.spool.dir               - where the spool lives (default $ESGF_HOME/log/access_logging_spool)
+  access.logging.spool.segment.size      - size (bytes) of a spool segment file (default 16777216)
+  access.logging.spool.batch.size        - max number of records drained per batch (default 500)
+  access.logging.spool.poll.interval     - time (ms) between drains when the spool is empty (default 1000)
+  access.logging.spool.max.segments      - max number of segments in the spool, when it is full records are
+                                           written directly until it has drained (default 64)
+  access.logging.spool.max.attempts      - failed attempts at a batch before it is retried record by record, records
+                                           that still fail are moved to the spool's rejects file (default 5)
+  access.logging.log.async               - true to write the filters' log messages from a background thread (default false)
+  access.logging.log.async.capacity      - max number of log messages queued, further messages are dropped (default 10000)
+  access.logging.trace                   - true to log one structured line per logged request, at INFO (default false)
+  access.logging.metrics.jmx             - true to publish the filter latencies and counters over JMX (default true),
+                                           see FilterMetrics and FilterMetricsServlet
+  access.logging.live                    - true to keep live download counts in memory, published over JMX (with
+                                           access.logging.metrics.jmx) for ESGMetrics (default true), see DownloadAggregator
+  access.logging.live.max.keys           - max number of projects/experiments, projects/models and users counted
+                                           separately, each (default 10000)
+  db.pool.*                              - connection pool tuning, see DatabaseResource
+
 **/
 package esg.node.filters;
 
@@ -119,8 +175,11 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.util.Properties;
 import java.util.Map;
-import java.util.regex.*;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -130,8 +189,6 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.*;
 
 import esg.common.db.DatabaseResource;
@@ -141,31 +198,64 @@ public class AccessLoggingFilter implements Filter {
     
     final static String AUTHORIZATION_REQUEST_ATTRIBUTE = "eske.model.security.AuthorizationToken"; // legacy value compatible with old TDS filter
 
-    private static Log log = LogFactory.getLog(AccessLoggingFilter.class);
+    //Set on the requests this filter logs, for the filters behind it to see (ResolvedResourceServer)
+    final static String LOGGED_REQUEST_ATTRIBUTE = "esg.accesslogging.logged";
+
+    //Tomcat's sendfile request attributes (org.apache.catalina.Globals)
+    final static String SENDFILE_SUPPORTED_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    final static String SENDFILE_FILENAME_ATTRIBUTE  = "org.apache.tomcat.sendfile.filename";
+    final static String SENDFILE_START_ATTRIBUTE     = "org.apache.tomcat.sendfile.start";
+    final static String SENDFILE_END_ATTRIBUTE       = "org.apache.tomcat.sendfile.end";
+
+    //The xfer_size of a download whose bytes could not be counted
+    final static long UNVERIFIED = -1L;
+
+    private static final FilterLog log = FilterLog.getLog(AccessLoggingFilter.class);
+    private static final FilterMetrics metrics = FilterMetrics.getInstance();
     
     FilterConfig filterConfig = null;
     AccessLoggingDAO accessLoggingDAO = null;
     Properties dbProperties = null;
-    private Pattern urlExtensionPattern = null;
-    private Pattern exemptUrlPattern = null;
-    private Pattern exemptServicePattern = null;
-    private Pattern mountedPathPattern;
-    private Pattern urlPattern = null;
+    private UrlClassifier urlClassifier = null;
     private MountedPathResolver mpResolver = null;
     private String serviceName = null;
+    private ESGFProperties esgfProperties = null;
+    private AccessLoggingWriter accessLoggingWriter = null;
+    private AccessLoggingInFlight inFlight = null;
+    private AccessLoggingSpool accessLoggingSpool = null;
+    private DownloadAggregator downloadAggregator = null;
+    private FileSizeCache fileSizeCache = null;
+    private int streamBufferSize = 0;
+    private boolean useSendfile = false;
+    private long sendfileMinSize = 48*1024;
+    private String[] sendfilePaths = new String[0];
+    private final AtomicBoolean warnedNotSendfiled = new AtomicBoolean(false);
+    private boolean jmxRegistered = false;
 
 
     public void init(FilterConfig filterConfig) throws ServletException {
-        System.out.println("Initializing filter: "+this.getClass().getName());
+        log.info("Initializing filter: {}",this.getClass().getName());
         this.filterConfig = filterConfig;
-        ESGFProperties esgfProperties = null;
         try{
             esgfProperties = new ESGFProperties();
         }catch (java.io.IOException e) { e.printStackTrace(); log.error(e); }
+
+        //------------------------------------------------------------------------
+        // How the filters log (see FilterLog)...
+        //------------------------------------------------------------------------
+        if(Boolean.valueOf(getParameter("access.logging.log.async","false"))) {
+            FilterLog.startAsync(Integer.parseInt(getParameter("access.logging.log.async.capacity","10000")));
+        }
+        FilterLog.setRequestTraceEnabled(Boolean.valueOf(getParameter("access.logging.trace","false")));
+        if(Boolean.valueOf(getParameter("access.logging.metrics.jmx","true"))) {
+            FilterMetrics.register();
+            jmxRegistered = true;
+        }
+
         String value = null;
         dbProperties = new Properties();
-        log.debug("FilterConfig is : ["+filterConfig+"]");
-        log.debug("db.protocol is  : ["+filterConfig.getInitParameter("db.protocol")+"]");
+        log.debug("FilterConfig is : [{}]",filterConfig);
+        log.debug("db.protocol is  : [{}]",filterConfig.getInitParameter("db.protocol"));
         dbProperties.put("db.protocol",((null != (value = filterConfig.getInitParameter("db.protocol"))) ? value : esgfProperties.getProperty("db.protocol"))); value = null;
         dbProperties.put("db.host",((null != (value = filterConfig.getInitParameter("db.host"))) ? value : esgfProperties.getProperty("db.host"))); value = null;
         dbProperties.put("db.port",((null != (value = filterConfig.getInitParameter("db.port"))) ? value : esgfProperties.getProperty("db.port"))); value = null;
@@ -173,14 +263,73 @@ public class AccessLoggingFilter implements Filter {
         dbProperties.put("db.user",((null != (value = filterConfig.getInitParameter("db.user"))) ? value : esgfProperties.getProperty("db.user"))); value = null;
         dbProperties.put("db.password",((null != (value = filterConfig.getInitParameter("db.password"))) ? value : esgfProperties.getDatabasePassword())); value = null;
         dbProperties.put("db.driver",((null != (value = filterConfig.getInitParameter("db.driver"))) ? value : esgfProperties.getProperty("db.driver","org.postgresql.Driver"))); value = null;
+        //connection pool tuning (see DatabaseResource), init-params win over esgf.properties
+        for(String name : esgfProperties.stringPropertyNames()) {
+            if(name.startsWith("db.pool.")) dbProperties.put(name,esgfProperties.getProperty(name));
+        }
+        for(Enumeration<String> names = filterConfig.getInitParameterNames(); names.hasMoreElements();) {
+            String name = names.nextElement();
+            if(name.startsWith("db.pool.")) dbProperties.put(name,filterConfig.getInitParameter(name));
+        }
         
         serviceName = (null != (value = filterConfig.getInitParameter("service.name"))) ? value : "thredds"; value = null;
         
-        log.debug("Database parameters: "+dbProperties);
+        log.debug("Database parameters: {}",dbProperties);
 
         DatabaseResource.init(dbProperties.getProperty("db.driver","org.postgresql.Driver")).setupDataSource(dbProperties);
         DatabaseResource.getInstance().showDriverStats();
         accessLoggingDAO = new AccessLoggingDAO(DatabaseResource.getInstance().getDataSource());
+        accessLoggingDAO.setIdBlockSize(Integer.parseInt(getParameter("access.logging.id.block.size","50")));
+        accessLoggingDAO.setUserCacheSize(Integer.parseInt(getParameter("access.logging.user.cache.size","10000")));
+
+        //------------------------------------------------------------------------
+        // Write-behind: hand records off to a background writer that
+        // batches them, instead of writing on the request thread...
+        //------------------------------------------------------------------------
+        if(Boolean.valueOf(getParameter("access.logging.writebehind.enabled","false"))) {
+            if(Boolean.valueOf(getParameter("access.logging.writebehind.copy","false"))) {
+                if(accessLoggingDAO.enableCopyIngest(Long.parseLong(getParameter("access.logging.writebehind.copy.merge.interval","5000")))) {
+                    log.info("Access logging batches are written with COPY");
+                }
+            }
+            accessLoggingWriter = 
+                new AccessLoggingWriter(accessLoggingDAO,
+                                        Integer.parseInt(getParameter("access.logging.writebehind.capacity","10000")),
+                                        Integer.parseInt(getParameter("access.logging.writebehind.batch.size","100")),
+                                        Long.parseLong(getParameter("access.logging.writebehind.flush.interval","1000")),
+                                        AccessLoggingWriter.OverflowPolicy.valueOf(getParameter("access.logging.writebehind.overflow","block").toUpperCase()));
+            accessLoggingWriter.start();
+        }
+
+        //------------------------------------------------------------------------
+        // Deferred: one whole row per download, written when it ends...
+        //------------------------------------------------------------------------
+        boolean spooled = Boolean.valueOf(getParameter("access.logging.spool","false"));
+        if(spooled || Boolean.valueOf(getParameter("access.logging.deferred","false"))) {
+            inFlight = new AccessLoggingInFlight(accessLoggingDAO,accessLoggingWriter,
+                                                 Long.parseLong(getParameter("access.logging.deferred.abandon.timeout","21600000")),
+                                                 Long.parseLong(getParameter("access.logging.deferred.reap.interval","60000")));
+            if(spooled) {
+                String esgfHome = System.getenv("ESGF_HOME");
+                File spoolDir = new File(getParameter("access.logging.spool.dir",((esgfHome == null) ? "/esg" : esgfHome)+"/log/access_logging_spool"));
+                try{
+                    accessLoggingSpool = new AccessLoggingSpool(spoolDir,
+                                                                Integer.parseInt(getParameter("access.logging.spool.segment.size","16777216")),
+                                                                Integer.parseInt(getParameter("access.logging.spool.batch.size","500")),
+                                                                Long.parseLong(getParameter("access.logging.spool.poll.interval","1000")),
+                                                                Integer.parseInt(getParameter("access.logging.spool.max.segments","64")),
+                                                                Integer.parseInt(getParameter("access.logging.spool.max.attempts","5")),
+                                                                accessLoggingDAO);
+                    accessLoggingSpool.start();
+                    inFlight.setSpool(accessLoggingSpool);
+                }catch(IOException e) {
+                    log.error("Could not set up the access logging spool in "+spoolDir+", records will be written directly",e);
+                }
+            }
+            inFlight.start();
+            metrics.setInFlight(inFlight);
+        }
+        //------------------------------------------------------------------------
         
         //------------------------------------------------------------------------
         // Extensions that this filter will handle...
@@ -188,19 +337,7 @@ public class AccessLoggingFilter implements Filter {
         String extensionsParam = filterConfig.getInitParameter("extensions");
         if (extensionsParam == null) { extensionsParam=""; } //defensive program against null for this param
         String[] extensions = (".nc,"+extensionsParam.toString()).split(",");
-            
-        StringBuffer sb = new StringBuffer();
-        for(int i=0 ; i<extensions.length; i++) { 
-            sb.append(extensions[i].trim());
-            if(i<extensions.length-1) sb.append("|");
-        }
-        System.out.println("Applying filter for files with extensions: "+sb.toString());
-        String regex = "http.*(?:"+sb.toString()+")$";
-        System.out.println("Regex = "+regex);
-        
-        urlExtensionPattern = Pattern.compile(regex,Pattern.CASE_INSENSITIVE);
-        //------------------------------------------------------------------------
-
+        log.info("Applying filter for files with extensions: {}",java.util.Arrays.toString(extensions));
 
         //------------------------------------------------------------------------
         // Extensions that this filter will NOT handle...
@@ -208,53 +345,89 @@ public class AccessLoggingFilter implements Filter {
         String exemptExtensionsParam = filterConfig.getInitParameter("exempt_extensions");
         if (exemptExtensionsParam == null) { exemptExtensionsParam=""; } //defensive program against null for this param
         String[] exemptExtensions = (".xml,"+exemptExtensionsParam.toString()).split(",");
+        log.info("Exempt extensions: {}",java.util.Arrays.toString(exemptExtensions));
 
-        sb = new StringBuffer();
-        for(int i=0 ; i<exemptExtensions.length; i++) {
-            sb.append(exemptExtensions[i].trim());
-            if(i<exemptExtensions.length-1) sb.append("|");
-        }
-        System.out.println("Exempt extensions: "+sb.toString());
-        regex = "http.*(?:"+sb.toString()+")$";
-        System.out.println("Exempt Regex = "+regex);
-
-        exemptUrlPattern = Pattern.compile(regex,Pattern.CASE_INSENSITIVE);
         //------------------------------------------------------------------------
-        
-
-        //------------------------------------------------------------------------
-        // Patterns that this filter will NOT handle: Because the output is not file based...
+        // Services that this filter will NOT handle: Because the output is not file based...
         //------------------------------------------------------------------------
         String exemptServiceParam = filterConfig.getInitParameter("exempt_services");
-        if (exemptServiceParam == null) { exemptServiceParam="x"; } //defensive program against null for this param
+        if (exemptServiceParam == null) { exemptServiceParam=""; } //defensive program against null for this param
+        String[] exemptServices = (exemptServiceParam.toString()).split(",");
+        log.info("Exempt services: {}",java.util.Arrays.toString(exemptServices));
 
-        String[] exemptServiceParams = (exemptServiceParam.toString()).split(",");
+        //------------------------------------------------------------------------
+        // Everything above gets folded into one classifier that looks at the url once...
+        //------------------------------------------------------------------------
+        log.trace("{}",accessLoggingDAO);
+        String svc_prefix = esgfProperties.getProperty("node.download.svc.prefix","thredds/fileServer");
+        urlClassifier = new UrlClassifier(extensions,exemptExtensions,exemptServices,svc_prefix);
+        //------------------------------------------------------------------------
 
-        sb = new StringBuffer();
-        for(int i=0 ; i<exemptServiceParams.length; i++) {
-            sb.append(exemptServiceParams[i].trim());
-            if(i<exemptServiceParams.length-1) sb.append("|");
+        //------------------------------------------------------------------------
+        // Live download counts (see DownloadAggregator)...
+        //------------------------------------------------------------------------
+        if(Boolean.valueOf(getParameter("access.logging.live","true"))) {
+            downloadAggregator = DownloadAggregator.getInstance();
+            downloadAggregator.setServicePrefix(svc_prefix);
+            downloadAggregator.setMaxKeys(Integer.parseInt(getParameter("access.logging.live.max.keys","10000")));
+            if(jmxRegistered) DownloadAggregator.register();
         }
+        //------------------------------------------------------------------------
 
-        System.out.println("Exempt services: "+exemptServiceParam);
-        String exemptServiceRegex = "http[s]?://([^:/]*)(:(?:[0-9]*))?/(?:"+sb.toString()+")/(.*$)";
-        exemptServicePattern = Pattern.compile(exemptServiceRegex,Pattern.CASE_INSENSITIVE);
+        mpResolver = new MountedPathResolver((new esg.common.util.ESGIni()).getMounts());
 
-        System.out.println("Exempt Service Regex = "+exemptServiceRegex);
         //------------------------------------------------------------------------
+        // How the bytes of the response get counted...
+        //------------------------------------------------------------------------
+        streamBufferSize = Integer.parseInt(getParameter("access.logging.stream.buffer.size","0"));
+        useSendfile = Boolean.valueOf(getParameter("access.logging.sendfile","false"));
+        sendfileMinSize = Long.parseLong(getParameter("access.logging.sendfile.min.size",""+sendfileMinSize));
+        String sendfilePathsParam = getParameter("access.logging.sendfile.paths","").trim();
+        sendfilePaths = sendfilePathsParam.isEmpty() ? new String[0] : sendfilePathsParam.split("\\s*,\\s*");
+        if(useSendfile && (sendfilePaths.length == 0)) log.warn("access.logging.sendfile is set but access.logging.sendfile.paths is not, nothing will be left to sendfile");
 
-        log.trace(accessLoggingDAO.toString());
-        String svc_prefix = esgfProperties.getProperty("node.download.svc.prefix","thredds/fileServer");
-        String mountedPathRegex = "http[s]?://([^:/]*)(:(?:[0-9]*))?/"+svc_prefix+"(.*$)";
-        mountedPathPattern = Pattern.compile(mountedPathRegex,Pattern.CASE_INSENSITIVE);
-
-        String urlRegex = "http[s]?://([^:/]*)(:(?:[0-9]*))?/(.*$)";
-        urlPattern = Pattern.compile(urlRegex,Pattern.CASE_INSENSITIVE);
+        //------------------------------------------------------------------------
+        // Remember file sizes so we don't stat() popular files on every download...
+        //------------------------------------------------------------------------
+        int fileSizeCacheSize = Integer.parseInt(getParameter("access.logging.filesize.cache.size","10000"));
+        if(fileSizeCacheSize > 0) {
+            fileSizeCache = new FileSizeCache(fileSizeCacheSize,Long.parseLong(getParameter("access.logging.filesize.cache.ttl","60000")));
+            if(Boolean.valueOf(getParameter("access.logging.filesize.cache.watch","false"))) {
+                try{
+                    fileSizeCache.startWatching(Integer.parseInt(getParameter("access.logging.filesize.cache.watch.max","1000")));
+                }catch(IOException e) {
+                    log.warn("Could not start watching for file changes, relying on ttl only: {}",e.getMessage());
+                }
+            }
+        }
+    }
 
-        mpResolver = new MountedPathResolver((new esg.common.util.ESGIni()).getMounts());
+    //Filter init-params take precedence over values in esgf.properties
+    private String getParameter(String name, String defaultValue) {
+        String value = filterConfig.getInitParameter(name);
+        if((value == null) && (esgfProperties != null)) value = esgfProperties.getProperty(name);
+        return (value == null) ? defaultValue : value.trim();
     }
 
     public void destroy() { 
+        //Flush out any records still waiting to be written while we still have a database...
+        if(inFlight != null) {
+            metrics.setInFlight(null);
+            inFlight.shutdown();
+            inFlight = null;
+        }
+        if(accessLoggingSpool != null) {
+            accessLoggingSpool.shutdown(30000L);
+            accessLoggingSpool = null;
+        }
+        if(accessLoggingWriter != null) {
+            accessLoggingWriter.shutdown();
+            accessLoggingWriter = null;
+        }
+        if(fileSizeCache != null) {
+            fileSizeCache.stopWatching();
+            fileSizeCache = null;
+        }
         this.filterConfig = null; 
         this.dbProperties.clear();
         this.accessLoggingDAO = null;
@@ -262,6 +435,15 @@ public class AccessLoggingFilter implements Filter {
         //Shutting down this resource under the assuption that no one
         //else is using this resource but us
         DatabaseResource.getInstance().shutdownResource();
+        if(jmxRegistered) {
+            if(downloadAggregator != null) {
+                DownloadAggregator.unregister();
+                downloadAggregator = null;
+            }
+            FilterMetrics.unregister();
+            jmxRegistered = false;
+        }
+        FilterLog.stopAsync();
     }
 
     @SuppressWarnings("unchecked")
@@ -271,6 +453,10 @@ public class AccessLoggingFilter implements Filter {
         
         if(filterConfig == null) return;
         
+        final long startNanos = System.nanoTime();
+        long overheadNanos = 0L;
+        metrics.requests.incrementAndGet();
+
         int id = -1;
 
         //Record identifying tuple
@@ -283,11 +469,14 @@ public class AccessLoggingFilter implements Filter {
         long   dateFetched = 0L;
         long   batchUpdateTime = 0L;
         boolean hasNoBackingFile = false;
+        AccessLogRecord record = null;
+        UrlClassifier.Result classification = null;
+        FilterLog.RequestTrace trace = null;
         //(note: serviceName defined in global scope)
 
         //firewall off any errors so that nothing stops the show...
         try {
-            log.debug("accessLogging DAO -> "+accessLoggingDAO);
+            log.trace("accessLogging DAO -> {}",accessLoggingDAO);
             if(accessLoggingDAO != null) {
                 
                 //This filter should only appy to specific requests
@@ -295,42 +484,41 @@ public class AccessLoggingFilter implements Filter {
                 
                 HttpServletRequest req = (HttpServletRequest)request;
                 url = req.getRequestURL().toString().trim();
-                System.out.println("Requested URL: ["+url+"]");
-
-                //Don't need this anymore... but too much of a pain at the moment to change
-                //Remember to change the filter xml entry file in the installer
-                //filters/esg-access-logging-filter b/filters/esg-access-logging-filter
-                Matcher exemptFilesMatcher = exemptUrlPattern.matcher(url);
-                if(exemptFilesMatcher.matches()) {
-                    System.out.println("I am not logging requested file with this extension..., punting on: ["+url+"]");
-                    chain.doFilter(request, response);
-                    return;
-                }
-                
-                Matcher exemptServiceMatcher = exemptServicePattern.matcher(url);
-                if(exemptServiceMatcher.matches()) {
-                    System.out.println("I am not logging this, it is an exempt service..., punting on: ["+url+"]");
+                log.debug("Requested URL: [{}]",url);
+
+                //One pass over the url decides if this is a request we log...
+                long classifyStart = System.nanoTime();
+                classification = urlClassifier.classify(url);
+                metrics.classify.recordSince(classifyStart);
+                if(classification.type == UrlClassifier.Type.EXEMPT) {
+                    log.debug("I am not logging this, it is an exempt extension or service..., punting on: [{}]",url);
+                    metrics.exempt.incrementAndGet();
+                    metrics.filter.recordSince(startNanos);
                     chain.doFilter(request, response);
                     return;
                 }
 
-                Matcher allowedFilesMatcher = urlExtensionPattern.matcher(url);
-                if(!allowedFilesMatcher.matches()) {
-                    System.out.println("This is not an url that we are interested in logging: ["+url+"]");
+                if(classification.type == UrlClassifier.Type.NOT_INTERESTING) {
+                    log.debug("This is not an url that we are interested in logging: [{}]",url);
+                    metrics.uninteresting.incrementAndGet();
+                    metrics.filter.recordSince(startNanos);
                     chain.doFilter(request, response);
                     return;
                 }
 
                 // only proceed if the request has been authorized
                 final Boolean requestIsAuthorized = (Boolean)request.getAttribute(AUTHORIZATION_REQUEST_ATTRIBUTE);
-                log.debug("AUTHORIZATION_REQUEST_ATTRIBUTE="+requestIsAuthorized);
+                log.debug("AUTHORIZATION_REQUEST_ATTRIBUTE={}",requestIsAuthorized);
                 if (requestIsAuthorized==null || requestIsAuthorized==false) {
-                    System.out.println("**UnAuthorized Request, punting on: "+req.getRequestURL().toString().trim());
+                    log.debug("**UnAuthorized Request, punting on: {}",url);
+                    metrics.unauthorized.incrementAndGet();
+                    metrics.filter.recordSince(startNanos);
                     chain.doFilter(request, response);
                     return;
                 }
 
-                System.out.println("Executing filter on: "+url);
+                log.debug("Executing filter on: {}",url);
+                trace = log.startTrace(url);
 
                 //------------------------------------------------------------------------------------------
                 //For Token authentication there is a Validation Map present with user and email information
@@ -351,7 +539,7 @@ public class AccessLoggingFilter implements Filter {
                     req.removeAttribute("validationMap");
 
                 }else{
-                    log.warn("Validation Map is ["+validationMap+"] - (not a token based request)");
+                    log.debug("Validation Map is [null] - (not a token based request)");
                 }
                 //------------------------------------------------------------------------------------------
 
@@ -362,7 +550,7 @@ public class AccessLoggingFilter implements Filter {
                 if (userID == null || userID.isEmpty()) {
                     userID = ((req.getAttribute("esg.openid") == null) ? "<no-id>" : req.getAttribute("esg.openid").toString());
                     if(userID == null || userID.isEmpty()) { log.warn("This request is apparently not a \"tokenless\" request either - no openid attribute!!!!!"); }
-                    log.warn("AccessLoggingFilter - Tokenless: UserID = ["+userID+"]");
+                    log.debug("AccessLoggingFilter - Tokenless: UserID = [{}]",userID);
                 }
                 //------------------------------------------------------------------------------------------
 
@@ -372,23 +560,41 @@ public class AccessLoggingFilter implements Filter {
                 dateFetched = System.currentTimeMillis()/1000;
                 batchUpdateTime = dateFetched; //For the life of my I am not sure why this is there, something from the gridftp metrics collection. -gmb
 
-                id = accessLoggingDAO.logIngressInfo(userID,email,url,fileID,remoteAddress,userAgent,serviceName,batchUpdateTime,dateFetched);
-                System.out.println("myID: ["+id+"] = accessLoggingDAO.logIngressInfo(userID: ["+userID+"], email, url: ["+url+"], fileID, remoteAddress, userAgent, serviceName, batchUpdateTime, dateFetched)");
+                long ingressStart = System.nanoTime();
+                if(inFlight != null) {
+                    record = new AccessLogRecord(userID,email,url,fileID,remoteAddress,userAgent,serviceName,batchUpdateTime,dateFetched);
+                    inFlight.begin(record);
+                }else if(accessLoggingWriter != null) {
+                    record = new AccessLogRecord(userID,email,url,fileID,remoteAddress,userAgent,serviceName,batchUpdateTime,dateFetched);
+                    record.id = id = accessLoggingDAO.nextID();
+                    accessLoggingWriter.logIngressInfo(record);
+                }else{
+                    id = accessLoggingDAO.logIngressInfo(userID,email,url,fileID,remoteAddress,userAgent,serviceName,batchUpdateTime,dateFetched);
+                    if(log.isDebugEnabled()) log.debug("myID: [{}] = accessLoggingDAO.logIngressInfo(userID: [{}], email, url: [{}], ...)",id,userID,url);
+                }
+                metrics.ingress.recordSince(ingressStart);
+                metrics.logged.incrementAndGet();
+                if(trace != null) trace.add("id",id).add("user",userID);
 
             }else{
-                log.error("DAO is null :["+accessLoggingDAO+"]");
+                log.error("DAO is null :[null]");
                 HttpServletResponse resp = (HttpServletResponse)response;
                 resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Invalid State Of ESG Access Logging Filter: DAO=["+accessLoggingDAO+"]");
             }
             
         }catch(Throwable t) {
             log.error(t);
+            metrics.errors.incrementAndGet();
             HttpServletResponse resp = (HttpServletResponse)response;
             resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Caught unforseen Exception in ESG Access Logging Filter");
         }
         
         try{
             
+            final AccessLogRecord logRecord = record;
+            final FilterLog.RequestTrace requestTrace = trace;
+            final String downloadUrl = url;
+            final String downloadUserID = userID;
             ByteCountListener byteCountListener = new ByteCountListener() {
                     int myID = -1;
                     long duration = -1;
@@ -396,53 +602,145 @@ public class AccessLoggingFilter implements Filter {
                     long dataSize = -1;
                     long byteCount = -1;
                     boolean success = false;
+                    final AtomicBoolean reported = new AtomicBoolean(false);
 
                     public void setRecordID(int id) { this.myID = id; }
                     public void setStartTime(long startTime) { this.startTime = startTime; }
                     public void setDataSizeBytes(long dataSize) { this.dataSize = dataSize; }
 
                     //This callback method should get called by the ByteCountingResponseStream when it is *closed*
+                    //(or when the response is finished, see AccessLoggingResponseWrapper#finish) - only the first call counts
                     public void setByteCount(long xferSize) {
+                        if(!reported.compareAndSet(false,true)) return;
                         byteCount=xferSize;
-                        System.out.println("**** setByteCount("+xferSize+")");
+                        if(log.isDebugEnabled()) log.debug("**** setByteCount({})",xferSize);
 
-                        if((AccessLoggingFilter.this.accessLoggingDAO != null) && (myID > 0)) {
+                        long egressStart = System.nanoTime();
+                        AccessLoggingInFlight deferred = AccessLoggingFilter.this.inFlight;
+                        if((logRecord != null) && (deferred != null)) {
+                            if (dataSize == xferSize) { success = true; }
+                            duration = System.currentTimeMillis() - startTime;
+                            deferred.finish(logRecord, success, duration, dataSize, xferSize);
+                        }else if((logRecord != null) && (AccessLoggingFilter.this.accessLoggingWriter != null)) {
+                            if (dataSize == xferSize) { success = true; }
+                            duration = System.currentTimeMillis() - startTime;
+                            logRecord.setEgressInfo(success, duration, dataSize, xferSize);
+                            AccessLoggingFilter.this.accessLoggingWriter.logEgressInfo(logRecord);
+                        }else if((AccessLoggingFilter.this.accessLoggingDAO != null) && (myID > 0)) {
                             if (dataSize == xferSize) { success = true; }
                             duration = System.currentTimeMillis() - startTime;
-                            System.out.println("AccessLoggingFilter.this.accessLoggingDAO.logEgressInfo(myID: ["+myID+"], success: ["+success+"], duration: ["+duration+"]ms, dataSize ["+dataSize+"], xferSize: ["+xferSize+"] );");
+                            if(log.isDebugEnabled()) log.debug("accessLoggingDAO.logEgressInfo(myID: [{}], success: [{}], duration: [{}]ms, ...)",myID,success,duration);
                             AccessLoggingFilter.this.accessLoggingDAO.logEgressInfo(myID, success, duration, dataSize, xferSize);
                         }
+                        DownloadAggregator live = AccessLoggingFilter.this.downloadAggregator;
+                        if((live != null) && ((logRecord != null) || (myID > 0))) {
+                            live.record(downloadUrl, downloadUserID, dataSize, Math.max(0L,xferSize), (dataSize == xferSize));
+                        }
+                        metrics.egress.recordSince(egressStart);
+                        if(requestTrace != null) {
+                            requestTrace.add("dataSize",dataSize).add("xferSize",xferSize).add("success",success).add("duration",duration).finish();
+                        }
                     }
                     public long getByteCount() { return byteCount; }
                 };
+            long resolveStart = System.nanoTime();
+            long dataSize = resolveDataSize(url,classification);
+            metrics.resolve.recordSince(resolveStart);
+            if(trace != null) trace.add("resolved",dataSize);
             byteCountListener.setRecordID(id);
-            byteCountListener.setDataSizeBytes(resolveUrlToFile(url).length());
+            byteCountListener.setDataSizeBytes(dataSize);
+            if(record != null) record.dataSize = dataSize; //for the abandoned (deferred) case
             byteCountListener.setStartTime(System.currentTimeMillis());
-            AccessLoggingResponseWrapper accessLoggingResponseWrapper = new AccessLoggingResponseWrapper((HttpServletResponse)response, byteCountListener);
+            request.setAttribute(LOGGED_REQUEST_ATTRIBUTE,Boolean.TRUE);
+
+            //Tomcat will not sendfile a wrapped response, so requests
+            //for the paths of servlets known to sendfile are left alone.
+            //How much of the file Tomcat then gets to send is not known
+            //here, so they are logged as unverified (xfer_size -1)
+            //rather than as what was asked for.
+            if(useSendfile && (dataSize >= sendfileMinSize) && isSendfileCandidate(request)) {
+                overheadNanos = System.nanoTime() - startNanos;
+                chain.doFilter(request, response);
+                long afterChain = System.nanoTime();
+                boolean sendfiled = (request.getAttribute(SENDFILE_FILENAME_ATTRIBUTE) != null);
+                if(!sendfiled && warnedNotSendfiled.compareAndSet(false,true)) {
+                    log.warn("[{}] was left uncounted for sendfile but was not sendfile'd, check access.logging.sendfile.paths",url);
+                }
+                if(log.isDebugEnabled()) log.debug("Left [{}] to sendfile (handed to Tomcat: [{}])",url,sendfiled);
+                byteCountListener.setByteCount(UNVERIFIED);
+                metrics.filter.record(overheadNanos + (System.nanoTime() - afterChain));
+                return;
+            }
+
+            final AccessLoggingResponseWrapper accessLoggingResponseWrapper = new AccessLoggingResponseWrapper((HttpServletResponse)response, byteCountListener);
+            accessLoggingResponseWrapper.setBuffSize(streamBufferSize);
+            overheadNanos = System.nanoTime() - startNanos;
             chain.doFilter(request, accessLoggingResponseWrapper);
+            long afterChain = System.nanoTime();
+
+            //For async requests the response is still being written
+            //after we return, so account for it when it completes.
+            if(request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new AsyncListener() {
+                        public void onComplete(AsyncEvent event) { accessLoggingResponseWrapper.finish(); }
+                        public void onError(AsyncEvent event)    { accessLoggingResponseWrapper.finish(); }
+                        public void onTimeout(AsyncEvent event)  { accessLoggingResponseWrapper.finish(); }
+                        //Listeners are dropped when async is restarted, stay registered
+                        public void onStartAsync(AsyncEvent event) { event.getAsyncContext().addListener(this); }
+                    });
+            }else {
+                accessLoggingResponseWrapper.finish();
+            }
+            metrics.filter.record(overheadNanos + (System.nanoTime() - afterChain));
         }catch(Throwable t) {
             log.error(t);
+            metrics.errors.incrementAndGet();
             HttpServletResponse resp = (HttpServletResponse)response;
             resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Caught unforseen Exception in ESG Access Logging Filter (url may not be resolvable to an exisiting file) "+t.getMessage());
         }
     }
     
+    //Only a plain, unconditional GET of the whole file, for one of the
+    //sendfile paths, is sendfile'd (ranges, HEAD, 304s and error pages
+    //are streamed, and would then go uncounted), anything else gets
+    //the counting wrapper.
+    private boolean isSendfileCandidate(ServletRequest request) {
+        if(!Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTRIBUTE))) return false;
+        HttpServletRequest req = (HttpServletRequest)request;
+        String path = req.getRequestURI().substring(req.getContextPath().length());
+        boolean sendfilePath = false;
+        for(String prefix : sendfilePaths) {
+            if(path.startsWith(prefix)) { sendfilePath = true; break; }
+        }
+        return sendfilePath &&
+            "GET".equals(req.getMethod()) &&
+            (req.getHeader("Range") == null) &&
+            (req.getHeader("If-Modified-Since") == null) &&
+            (req.getHeader("If-None-Match") == null) &&
+            (req.getHeader("If-Match") == null) &&
+            (req.getHeader("If-Unmodified-Since") == null);
+    }
+
+    //The size of the file behind the URL, from the cache if we can
+    private long resolveDataSize(String url, UrlClassifier.Result classification) {
+        if(fileSizeCache == null) return resolveUrlToFile(url,classification).length();
+        long size = fileSizeCache.getLength(url);
+        if(size != FileSizeCache.MISS) return size;
+        return fileSizeCache.put(url,resolveUrlToFile(url,classification));
+    }
+
     //Here we resolve the URL passed in to where the bits reside on the filesystem.
-    private File resolveUrlToFile(String url) {
-        //Strip url down to just the path...
-        System.out.println("AccessLoggingFilter.resolveUrlToFile("+url+")");
-        Matcher fsMatcher = mountedPathPattern.matcher(url);
-        Matcher urlMatcher = urlPattern.matcher(url);
+    private File resolveUrlToFile(String url, UrlClassifier.Result classification) {
+        log.trace("AccessLoggingFilter.resolveUrlToFile({})",url);
         String path = null;
-
-        if (fsMatcher.find()) {
-            System.out.println("Group 3 = "+fsMatcher.group(3));
-            path = mpResolver.resolve(fsMatcher.group(3));
-            System.out.println("Mountpoint transformation of url path: ["+url+"] -to-> ["+path+"]");
-        }else if (urlMatcher.find()) {
-            System.out.println("Group 3 = "+urlMatcher.group(3));
-            path = urlMatcher.group(3);
-            System.out.println("*NO Mountpoint transformation of url path: ["+url+"] -to-> ["+path+"]");
+        if(classification == null) classification = urlClassifier.classify(url);
+
+        if(classification.mounted) {
+            path = mpResolver.resolve(classification.path);
+            log.debug("Mountpoint transformation of url path: [{}] -to-> [{}]",url,path);
+        }else {
+            path = classification.path;
+            log.debug("*NO Mountpoint transformation of url path: [{}] -to-> [{}]",url,path);
         }
 
         File resolvedFile = null;
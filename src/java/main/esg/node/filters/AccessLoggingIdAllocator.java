@@ -0,0 +1,131 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Hands out primary keys for the esgf_node_manager.access_logging
+   table without a database round trip per record.  Keys are reserved
+   from the access_logging_id_seq sequence a block at a time (see
+   AccessLoggingDAO#reservePrimaryKeys) and then handed out to the
+   request threads lock-free, by bumping an atomic cursor into the
+   current block.  Only the thread that finds the block exhausted
+   goes to the database for the next one.
+
+   NOTE: Keys reserved but never handed out (ex: when the webapp is
+   shut down) are simply skipped, so the id column may have gaps.  The
+   keys are still unique since they come from the same sequence every
+   other writer of this table uses.
+
+**/
+package esg.node.filters;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class AccessLoggingIdAllocator {
+
+    private static final Log log = LogFactory.getLog(AccessLoggingIdAllocator.class);
+
+    private static final Block EMPTY = new Block(new int[0]);
+
+    private final AccessLoggingDAO accessLoggingDAO;
+    private volatile int blockSize;
+    private volatile Block current = EMPTY;
+
+    public AccessLoggingIdAllocator(AccessLoggingDAO accessLoggingDAO, int blockSize) {
+        this.accessLoggingDAO = accessLoggingDAO;
+        this.setBlockSize(blockSize);
+    }
+
+    public void setBlockSize(int blockSize) { this.blockSize = Math.max(1,blockSize); }
+    public int getBlockSize() { return blockSize; }
+
+    /**
+       @return The next primary key to use, or -1 if no more keys
+       could be reserved from the database.
+    */
+    public int nextID() {
+        while(true) {
+            Block block = current;
+            int idx = block.cursor.getAndIncrement();
+            if(idx < block.ids.length) return block.ids[idx];
+            if(!refill(block)) return -1;
+        }
+    }
+
+    //Slow path: only one thread fetches the next block, the others
+    //find that the block has already been replaced and go around again.
+    private synchronized boolean refill(Block exhausted) {
+        if(current != exhausted) return true;
+        int[] ids = accessLoggingDAO.reservePrimaryKeys(blockSize);
+        if((ids == null) || (ids.length == 0)) {
+            log.error("Could not reserve primary keys for access logging");
+            return false;
+        }
+        log.debug("Reserved ["+ids.length+"] access logging primary keys: "+ids[0]+"...");
+        current = new Block(ids);
+        return true;
+    }
+
+    private static class Block {
+        final int[] ids;
+        final AtomicInteger cursor = new AtomicInteger(0);
+        Block(int[] ids) { this.ids = ids; }
+    }
+
+    public String toString() {
+        Block block = current;
+        return "AccessLoggingIdAllocator: [blockSize="+blockSize+", remaining="+Math.max(0,block.ids.length - block.cursor.get())+"]";
+    }
+}
@@ -0,0 +1,298 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Downloads in progress, for the deferred (single statement) access
+   logging mode (access.logging.deferred).
+
+   Rather than inserting a row when a download starts and updating it
+   when it ends, the filter keeps the ingress half of the record here
+   and writes the whole row once, when the download ends (finish).
+   That halves the writes and leaves no dead tuple behind per
+   download.  A record whose download never reports its end (ex: the
+   stream was never closed) is written by the reaper as unsuccessful
+   once it has been in flight longer than the abandon timeout; a late
+   finish for it is then ignored, so every record is written exactly
+   once.
+
+   The whole records are written to the local spool when one is
+   configured (access.logging.spool), else handed to the write-behind
+   writer, else written directly.
+
+   The reaper also takes a snapshot of what is in flight every time it
+   runs, for monitoring (see FilterMetrics and FilterMetricsServlet),
+   since those downloads are no longer visible in the database.
+
+**/
+package esg.node.filters;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class AccessLoggingInFlight implements Runnable {
+
+    private static final Log log = LogFactory.getLog(AccessLoggingInFlight.class);
+
+    private final AccessLoggingDAO accessLoggingDAO;
+    private final AccessLoggingWriter accessLoggingWriter;
+    private final long abandonTimeoutMillis;
+    private final long reapIntervalMillis;
+    private volatile AccessLoggingSpool spool = null;
+
+    //record -> start time (ms), records are compared by identity
+    private final Map<AccessLogRecord,Long> inFlight = new ConcurrentHashMap<AccessLogRecord,Long>();
+    private final AtomicLong numAbandoned = new AtomicLong(0);
+    private final AtomicLong numLate = new AtomicLong(0);
+
+    private volatile List<Snapshot> snapshot = Collections.emptyList();
+    private volatile long snapshotTime = 0L;
+
+    private volatile boolean running = false;
+    private Thread reaperThread = null;
+
+    /**
+       @param accessLoggingDAO Writes the records when there is no writer
+       @param accessLoggingWriter Writes the records (may be null)
+       @param abandonTimeoutMillis How long a download may be in flight before it is written as abandoned
+       @param reapIntervalMillis How often abandoned downloads are looked for (and the snapshot taken)
+    */
+    public AccessLoggingInFlight(AccessLoggingDAO accessLoggingDAO,
+                                 AccessLoggingWriter accessLoggingWriter,
+                                 long abandonTimeoutMillis,
+                                 long reapIntervalMillis) {
+        this.accessLoggingDAO = accessLoggingDAO;
+        this.accessLoggingWriter = accessLoggingWriter;
+        this.abandonTimeoutMillis = Math.max(1L,abandonTimeoutMillis);
+        this.reapIntervalMillis = Math.max(1L,reapIntervalMillis);
+    }
+
+    //Records go to the spool first, when there is one (see AccessLoggingSpool)
+    public void setSpool(AccessLoggingSpool spool) { this.spool = spool; }
+
+    public synchronized void start() {
+        if(running) return;
+        log.info("Starting deferred access logging: [abandonTimeout="+abandonTimeoutMillis+"ms, reapInterval="+reapIntervalMillis+"ms]");
+        running = true;
+        reaperThread = new Thread(this,"AccessLoggingInFlightReaper");
+        reaperThread.setDaemon(true);
+        reaperThread.start();
+    }
+
+    /**
+       Stops the reaper and writes whatever is still in flight as
+       unsuccessful (the downloads are being cut off anyway).  Must be
+       called before the writer is shut down.
+    */
+    public void shutdown() {
+        Thread t = null;
+        synchronized(this) {
+            if(!running) return;
+            running = false;
+            t = reaperThread;
+            reaperThread = null;
+        }
+        t.interrupt();
+        try{
+            t.join(5000);
+        }catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int n = reap(Long.MAX_VALUE);
+        log.info("Deferred access logging stopped, ["+n+"] downloads in flight written as unsuccessful");
+    }
+
+    public int  getInFlight() { return inFlight.size(); }
+    public long getNumAbandoned() { return numAbandoned.get(); }
+    public long getNumLate() { return numLate.get(); }
+
+    //------------------------------------
+    //Called from the request threads...
+    //------------------------------------
+
+    public void begin(AccessLogRecord record) { inFlight.put(record,System.currentTimeMillis()); }
+
+    /**
+       Writes the completed record, unless it has already been written
+       as abandoned.
+
+       @return true if the record was written (or handed to the writer)
+    */
+    public boolean finish(AccessLogRecord record, boolean success, long duration, long dataSize, long xferSize) {
+        if(inFlight.remove(record) == null) {
+            numLate.incrementAndGet();
+            if(log.isDebugEnabled()) log.debug("Download finished after it was logged as abandoned: "+record);
+            return false;
+        }
+        record.setEgressInfo(success,duration,dataSize,xferSize);
+        return write(record);
+    }
+
+    private boolean write(AccessLogRecord record) {
+        AccessLoggingSpool s = spool;
+        if((s != null) && s.append(record)) return true;
+        if(accessLoggingWriter != null) return accessLoggingWriter.logCompleteInfo(record);
+        return (accessLoggingDAO.logCompleteInfo(record) > 0);
+    }
+
+    //------------------------------------
+    //The reaper thread...
+    //------------------------------------
+
+    public void run() {
+        while(running) {
+            try{
+                Thread.sleep(reapIntervalMillis);
+            }catch(InterruptedException e) {
+                continue; //shutdown() interrupts us
+            }
+            try{
+                reap(abandonTimeoutMillis);
+            }catch(Throwable t) {
+                log.error("Problem writing abandoned downloads",t);
+            }
+        }
+    }
+
+    //Writes out the records in flight longer than the given time and
+    //snapshots the rest.  Returns the number written.
+    int reap(long olderThanMillis) {
+        long now = System.currentTimeMillis();
+        List<Snapshot> current = new ArrayList<Snapshot>(inFlight.size());
+        int n = 0;
+        for(Iterator<Map.Entry<AccessLogRecord,Long>> it = inFlight.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<AccessLogRecord,Long> entry = it.next();
+            AccessLogRecord record = entry.getKey();
+            long elapsed = now - entry.getValue();
+            if(elapsed < olderThanMillis) {
+                current.add(new Snapshot(record,accessLoggingDAO.hashUserID(record.userID),elapsed));
+                continue;
+            }
+            //Whoever removes it writes it (finish() may be racing us)
+            if(inFlight.remove(record) == null) continue;
+            record.setEgressInfo(false,elapsed,record.dataSize,-1L);
+            write(record);
+            numAbandoned.incrementAndGet();
+            n++;
+        }
+        snapshot = Collections.unmodifiableList(current);
+        snapshotTime = now;
+        if(n > 0) log.info("Logged ["+n+"] abandoned downloads");
+        return n;
+    }
+
+    //------------------------------------
+    //Monitoring...
+    //------------------------------------
+
+    /**
+       The downloads that were in flight when the reaper last ran.
+    */
+    public List<Snapshot> getSnapshot() { return snapshot; }
+    public long getSnapshotTime() { return snapshotTime; }
+
+    //Who is only kept as the hash the access log stores (user_id_hash),
+    //and where from not at all, since the snapshot is served over http
+    public static final class Snapshot {
+        public final String userHash;
+        public final String url;
+        public final long   elapsedMillis;
+        Snapshot(AccessLogRecord record, String userHash, long elapsedMillis) {
+            this.userHash = userHash;
+            this.url = record.url;
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+
+    void appendJson(StringBuilder sb) {
+        List<Snapshot> current = snapshot;
+        sb.append("{\"count\":").append(inFlight.size())
+            .append(",\"abandoned\":").append(numAbandoned.get())
+            .append(",\"late\":").append(numLate.get())
+            .append(",\"snapshotTime\":").append(snapshotTime)
+            .append(",\"snapshot\":[");
+        for(int i=0; i < current.size(); i++) {
+            Snapshot s = current.get(i);
+            if(i > 0) sb.append(',');
+            sb.append("{\"userHash\":");
+            appendJsonString(sb,s.userHash);
+            sb.append(",\"url\":");
+            appendJsonString(sb,s.url);
+            sb.append(",\"elapsedMillis\":").append(s.elapsedMillis).append('}');
+        }
+        sb.append("]}");
+    }
+
+    private static void appendJsonString(StringBuilder sb, String value) {
+        if(value == null) { sb.append("null"); return; }
+        sb.append('"');
+        for(int i=0;i<value.length();i++) {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\') sb.append('\\').append(c);
+            else if(c < 0x20) sb.append(String.format("\\u%04x",(int)c));
+            else sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    public String toString() {
+        return "AccessLoggingInFlight: [running="+running+", inFlight="+inFlight.size()+", abandoned="+numAbandoned.get()+", late="+numLate.get()+"]";
+    }
+}
@@ -64,7 +64,7 @@ public class AccessLoggingResponseWrapper extends HttpServletResponseWrapper {
 
     protected ServletOutputStream stream = null;
     protected PrintWriter writer = null;
-    protected int buffSize = 1024; //one kilobyte 
+    protected int buffSize = 0; //pass-through, the container buffers for us (see ByteCountingResponseStream)
     protected HttpServletResponse origResponse = null;
     protected ByteCountListener byteCountListener = null;
 
@@ -83,6 +83,7 @@ public class AccessLoggingResponseWrapper extends HttpServletResponseWrapper {
         this.byteCountListener=byteCountListener;
     }
 
+    //A size of 0 (or less) means no buffer of our own, just count
     public void setBuffSize(int buffSize) {
         this.buffSize = buffSize;
     }
@@ -96,12 +97,28 @@ public class AccessLoggingResponseWrapper extends HttpServletResponseWrapper {
             throw new IllegalStateException("getOutputStream() has already been called for this response");
         }
 
-        if (stream == null) { stream = createOutputStream(); }
-        
-        ((ByteCountingResponseStream)stream).setBuffer(buffSize);
+        if (stream == null) {
+            stream = createOutputStream();
+            ((ByteCountingResponseStream)stream).setBuffer(buffSize);
+        }
         return stream;
     }
 
+    /**
+       Called when the response is done (the request returned from the
+       filter chain, or its async processing completed) to make sure the
+       byte count gets reported even if the servlet never closed the
+       output stream.  The listener only takes the first report.
+    */
+    public void finish() {
+        if (writer != null) { writer.flush(); }
+        if (stream != null) {
+            ((ByteCountingResponseStream)stream).finish();
+        }else if (byteCountListener != null) {
+            byteCountListener.setByteCount(0);
+        }
+    }
+
     public PrintWriter getWriter() throws IOException {
         if (writer != null) { return writer; }
         if (stream != null) {
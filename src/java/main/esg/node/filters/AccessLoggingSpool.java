@@ -0,0 +1,523 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Local, durable spool for access logging records, so that a slow or
+   unavailable database neither holds up downloads nor loses records
+   (access.logging.spool).
+
+   The request threads append whole records (see AccessLoggingInFlight,
+   the spool is used with the deferred mode) to a memory mapped
+   segment file, which costs a copy into the page cache and no
+   system call.  A background drainer reads the segments back in
+   order and inserts the records in batches
+   (AccessLoggingDAO#logCompleteInfoBatch), recording how far it got
+   in a checkpoint file after each batch.  If the database is down the
+   drainer backs off and retries the same batch, the records stay on
+   disk meanwhile.  Fully drained segments are deleted.
+
+   A batch that has failed max attempts times in a row is retried one
+   record at a time, so that a record the database will never take
+   (a "poison" record) does not hold up the ones behind it.  Records
+   that fail on their own while others go in are moved to the rejects
+   file and drained past; if none go in the database is taken to be
+   down and the batch stays where it is.  Records the database turns
+   down in a batch that otherwise goes in are moved there as well.
+
+   The spool holds at most max segments segments.  When it is full,
+   append() turns records down and the caller writes them directly,
+   until the drainer has caught up.
+
+   Layout, in the spool directory:
+
+   spool-<n>.seg - segments of (a fixed) segment size, records are
+                   [int length][payload], a 0 length ends the segment
+   checkpoint    - "<segment n> <offset>" of the next record to drain
+   rejects       - records that could not be inserted, same [int length][payload]
+                   framing as the segments, appended to and never drained
+
+   A record is published by writing its length after its payload, so a
+   crash in the middle of an append leaves a 0 length behind, which
+   ends the segment where the last complete record did.  After a
+   restart appends go to a new segment and the drainer picks up from
+   the checkpoint.  A record may be inserted twice if the process dies
+   between a batch being committed and the checkpoint being written.
+
+**/
+package esg.node.filters;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class AccessLoggingSpool implements Runnable {
+
+    private static final Log log = LogFactory.getLog(AccessLoggingSpool.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String REJECTS = "rejects";
+    private static final long MAX_BACKOFF_MILLIS = 60000L;
+
+    private final File dir;
+    private final int segmentSize;
+    private final int batchSize;
+    private final long pollMillis;
+    private final int maxSegments;
+    private final int maxAttempts;
+    private final AccessLoggingDAO accessLoggingDAO;
+
+    //Appending (guarded by this)...
+    private long writeSegment = -1;
+    private MappedByteBuffer writeBuffer = null;
+    private volatile long committedSegment = -1;
+    private volatile int committedOffset = 0;
+
+    //Draining (drainer thread only, readSegment is read by append() for the size cap)...
+    private volatile long readSegment = -1;
+    private int readOffset = 0;
+    private MappedByteBuffer readBuffer = null;
+    private long readBufferSegment = -1;
+    private int failures = 0;
+
+    private final AtomicLong numAppended = new AtomicLong(0);
+    private final AtomicLong numDrained = new AtomicLong(0);
+    private final AtomicLong numRejected = new AtomicLong(0);
+    private final AtomicLong numBadRecords = new AtomicLong(0);
+
+    private volatile boolean running = false;
+    private Thread drainerThread = null;
+
+    /**
+       @param dir Where the segments and the checkpoint live (created if needed)
+       @param segmentSize Size of a segment file in bytes
+       @param batchSize Max records inserted per batch by the drainer
+       @param pollMillis How long the drainer waits when there is nothing to drain
+       @param maxSegments Max number of segments kept, appends are turned down beyond that
+       @param maxAttempts Failed attempts at a batch before it is retried record by record
+    */
+    public AccessLoggingSpool(File dir, int segmentSize, int batchSize, long pollMillis,
+                              int maxSegments, int maxAttempts, AccessLoggingDAO accessLoggingDAO) throws IOException {
+        this.dir = dir;
+        this.segmentSize = Math.max(64*1024,segmentSize);
+        this.batchSize = Math.max(1,batchSize);
+        this.pollMillis = Math.max(1L,pollMillis);
+        this.maxSegments = Math.max(2,maxSegments);
+        this.maxAttempts = Math.max(1,maxAttempts);
+        this.accessLoggingDAO = accessLoggingDAO;
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create spool directory "+dir);
+        recover();
+    }
+
+    public AccessLoggingSpool(File dir, int segmentSize, int batchSize, long pollMillis, AccessLoggingDAO accessLoggingDAO) throws IOException {
+        this(dir,segmentSize,batchSize,pollMillis,64,5,accessLoggingDAO);
+    }
+
+    //Finds where to resume draining and opens a new segment to append to
+    private void recover() throws IOException {
+        long checkpointSegment = -1;
+        int checkpointOffset = 0;
+        File checkpoint = new File(dir,CHECKPOINT);
+        if(checkpoint.exists()) {
+            try{
+                String[] parts = new String(Files.readAllBytes(checkpoint.toPath()),UTF8).trim().split("\\s+");
+                checkpointSegment = Long.parseLong(parts[0]);
+                checkpointOffset = Integer.parseInt(parts[1]);
+            }catch(Exception e) {
+                log.warn("Unreadable spool checkpoint, draining from the oldest segment: "+e);
+            }
+        }
+        TreeMap<Long,File> segments = listSegments();
+        long next = 1;
+        if(segments.isEmpty()) {
+            //all drained, carry on numbering after the checkpoint
+            if(checkpointSegment >= 0) next = checkpointSegment+1;
+            readSegment = next;
+            readOffset = 0;
+        }else {
+            next = segments.lastKey()+1;
+            if(checkpointSegment >= segments.firstKey()) {
+                readSegment = checkpointSegment;
+                readOffset = checkpointOffset;
+            }else {
+                readSegment = segments.firstKey();
+                readOffset = 0;
+            }
+            log.info("Access logging spool has ["+segments.size()+"] segment(s) left to drain, resuming at "+readSegment+":"+readOffset);
+        }
+        synchronized(this) { roll(next); }
+    }
+
+    private TreeMap<Long,File> listSegments() {
+        TreeMap<Long,File> segments = new TreeMap<Long,File>();
+        File[] files = dir.listFiles();
+        if(files == null) return segments;
+        for(File f : files) {
+            String name = f.getName();
+            if(!name.startsWith("spool-") || !name.endsWith(".seg")) continue;
+            try{
+                segments.put(Long.parseLong(name.substring(6,name.length()-4)),f);
+            }catch(NumberFormatException e) {
+                //not one of ours
+            }
+        }
+        return segments;
+    }
+
+    private File segmentFile(long n) { return new File(dir,String.format("spool-%020d.seg",n)); }
+
+    private ByteBuffer map(long n, FileChannel.MapMode mode) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(n),(mode == FileChannel.MapMode.READ_ONLY) ? "r" : "rw");
+        try{
+            long size = (mode == FileChannel.MapMode.READ_ONLY) ? file.length() : segmentSize;
+            return file.getChannel().map(mode,0,size);
+        }finally{
+            file.close(); //the mapping stays valid
+        }
+    }
+
+    //Must hold the lock
+    private void roll(long n) throws IOException {
+        if(writeBuffer != null) writeBuffer.force();
+        writeBuffer = (MappedByteBuffer)map(n,FileChannel.MapMode.READ_WRITE);
+        writeSegment = n;
+        committedOffset = 0;
+        committedSegment = n;
+    }
+
+    //------------------------------------
+    //Appending (request threads)...
+    //------------------------------------
+
+    /**
+       @return true if the record is in the spool, false if it could not
+       be written (the caller should fall back to writing it directly)
+    */
+    public boolean append(AccessLogRecord record) {
+        byte[] payload = encode(record);
+        if(payload.length + 8 > segmentSize) { numRejected.incrementAndGet(); return false; }
+        synchronized(this) {
+            try{
+                if(writeBuffer == null) return false;
+                int offset = writeBuffer.position();
+                //room for the record and the 0 length that ends the segment
+                if(offset + 4 + payload.length + 4 > segmentSize) {
+                    if(writeSegment+1 - readSegment >= maxSegments) {
+                        //full, until the drainer catches up
+                        numRejected.incrementAndGet();
+                        return false;
+                    }
+                    roll(writeSegment+1);
+                    offset = 0;
+                }
+                writeBuffer.position(offset+4);
+                writeBuffer.put(payload);
+                writeBuffer.putInt(offset,payload.length);
+                committedOffset = writeBuffer.position();
+            }catch(IOException e) {
+                log.error("Could not append to the access logging spool",e);
+                numRejected.incrementAndGet();
+                return false;
+            }
+        }
+        numAppended.incrementAndGet();
+        return true;
+    }
+
+    //------------------------------------
+    //Draining...
+    //------------------------------------
+
+    public synchronized void start() {
+        if(running) return;
+        log.info("Starting access logging spool drainer: [dir="+dir+", segmentSize="+segmentSize+", batchSize="+batchSize+"]");
+        running = true;
+        drainerThread = new Thread(this,"AccessLoggingSpoolDrainer");
+        drainerThread.setDaemon(true);
+        drainerThread.start();
+    }
+
+    /**
+       Stops the drainer (after one last attempt to drain everything)
+       and flushes the current segment to disk.  What could not be
+       drained stays in the spool for the next start.
+    */
+    public void shutdown(long waitMillis) {
+        Thread t = null;
+        synchronized(this) {
+            if(!running) return;
+            running = false;
+            t = drainerThread;
+            drainerThread = null;
+        }
+        t.interrupt();
+        try{
+            t.join(waitMillis);
+        }catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized(this) {
+            if(writeBuffer != null) writeBuffer.force();
+            writeBuffer = null;
+        }
+        log.info("Access logging spool stopped: [appended="+numAppended.get()+", drained="+numDrained.get()+", rejected="+numRejected.get()+
+                 ", bad="+numBadRecords.get()+"]");
+    }
+
+    public long getNumAppended() { return numAppended.get(); }
+    public long getNumDrained() { return numDrained.get(); }
+    public long getNumRejected() { return numRejected.get(); }
+    public long getNumBadRecords() { return numBadRecords.get(); }
+
+    public void run() {
+        long backoff = pollMillis;
+        boolean lastTry = false;
+        while(true) {
+            int n = -1;
+            try{
+                n = drainBatch();
+            }catch(Throwable t) {
+                log.error("Problem draining the access logging spool",t);
+            }
+            if(n > 0) { backoff = pollMillis; continue; }
+            if(!running) {
+                if(lastTry || n == 0) break;
+                lastTry = true;
+                continue;
+            }
+            //nothing to drain (n == 0) or the database is not taking records (n < 0)
+            try{
+                Thread.sleep((n == 0) ? pollMillis : backoff);
+            }catch(InterruptedException e) {
+                //shutdown() interrupts us, go around for a last drain
+            }
+            if(n < 0) backoff = Math.min(MAX_BACKOFF_MILLIS,backoff*2);
+        }
+    }
+
+    /**
+       Inserts the next batch of records and moves the checkpoint past them.
+
+       @return the number of records drained, 0 if there were none, -1 if they could not be inserted
+    */
+    int drainBatch() throws IOException {
+        List<AccessLogRecord> batch = new ArrayList<AccessLogRecord>(batchSize);
+        long segment = readSegment;
+        int offset = readOffset;
+        while(batch.size() < batchSize) {
+            long limitSegment = committedSegment;
+            int limit = (segment == limitSegment) ? committedOffset : segmentSize;
+            if(segment > limitSegment) break;
+            ByteBuffer buffer = (offset+4 <= limit) ? readBuffer(segment) : null;
+            int length = (buffer == null || offset+4 > buffer.limit()) ? 0 : buffer.getInt(offset);
+            if(length <= 0) {
+                if(segment == limitSegment) break; //caught up with the appends
+                //end of a finished segment, on to the next one
+                segment++;
+                offset = 0;
+                continue;
+            }
+            byte[] payload = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset+4);
+            view.get(payload);
+            offset += 4 + length;
+            AccessLogRecord record = decode(payload);
+            if(record != null) batch.add(record);
+        }
+
+        if(!batch.isEmpty()) {
+            List<AccessLogRecord> bad = new ArrayList<AccessLogRecord>();
+            int inserted = accessLoggingDAO.logCompleteInfoBatch(batch);
+            if(inserted == 0 && ++failures >= maxAttempts) {
+                log.warn("Spooled access log batch failed ["+failures+"] times, retrying it record by record");
+                for(AccessLogRecord record : batch) {
+                    record.id = -1;
+                    if(accessLoggingDAO.logCompleteInfoBatch(Collections.singletonList(record)) > 0) inserted++;
+                    else bad.add(record);
+                }
+            }else if(inserted > 0 && inserted < batch.size()) {
+                for(AccessLogRecord record : batch) if(record.id <= 0) bad.add(record);
+            }
+            if(inserted == 0) {
+                //leave the checkpoint where it is and try again later
+                if(failures >= maxAttempts) failures = 0; //down, not poisoned, start counting again
+                return -1;
+            }
+            failures = 0;
+            if(!bad.isEmpty()) reject(bad);
+            numDrained.addAndGet(inserted);
+        }
+        if(segment == readSegment && offset == readOffset) return 0;
+        checkpoint(segment,offset);
+        //whatever lies behind the checkpoint is done with
+        for(long s = readSegment; s < segment; s++) {
+            if(!segmentFile(s).delete()) log.warn("Could not delete drained spool segment "+segmentFile(s));
+        }
+        if(readBufferSegment < segment) { readBuffer = null; readBufferSegment = -1; }
+        readSegment = segment;
+        readOffset = offset;
+        return batch.size();
+    }
+
+    //Keeps records that could not be inserted out of the way, in the rejects file
+    private void reject(List<AccessLogRecord> records) throws IOException {
+        log.warn("Moving ["+records.size()+"] spooled access log records that could not be inserted to "+new File(dir,REJECTS));
+        FileOutputStream out = new FileOutputStream(new File(dir,REJECTS),true);
+        try{
+            for(AccessLogRecord record : records) {
+                byte[] payload = encode(record);
+                out.write(ByteBuffer.allocate(4).putInt(payload.length).array());
+                out.write(payload);
+            }
+            out.getFD().sync();
+        }finally{
+            out.close();
+        }
+        numBadRecords.addAndGet(records.size());
+    }
+
+    private ByteBuffer readBuffer(long segment) throws IOException {
+        if(readBufferSegment == segment && readBuffer != null) return readBuffer;
+        if(!segmentFile(segment).exists()) return null;
+        readBuffer = (MappedByteBuffer)map(segment,FileChannel.MapMode.READ_ONLY);
+        readBufferSegment = segment;
+        return readBuffer;
+    }
+
+    private void checkpoint(long segment, int offset) throws IOException {
+        File tmp = new File(dir,CHECKPOINT+".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try{
+            out.write((segment+" "+offset+"\n").getBytes(UTF8));
+            out.getFD().sync();
+        }finally{
+            out.close();
+        }
+        Files.move(tmp.toPath(),new File(dir,CHECKPOINT).toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //------------------------------------
+    //Record encoding...
+    //------------------------------------
+
+    static byte[] encode(AccessLogRecord r) {
+        byte[][] strings = { bytes(r.userID), bytes(r.email), bytes(r.url), bytes(r.fileID),
+                             bytes(r.remoteAddress), bytes(r.userAgent), bytes(r.serviceName) };
+        int size = 8*2 + 1 + 8*3;
+        for(byte[] s : strings) size += 4 + ((s == null) ? 0 : s.length);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for(byte[] s : strings) {
+            if(s == null) { buffer.putInt(-1); continue; }
+            buffer.putInt(s.length).put(s);
+        }
+        buffer.putLong(r.batchUpdateTime).putLong(r.dateFetched);
+        buffer.put((byte)(r.success ? 1 : 0));
+        buffer.putLong(r.duration).putLong(r.dataSize).putLong(r.xferSize);
+        return buffer.array();
+    }
+
+    static AccessLogRecord decode(byte[] payload) {
+        try{
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            AccessLogRecord r = new AccessLogRecord();
+            r.userID = string(buffer);
+            r.email = string(buffer);
+            r.url = string(buffer);
+            r.fileID = string(buffer);
+            r.remoteAddress = string(buffer);
+            r.userAgent = string(buffer);
+            r.serviceName = string(buffer);
+            r.batchUpdateTime = buffer.getLong();
+            r.dateFetched = buffer.getLong();
+            r.success = (buffer.get() != 0);
+            r.duration = buffer.getLong();
+            r.dataSize = buffer.getLong();
+            r.xferSize = buffer.getLong();
+            return r;
+        }catch(RuntimeException e) {
+            log.warn("Skipping unreadable spooled access log record: "+e);
+            return null;
+        }
+    }
+
+    private static byte[] bytes(String s) { return (s == null) ? null : s.getBytes(UTF8); }
+
+    private static String string(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if(length < 0) return null;
+        String s = new String(buffer.array(),buffer.position(),length,UTF8);
+        buffer.position(buffer.position()+length);
+        return s;
+    }
+
+    public String toString() {
+        return "AccessLoggingSpool: [dir="+dir+", running="+running+", appended="+numAppended.get()+", drained="+numDrained.get()+
+            ", rejected="+numRejected.get()+", bad="+numBadRecords.get()+", at="+readSegment+":"+readOffset+"]";
+    }
+}
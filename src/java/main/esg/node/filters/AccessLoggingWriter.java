@@ -0,0 +1,283 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Write-behind pipeline for the access logging filter.  Instead of
+   issuing the ingress INSERT and egress UPDATE on the request thread,
+   the filter hands AccessLogRecords to this writer, which places them
+   on a bounded in-memory queue.  A single background thread drains
+   the queue and flushes the records to the database using JDBC batch
+   inserts and updates (see AccessLoggingDAO#logIngressInfoBatch and
+   AccessLoggingDAO#logEgressInfoBatch), or, in the deferred mode,
+   whole-row inserts (AccessLoggingDAO#logCompleteInfoBatch).
+
+   A batch is flushed when it reaches the configured batch size or
+   when the flush interval has elapsed since the last flush, whichever
+   comes first.  What happens when the queue is full is governed by
+   the OverflowPolicy:
+
+   BLOCK - the request thread waits for room on the queue
+   DROP  - the record is discarded (and counted)
+   SYNC  - the record is written synchronously on the request thread
+
+   shutdown() drains whatever is left on the queue before returning,
+   so it must be called (from the filter's destroy()) before the
+   database resource is shut down.
+
+**/
+package esg.node.filters;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class AccessLoggingWriter implements Runnable {
+
+    private static final Log log = LogFactory.getLog(AccessLoggingWriter.class);
+
+    public enum OverflowPolicy { BLOCK, DROP, SYNC }
+
+    private static final int INGRESS = 0;
+    private static final int EGRESS  = 1;
+    private static final int COMPLETE = 2;
+
+    private final AccessLoggingDAO accessLoggingDAO;
+    private final BlockingQueue<Entry> queue;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final OverflowPolicy overflowPolicy;
+
+    private final AtomicLong numDropped = new AtomicLong(0);
+    private final AtomicLong numWritten = new AtomicLong(0);
+
+    private volatile boolean running = false;
+    private Thread writerThread = null;
+
+    public AccessLoggingWriter(AccessLoggingDAO accessLoggingDAO,
+                               int capacity,
+                               int batchSize,
+                               long flushIntervalMillis,
+                               OverflowPolicy overflowPolicy) {
+        this.accessLoggingDAO = accessLoggingDAO;
+        this.queue = new ArrayBlockingQueue<Entry>(capacity);
+        this.batchSize = Math.max(1,batchSize);
+        this.flushIntervalMillis = Math.max(1L,flushIntervalMillis);
+        this.overflowPolicy = (overflowPolicy == null) ? OverflowPolicy.BLOCK : overflowPolicy;
+    }
+
+    public synchronized void start() {
+        if(running) return;
+        log.info("Starting access logging writer: [capacity="+(queue.remainingCapacity()+queue.size())+", batchSize="+batchSize+
+                 ", flushInterval="+flushIntervalMillis+"ms, overflow="+overflowPolicy+"]");
+        running = true;
+        writerThread = new Thread(this,"AccessLoggingWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+       Stops accepting records, flushes everything still queued and
+       waits (up to the given time) for the writer thread to finish.
+    */
+    public void shutdown(long waitMillis) {
+        Thread t = null;
+        synchronized(this) {
+            if(!running) return;
+            running = false;
+            t = writerThread;
+            writerThread = null;
+        }
+        log.info("Shutting down access logging writer, ["+queue.size()+"] records pending");
+        t.interrupt();
+        try{
+            t.join(waitMillis);
+        }catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(t.isAlive()) log.warn("Access logging writer did not finish flushing within "+waitMillis+"ms");
+        log.info("Access logging writer stopped: [written="+numWritten.get()+", dropped="+numDropped.get()+"]");
+    }
+
+    public void shutdown() { shutdown(30000L); }
+
+    public boolean isRunning() { return running; }
+    public int  getQueueSize() { return queue.size(); }
+    public long getNumDropped() { return numDropped.get(); }
+    public long getNumWritten() { return numWritten.get(); }
+
+    //------------------------------------
+    //Called from the request threads...
+    //------------------------------------
+
+    public boolean logIngressInfo(AccessLogRecord record) { return enqueue(new Entry(INGRESS,record)); }
+    public boolean logEgressInfo(AccessLogRecord record)  { return enqueue(new Entry(EGRESS,record)); }
+    public boolean logCompleteInfo(AccessLogRecord record) { return enqueue(new Entry(COMPLETE,record)); }
+
+    private boolean enqueue(Entry entry) {
+        if(!running) {
+            //Nothing is draining the queue, don't let records pile up in it.
+            return writeThrough(entry);
+        }
+        if(queue.offer(entry)) return true;
+
+        switch(overflowPolicy) {
+        case DROP:
+            if((numDropped.incrementAndGet() % 1000) == 1) {
+                log.warn("Access logging queue is full, dropping records (dropped so far: "+numDropped.get()+")");
+            }
+            return false;
+        case SYNC:
+            //An egress for a record whose ingress is still waiting in
+            //the queue has no row to update yet, so it has to wait its turn.
+            if(entry.type != EGRESS || entry.record.inserted) return writeThrough(entry);
+            return put(entry);
+        case BLOCK:
+        default:
+            return put(entry);
+        }
+    }
+
+    //Waits for room in the queue
+    private boolean put(Entry entry) {
+        try{
+            queue.put(entry);
+            return true;
+        }catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            numDropped.incrementAndGet();
+            return false;
+        }
+    }
+
+    private boolean writeThrough(Entry entry) {
+        AccessLogRecord r = entry.record;
+        if(entry.type == INGRESS) return (r.inserted = (accessLoggingDAO.logIngressInfo(r) > 0));
+        if(entry.type == COMPLETE) return (accessLoggingDAO.logCompleteInfo(r) > 0);
+        if(r.id <= 0) return false;
+        return (accessLoggingDAO.logEgressInfo(r.id,r.success,r.duration,r.dataSize,r.xferSize) > 0);
+    }
+
+    //------------------------------------
+    //The writer thread...
+    //------------------------------------
+
+    public void run() {
+        List<Entry> pending = new ArrayList<Entry>(batchSize);
+        long lastFlush = System.currentTimeMillis();
+        while(running || !queue.isEmpty()) {
+            try{
+                Entry entry = running ? queue.poll(flushIntervalMillis,TimeUnit.MILLISECONDS) : queue.poll();
+                if(entry != null) {
+                    pending.add(entry);
+                    queue.drainTo(pending,batchSize - pending.size());
+                }
+            }catch(InterruptedException e) {
+                //shutdown() interrupts us, loop around and drain what is left
+            }
+            long now = System.currentTimeMillis();
+            if((pending.size() >= batchSize) || (!pending.isEmpty() && ((now - lastFlush) >= flushIntervalMillis || !running))) {
+                flush(pending);
+                pending.clear();
+                lastFlush = now;
+            }
+            //Staged egress records (COPY ingest) are merged even when traffic stops
+            accessLoggingDAO.mergeStagedEgress(false);
+        }
+        if(!pending.isEmpty()) flush(pending);
+        accessLoggingDAO.mergeStagedEgress(true);
+    }
+
+    //Ingress records are flushed before egress records so that an
+    //egress that arrives in the same batch as its ingress finds the
+    //id assigned to it by the insert.
+    private void flush(List<Entry> entries) {
+        List<AccessLogRecord> ingress = new ArrayList<AccessLogRecord>(entries.size());
+        List<AccessLogRecord> egress  = new ArrayList<AccessLogRecord>(entries.size());
+        List<AccessLogRecord> complete = new ArrayList<AccessLogRecord>(0);
+        for(Entry entry : entries) {
+            if(entry.type == INGRESS) ingress.add(entry.record);
+            else if(entry.type == EGRESS) egress.add(entry.record);
+            else complete.add(entry.record);
+        }
+        try{
+            if(!ingress.isEmpty()) {
+                numWritten.addAndGet(accessLoggingDAO.logIngressInfoBatch(ingress));
+                //(the records that did not make it have had their id set to -1)
+                for(AccessLogRecord record : ingress) record.inserted = (record.id > 0);
+            }
+            if(!egress.isEmpty())  accessLoggingDAO.logEgressInfoBatch(egress);
+            if(!complete.isEmpty()) numWritten.addAndGet(accessLoggingDAO.logCompleteInfoBatch(complete));
+        }catch(Throwable t) {
+            log.error("Problem flushing ["+entries.size()+"] access logging records",t);
+        }
+    }
+
+    private static class Entry {
+        final int type;
+        final AccessLogRecord record;
+        Entry(int type, AccessLogRecord record) {
+            this.type = type;
+            this.record = record;
+        }
+    }
+
+    public String toString() {
+        return "AccessLoggingWriter: [running="+running+", queued="+queue.size()+", written="+numWritten.get()+", dropped="+numDropped.get()+"]";
+    }
+}
@@ -57,11 +57,20 @@ package esg.node.filters;
 import java.io.IOException;
 import java.io.OutputStream;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletResponse;
 
 
 /**
- * Implementation of <b>ServletOutputStream</b>
+ * Implementation of <b>ServletOutputStream</b> that counts the bytes
+ * written through it and reports the total to a ByteCountListener
+ * when it is closed.
+ * <p>
+ * With a buffer size of 0 the stream is in <i>pass-through</i> mode:
+ * writes are handed straight to the container's output stream (which
+ * does its own buffering) and all that is added is the counting.  This
+ * avoids copying every byte of large downloads through an extra buffer.
+ *
  * @author Gavin M. Bell
  */
 
@@ -74,6 +83,7 @@ public class ByteCountingResponseStream extends ServletOutputStream {
     protected byte[] buffer = null;
     protected int bufferCount = 0;
     protected long totalBytes = 0;
+    protected boolean passThrough = true;
 
     /**
      * Construct a servlet output stream associated with the specified Response.
@@ -106,8 +116,24 @@ public class ByteCountingResponseStream extends ServletOutputStream {
      */
     protected void setBuffer(int _buffSize) {
         this.buffSize = _buffSize;
-        buffer = new byte[buffSize];
-        if (debug > 1) { System.out.println("buffer is set to "+buffSize); }
+        this.passThrough = (buffSize <= 0);
+        buffer = passThrough ? null : new byte[buffSize];
+        if (debug > 1) { System.out.println("buffer is set to "+buffSize+(passThrough ? " (pass-through)" : "")); }
+    }
+
+    public boolean isPassThrough() { return passThrough; }
+
+    /**
+     * Write out whatever is in our buffer to the underlying stream
+     */
+    protected void flushBuffer() throws IOException {
+        if (bufferCount > 0) {
+            if (debug > 1) {
+                System.out.println("flushing out to stream, bufferCount = " + bufferCount);
+            }
+            output.write(buffer, 0, bufferCount);
+            bufferCount = 0;
+        }
     }
 
     /**
@@ -120,16 +146,7 @@ public class ByteCountingResponseStream extends ServletOutputStream {
         if (closed)
             throw new IOException("This output stream has already been closed");
 
-        if (bufferCount > 0) {
-            if (debug > 2) {
-                System.out.print("output.write(");
-                System.out.write(buffer, 0, bufferCount);
-                System.out.println(")");
-            }
-            output.write(buffer, 0, bufferCount);
-            bufferCount = 0;
-        }
-        
+        flushBuffer();
         output.close();
         closed = true;
         if(byteCountListener != null) byteCountListener.setByteCount(totalBytes);
@@ -150,13 +167,8 @@ public class ByteCountingResponseStream extends ServletOutputStream {
             throw new IOException("Cannot flush a closed output stream");
         }
 
-        if (bufferCount > 0) {
-            if (debug > 1) {
-                System.out.println("flushing out to stream, bufferCount = " + bufferCount);
-            }
-            write(buffer, 0, bufferCount);
-            bufferCount = 0;
-        }
+        flushBuffer();
+        output.flush();
     }
 
     /**
@@ -174,8 +186,14 @@ public class ByteCountingResponseStream extends ServletOutputStream {
         if (closed)
             throw new IOException("Cannot write to a closed output stream");
 
+        if (passThrough) {
+            output.write(b);
+            totalBytes++;
+            return;
+        }
+
         if (bufferCount >= buffer.length) {
-            flush();
+            flushBuffer();
         }
 
         buffer[bufferCount++] = (byte) b;
@@ -225,22 +243,29 @@ public class ByteCountingResponseStream extends ServletOutputStream {
         if (len == 0)
             return;
 
+        // No buffer of our own, just count what goes by...
+        if (passThrough) {
+            output.write(b, off, len);
+            totalBytes += len;
+            return;
+        }
+
         // Can we write into buffer ?
         if (len <= (buffer.length - bufferCount)) {
             System.arraycopy(b, off, buffer, bufferCount, len);
             bufferCount += len;
-            totalBytes += bufferCount;
+            totalBytes += len;
             return;
         }
 
         // There is not enough space in buffer. Flush it ...
-        flush();
+        flushBuffer();
 
         // ... and try again. Note, that bufferCount = 0 here !
         if (len <= (buffer.length - bufferCount)) {
             System.arraycopy(b, off, buffer, bufferCount, len);
             bufferCount += len;
-            totalBytes += bufferCount;
+            totalBytes += len;
             return;
         }
 
@@ -249,6 +274,34 @@ public class ByteCountingResponseStream extends ServletOutputStream {
         totalBytes+=len;
     }
 
+    /**
+     * Report the number of bytes counted so far to the listener without
+     * closing the stream.  Used when the response is finished without the
+     * servlet closing its output stream (the container closes the real one).
+     */
+    public void finish() {
+        if(byteCountListener != null) byteCountListener.setByteCount(totalBytes);
+    }
+
+    public long getByteCount() { return totalBytes; }
+
+    //------------------------------------
+    //Non-blocking I/O (Servlet 3.1)...
+    //------------------------------------
+
+    /**
+     * In non-blocking mode the servlet only writes when the container's
+     * stream is ready, and still writes through us, so the counting is
+     * the same as for blocking writes.
+     */
+    public boolean isReady() {
+        return output.isReady();
+    }
+
+    public void setWriteListener(WriteListener writeListener) {
+        output.setWriteListener(writeListener);
+    }
+
     /**
      * Has this response stream been closed?
      */
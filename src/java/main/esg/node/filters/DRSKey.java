@@ -0,0 +1,285 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   The parts of a DRS url, in fixed slots (one per DRSConstants
+   field), and the parser that fills them in.  Both the path form
+
+      product/institution/model/experiment/frequency/realm/table/ensemble/version/variable/file
+
+   and the query form (?product=...&institution=...) are read in a
+   single pass over the string, without regexes or a Properties
+   (Hashtable) per request.
+
+   A key is identified by what a resolution is looked up by - the
+   drs_id, the version and the file name - and its hash is computed
+   from those alone, so it can be used as is as a cache key (see
+   DRSResolutionCache).  The drs_id is built once, in a builder sized
+   for it.  A key may be cleared and filled again; one that has been
+   handed to a cache must not be (see copy()).
+
+**/
+package esg.node.filters;
+
+public final class DRSKey {
+
+    //Slots, one per DRSConstants field
+    public static final int PROJECT     = 0;
+    public static final int PRODUCT     = 1;
+    public static final int INSTITUTION = 2;
+    public static final int MODEL       = 3;
+    public static final int EXPERIMENT  = 4;
+    public static final int FREQUENCY   = 5;
+    public static final int REALM       = 6;
+    public static final int TABLE       = 7;
+    public static final int ENSEMBLE    = 8;
+    public static final int VERSION     = 9;
+    public static final int VARIABLE    = 10;
+    public static final int FILE        = 11;
+    public static final int NUM_SLOTS   = 12;
+
+    //The order of the parts in a DRS path (the project is implied)
+    private static final int[] PATH_ORDER = { PRODUCT, INSTITUTION, MODEL, EXPERIMENT, FREQUENCY, REALM, TABLE, ENSEMBLE, VERSION, VARIABLE, FILE };
+    static final int NUM_PATH_PARTS = PATH_ORDER.length;
+
+    //The parts of the drs_id, in order
+    private static final int[] DRS_ID_ORDER = { PROJECT, PRODUCT, INSTITUTION, MODEL, EXPERIMENT, FREQUENCY, REALM, TABLE, ENSEMBLE };
+
+    private static final String DEFAULT_PROJECT = "cmip5";
+
+    private final String[] slots = new String[NUM_SLOTS];
+    private String drsID = null;
+    private int version = 0;
+    private int hash = 0;
+
+    public DRSKey() { }
+
+    /**
+       A key for an already known resolution (ex: when loading a cache)
+    */
+    public DRSKey(String drsID, int version, String filename) {
+        this.slots[FILE] = filename;
+        this.drsID = drsID;
+        this.version = version;
+    }
+
+    /**
+       @return The slot for the given DRSConstants name, -1 if there is none
+    */
+    public static int slotFor(String name) {
+        switch(name) {
+        case DRSConstants.PROJECT:     return PROJECT;
+        case DRSConstants.PRODUCT:     return PRODUCT;
+        case DRSConstants.INSTITUTION: return INSTITUTION;
+        case DRSConstants.MODEL:       return MODEL;
+        case DRSConstants.EXPERIMENT:  return EXPERIMENT;
+        case DRSConstants.FREQUENCY:   return FREQUENCY;
+        case DRSConstants.REALM:       return REALM;
+        case DRSConstants.TABLE:       return TABLE;
+        case DRSConstants.ENSEMBLE:    return ENSEMBLE;
+        case DRSConstants.VERSION:     return VERSION;
+        case DRSConstants.VARIABLE:    return VARIABLE;
+        case DRSConstants.FILE:        return FILE;
+        default:                       return -1;
+        }
+    }
+
+    public String get(int slot) { return slots[slot]; }
+
+    public DRSKey set(int slot, String value) {
+        slots[slot] = value;
+        drsID = null;
+        version = 0;
+        hash = 0;
+        return this;
+    }
+
+    public DRSKey clear() {
+        for(int i=0; i < NUM_SLOTS; i++) slots[i] = null;
+        drsID = null;
+        version = 0;
+        hash = 0;
+        return this;
+    }
+
+    public String getFilename() { return slots[FILE]; }
+
+    /**
+       @return The dataset's drs_id: project.product.institution.model.experiment.frequency.realm.table.ensemble
+    */
+    public String getDrsID() {
+        if(drsID == null) {
+            int length = DRS_ID_ORDER.length - 1;
+            for(int slot : DRS_ID_ORDER) length += partLength(slot);
+            StringBuilder sb = new StringBuilder(length);
+            for(int i=0; i < DRS_ID_ORDER.length; i++) {
+                if(i > 0) sb.append('.');
+                appendPart(sb,DRS_ID_ORDER[i]);
+            }
+            drsID = sb.toString();
+        }
+        return drsID;
+    }
+
+    //(A missing table is left empty, any other missing part reads "null", as it always has)
+    private int partLength(int slot) {
+        String part = slots[slot];
+        return (part != null) ? part.length() : ((slot == TABLE) ? 0 : 4);
+    }
+
+    private void appendPart(StringBuilder sb, int slot) {
+        String part = slots[slot];
+        if((part == null) && (slot == TABLE)) return;
+        sb.append(part);
+    }
+
+    /**
+       @return The dataset version, the digits of the version part (which may be prefixed with a "v")
+       @throws NumberFormatException if there is no version
+    */
+    public int getVersion() {
+        if(version == 0) {
+            String v = slots[VERSION];
+            if(v == null) throw new NumberFormatException("no version in DRS url");
+            version = Integer.parseInt(((v.length() > 1) && ((v.charAt(0) == 'v') || (v.charAt(0) == 'V'))) ? v.substring(1) : v);
+        }
+        return version;
+    }
+
+    /**
+       @return A key for the same resolution that is safe to keep while this one is reused
+    */
+    public DRSKey copy() {
+        DRSKey copy = new DRSKey(getDrsID(),getVersion(),getFilename());
+        copy.hash = hashCode();
+        return copy;
+    }
+
+    //------------------------------------
+    //Parsing...
+    //------------------------------------
+
+    /**
+       Fills the key from a DRS path (a leading "/" is ignored).
+       @return false if the path does not have exactly the parts of a DRS path
+    */
+    public boolean parsePath(String path) { return parsePath(path,0,path.length()); }
+
+    public boolean parsePath(String path, int begin, int end) {
+        clear();
+        if((begin < end) && (path.charAt(begin) == '/')) begin++;
+        //(trailing "/"s do not make for more parts)
+        while((end > begin) && (path.charAt(end-1) == '/')) end--;
+        if(begin >= end) return false;
+        int part = 0;
+        while(begin <= end) {
+            int slash = path.indexOf('/',begin);
+            if((slash < 0) || (slash > end)) slash = end;
+            if(part == PATH_ORDER.length) return false;
+            slots[PATH_ORDER[part++]] = path.substring(begin,slash);
+            begin = slash+1;
+        }
+        if(part != PATH_ORDER.length) return false;
+        slots[PROJECT] = DEFAULT_PROJECT;
+        return true;
+    }
+
+    /**
+       Fills the key from a DRS query string, key=value pairs joined by
+       "&" (a leading "?" is ignored).  Unknown keys and pairs without a
+       value are skipped.
+    */
+    public DRSKey parseQuery(String query) { return parseQuery(query,0,query.length()); }
+
+    public DRSKey parseQuery(String query, int begin, int end) {
+        clear();
+        if((begin < end) && (query.charAt(begin) == '?')) begin++;
+        while(begin < end) {
+            int amp = query.indexOf('&',begin);
+            if((amp < 0) || (amp > end)) amp = end;
+            int eq = query.indexOf('=',begin);
+            if((eq > begin) && (eq < amp)) {
+                int slot = slotFor(query.substring(begin,eq));
+                if(slot >= 0) slots[slot] = query.substring(eq+1,amp);
+            }
+            begin = amp+1;
+        }
+        return this;
+    }
+
+    //------------------------------------
+    //As a key...
+    //------------------------------------
+
+    public int hashCode() {
+        int h = hash;
+        if(h == 0) {
+            h = getDrsID().hashCode();
+            h = 31 * h + getVersion();
+            h = 31 * h + ((slots[FILE] == null) ? 0 : slots[FILE].hashCode());
+            hash = h;
+        }
+        return h;
+    }
+
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof DRSKey)) return false;
+        DRSKey other = (DRSKey)o;
+        return (hashCode() == other.hashCode()) && (getVersion() == other.getVersion()) &&
+            eq(getFilename(),other.getFilename()) && getDrsID().equals(other.getDrsID());
+    }
+
+    private static boolean eq(String a, String b) { return (a == null) ? (b == null) : a.equals(b); }
+
+    public String toString() { return getDrsID()+"."+((version != 0) ? "v"+version : slots[VERSION])+"/"+slots[FILE]; }
+}
@@ -0,0 +1,203 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Cache of DRS resolutions: (drs_id, version, filename) -> location
+   of the file on this data node, keyed by DRSKey.  Resolving costs a
+   five table join (file, file_version, dataset_file_version,
+   dataset_version, dataset_attr) per request, while the same few datasets of a
+   popular experiment get downloaded over and over.
+
+   - Bounded in size with LRU eviction.  The entries are spread over a
+     number of independently locked segments (each an access ordered
+     LinkedHashMap), so request threads do not all line up on one lock
+     and every segment evicts its own least recently used entry.
+   - Lookups that find nothing are remembered too, but only briefly
+     (the negative ttl), so that a file published a moment ago is
+     found soon after.
+   - Found locations live until evicted or, if set, until their ttl
+     runs out (to pick up files that are moved or retracted).
+   - The cache may be warmed at startup from the whole published
+     catalog (see UrlResolvingDAO#preloadResolutionCache).
+
+**/
+package esg.node.filters;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DRSResolutionCache {
+
+    private static final int NUM_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong negativeHits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+       @param maxEntries How many resolutions are remembered
+       @param ttlMillis How long a found location is trusted (<= 0 for until evicted)
+       @param negativeTtlMillis How long a failed lookup is remembered (<= 0 to not remember them)
+    */
+    public DRSResolutionCache(int maxEntries, long ttlMillis, long negativeTtlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        int perSegment = Math.max(1,(maxEntries + NUM_SEGMENTS - 1) / NUM_SEGMENTS);
+        segments = new Segment[NUM_SEGMENTS];
+        for(int i=0; i < NUM_SEGMENTS; i++) segments[i] = new Segment(perSegment);
+    }
+
+    /**
+       A cached resolution. location is null when the lookup found nothing.
+    */
+    public static final class Resolution {
+        public final String location;
+        final long expires;
+        Resolution(String location, long expires) {
+            this.location = location;
+            this.expires = expires;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<DRSKey,Resolution> {
+        private static final long serialVersionUID = 1L;
+        private final int maxEntries;
+        Segment(int maxEntries) {
+            super(16,0.75f,true);
+            this.maxEntries = maxEntries;
+        }
+        protected boolean removeEldestEntry(Map.Entry<DRSKey,Resolution> eldest) { return size() > maxEntries; }
+    }
+
+    private Segment segmentFor(DRSKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (NUM_SEGMENTS - 1)];
+    }
+
+    /**
+       @return the cached resolution (whose location may be null, meaning
+       the lookup was recently found to resolve to nothing) or null if
+       the key has to be looked up
+    */
+    public Resolution lookup(DRSKey key) {
+        Segment segment = segmentFor(key);
+        Resolution entry = null;
+        synchronized(segment) {
+            entry = segment.get(key);
+            if((entry != null) && (entry.expires != 0) && (entry.expires < System.currentTimeMillis())) {
+                segment.remove(key);
+                entry = null;
+            }
+        }
+        if(entry == null) {
+            misses.incrementAndGet();
+        }else if(entry.location == null) {
+            negativeHits.incrementAndGet();
+        }else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+       Remember what a key resolved to (null for nothing).  The key is
+       kept, so it must not be changed (reused) afterwards.
+    */
+    public void put(DRSKey key, String location) {
+        long expires = 0;
+        if(location == null) {
+            if(negativeTtlMillis <= 0) return;
+            expires = System.currentTimeMillis() + negativeTtlMillis;
+        }else if(ttlMillis > 0) {
+            expires = System.currentTimeMillis() + ttlMillis;
+        }
+        Segment segment = segmentFor(key);
+        synchronized(segment) {
+            segment.put(key,new Resolution(location,expires));
+        }
+    }
+
+    public void invalidate(DRSKey key) {
+        Segment segment = segmentFor(key);
+        synchronized(segment) { segment.remove(key); }
+    }
+
+    public void clear() {
+        for(Segment segment : segments) {
+            synchronized(segment) { segment.clear(); }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for(Segment segment : segments) {
+            synchronized(segment) { size += segment.size(); }
+        }
+        return size;
+    }
+
+    public int capacity() { return segments.length * segments[0].maxEntries; }
+
+    public long getHits() { return hits.get(); }
+    public long getNegativeHits() { return negativeHits.get(); }
+    public long getMisses() { return misses.get(); }
+
+    public String toString() {
+        return "DRSResolutionCache: size="+size()+"/"+capacity()+" hits="+hits.get()+" negativeHits="+negativeHits.get()+" misses="+misses.get();
+    }
+}
@@ -0,0 +1,388 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Live download counts, kept in memory as the downloads end, so that
+   they can be looked at without going to the database (or waiting for
+   the metrics rollups to catch up).
+
+   AccessLoggingFilter hands every finished download to record(): the
+   url, user, bytes and outcome.  The project, experiment and model
+   are read off the url - the path ends in a DRS path (see DRSKey),
+   after whatever THREDDS data root it is published under, and the
+   part just before the DRS path is the project; urls that are not DRS
+   paths count under an empty project, experiment and model.  (These
+   are meant to match dataset.project, experiment and model in the
+   database, but nothing makes sure they do, so ESGMetrics only adds
+   them onto keys the database has.)  Counts are kept per (project, experiment),
+   per (project, model) and per user, as plain atomic counters (no
+   locks on the request threads), each with a sliding window of the
+   last minute for rates.  At most max.keys keys of each kind are
+   kept, the downloads of any more are only counted in the totals.
+
+   Like FilterMetrics there is one instance per class loader,
+   published over JMX (as "esg.node.filters:type=DownloadAggregator"
+   plus a context key per webapp, see Utils.jmxName), which is how
+   ESGMetrics, in the node manager, gets at them (all of them, added
+   up) when it runs in the same JVM.  The counts start at zero with the filter;
+   the database is what has the history.
+
+**/
+package esg.node.filters;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+import esg.common.Utils;
+
+public final class DownloadAggregator implements DownloadAggregatorMXBean {
+
+    private static final Log log = LogFactory.getLog(DownloadAggregator.class);
+
+    public static final String OBJECT_NAME = "esg.node.filters:type=DownloadAggregator";
+
+    //The sliding window: 12 buckets of 5 seconds
+    static final int  WINDOW_BUCKETS = 12;
+    static final long BUCKET_MILLIS  = 5000L;
+    static final long WINDOW_MILLIS  = WINDOW_BUCKETS*BUCKET_MILLIS;
+
+    private static final DownloadAggregator instance = new DownloadAggregator();
+    private static int registrations = 0;
+    private static ObjectName registeredName = null;
+
+    private final ConcurrentMap<String,Counter> experiments = new ConcurrentHashMap<String,Counter>();
+    private final ConcurrentMap<String,Counter> models = new ConcurrentHashMap<String,Counter>();
+    private final ConcurrentMap<String,Counter> users = new ConcurrentHashMap<String,Counter>();
+    private final Counter total = new Counter("","");
+    private final AtomicLong numUncounted = new AtomicLong(0);
+
+    private volatile String svcPrefix = "/thredds/fileServer/";
+    private volatile int maxKeys = 10000;
+
+    DownloadAggregator() { }
+
+    public static DownloadAggregator getInstance() { return instance; }
+
+    //Where the dataset path starts in a download url (node.download.svc.prefix)
+    public void setServicePrefix(String svcPrefix) {
+        String prefix = svcPrefix.trim();
+        if(!prefix.startsWith("/")) prefix = "/"+prefix;
+        if(!prefix.endsWith("/")) prefix = prefix+"/";
+        this.svcPrefix = prefix;
+    }
+
+    public void setMaxKeys(int maxKeys) { this.maxKeys = Math.max(1,maxKeys); }
+
+    //------------------------------------
+    //JMX registration, counted since more than one filter may use it
+    //------------------------------------
+
+    //The name this webapp's counts are published under (null if they are not)
+    public static synchronized ObjectName getRegisteredName() { return registeredName; }
+
+    public static synchronized void register() {
+        if(registrations++ > 0) return;
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = Utils.jmxName(OBJECT_NAME);
+            if(server.isRegistered(name)) {
+                log.warn("JMX name ["+name+"] is taken, download counts not registered");
+                return;
+            }
+            server.registerMBean(instance,name);
+            registeredName = name;
+        }catch(Exception e) {
+            log.warn("Could not register download counts with JMX: "+e.getMessage());
+        }
+    }
+
+    public static synchronized void unregister() {
+        if(registrations == 0 || --registrations > 0) return;
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if(registeredName != null && server.isRegistered(registeredName)) server.unregisterMBean(registeredName);
+            registeredName = null;
+        }catch(Exception e) {
+            log.warn("Could not unregister download counts from JMX: "+e.getMessage());
+        }
+    }
+
+    //------------------------------------
+    //Recording...
+    //------------------------------------
+
+    /**
+       Counts a finished download.
+       @param url The url downloaded
+       @param userID Who downloaded it
+       @param dataSize The size of the file (-1 if not known, then xferSize is counted instead)
+       @param xferSize The number of bytes sent
+       @param success Whether the whole file was sent
+    */
+    public void record(String url, String userID, long dataSize, long xferSize, boolean success) {
+        record(url,userID,dataSize,xferSize,success,System.currentTimeMillis());
+    }
+
+    void record(String url, String userID, long dataSize, long xferSize, boolean success, long now) {
+        long bytes = (dataSize >= 0) ? dataSize : Math.max(0L,xferSize);
+        long xfer = Math.max(0L,xferSize);
+        total.add(bytes,xfer,success,now);
+
+        String project = "";
+        String experiment = "";
+        String model = "";
+        int start = (url == null) ? -1 : url.indexOf(svcPrefix);
+        if(start >= 0) {
+            start += svcPrefix.length();
+            int end = url.indexOf('?',start);
+            if(end < 0) end = url.length();
+            //Walk back over the parts of the path: the last ones are
+            //the DRS path, the one before that the project (the prefix
+            //ends in "/", so the first part starts after a slash too)
+            int drsStart = -1;
+            int parts = 0;
+            int pos = end;
+            while(pos > start) {
+                int slash = url.lastIndexOf('/',pos-1);
+                if(slash < start-1) break;
+                parts++;
+                if(parts == DRSKey.NUM_PATH_PARTS) {
+                    drsStart = slash+1;
+                }else if(parts == DRSKey.NUM_PATH_PARTS+1) {
+                    DRSKey key = new DRSKey();
+                    if(key.parsePath(url,drsStart,end)) {
+                        project = url.substring(slash+1,drsStart-1);
+                        experiment = key.get(DRSKey.EXPERIMENT);
+                        model = key.get(DRSKey.MODEL);
+                    }
+                    break;
+                }
+                pos = slash;
+            }
+        }
+        count(experiments,project,experiment,bytes,xfer,success,now);
+        count(models,project,model,bytes,xfer,success,now);
+        count(users,"",(userID == null) ? "" : userID,bytes,xfer,success,now);
+    }
+
+    private void count(ConcurrentMap<String,Counter> counters, String project, String name,
+                       long bytes, long xfer, boolean success, long now) {
+        String key = project.isEmpty() ? name : project+"\t"+name;
+        Counter counter = counters.get(key);
+        if(counter == null) {
+            if(counters.size() >= maxKeys) {
+                numUncounted.incrementAndGet();
+                return;
+            }
+            Counter newCounter = new Counter(project,name);
+            counter = counters.putIfAbsent(key,newCounter);
+            if(counter == null) counter = newCounter;
+        }
+        counter.add(bytes,xfer,success,now);
+    }
+
+    //------------------------------------
+    //DownloadAggregatorMXBean
+    //------------------------------------
+
+    public List<DownloadCount> getExperimentCounts() { return snapshot(experiments); }
+    public List<DownloadCount> getModelCounts() { return snapshot(models); }
+    public List<DownloadCount> getUserCounts() { return snapshot(users); }
+    public DownloadCount getTotal() { return total.snapshot(System.currentTimeMillis()); }
+    public long getUncountedDownloads() { return numUncounted.get(); }
+
+    public void reset() {
+        experiments.clear();
+        models.clear();
+        users.clear();
+        total.clear();
+        numUncounted.set(0);
+    }
+
+    private List<DownloadCount> snapshot(Map<String,Counter> counters) {
+        long now = System.currentTimeMillis();
+        List<DownloadCount> counts = new ArrayList<DownloadCount>(counters.size());
+        for(Counter counter : counters.values()) counts.add(counter.snapshot(now));
+        return counts;
+    }
+
+    //------------------------------------
+    //Internals...
+    //------------------------------------
+
+    /**
+       The counts for one key, published as they were when read.
+       (The recent counts are those of the last minute.)
+    */
+    public static final class DownloadCount {
+        private final String project;
+        private final String name;
+        private final long downloads;
+        private final long successes;
+        private final long bytes;
+        private final long xferBytes;
+        private final long recentDownloads;
+        private final long recentBytes;
+
+        DownloadCount(String project, String name, long downloads, long successes, long bytes,
+                      long xferBytes, long recentDownloads, long recentBytes) {
+            this.project = project;
+            this.name = name;
+            this.downloads = downloads;
+            this.successes = successes;
+            this.bytes = bytes;
+            this.xferBytes = xferBytes;
+            this.recentDownloads = recentDownloads;
+            this.recentBytes = recentBytes;
+        }
+
+        public String getProject() { return project; }
+        public String getName() { return name; }
+        public long getDownloads() { return downloads; }
+        public long getSuccesses() { return successes; }
+        public long getBytes() { return bytes; }
+        public long getXferBytes() { return xferBytes; }
+        public long getRecentDownloads() { return recentDownloads; }
+        public long getRecentBytes() { return recentBytes; }
+        public double getDownloadsPerSecond() { return recentDownloads*1000.0/WINDOW_MILLIS; }
+        public double getBytesPerSecond() { return recentBytes*1000.0/WINDOW_MILLIS; }
+
+        public String toString() {
+            return "project: ["+project+"] name: ["+name+"] downloads: ["+downloads+"] bytes: ["+bytes+"] recent: ["+recentDownloads+"]";
+        }
+    }
+
+    /**
+       Running totals plus the sliding window.  A window bucket belongs
+       to the period (BUCKET_MILLIS long) stamped on it, and the first
+       add in a new period takes it over; an add racing with that may
+       be lost, so the recent counts are approximate.  The totals are
+       exact.
+    */
+    static final class Counter {
+        final String project;
+        final String name;
+        final AtomicLong downloads = new AtomicLong(0);
+        final AtomicLong successes = new AtomicLong(0);
+        final AtomicLong bytes = new AtomicLong(0);
+        final AtomicLong xferBytes = new AtomicLong(0);
+        final AtomicLongArray periods = new AtomicLongArray(WINDOW_BUCKETS);
+        final AtomicLongArray windowDownloads = new AtomicLongArray(WINDOW_BUCKETS);
+        final AtomicLongArray windowBytes = new AtomicLongArray(WINDOW_BUCKETS);
+
+        Counter(String project, String name) {
+            this.project = project;
+            this.name = name;
+            for(int i=0; i < WINDOW_BUCKETS; i++) periods.set(i,-1L);
+        }
+
+        void add(long numBytes, long numXferBytes, boolean success, long now) {
+            downloads.incrementAndGet();
+            if(success) successes.incrementAndGet();
+            bytes.addAndGet(numBytes);
+            xferBytes.addAndGet(numXferBytes);
+
+            long period = now/BUCKET_MILLIS;
+            int i = (int)(period % WINDOW_BUCKETS);
+            long stamped = periods.get(i);
+            if(stamped != period) {
+                if((stamped < period) && periods.compareAndSet(i,stamped,period)) {
+                    windowDownloads.set(i,0L);
+                    windowBytes.set(i,0L);
+                }else if(periods.get(i) != period) {
+                    return; //(clock went back, or lost the race to a newer period)
+                }
+            }
+            windowDownloads.incrementAndGet(i);
+            windowBytes.addAndGet(i,numBytes);
+        }
+
+        DownloadCount snapshot(long now) {
+            long period = now/BUCKET_MILLIS;
+            long recentDownloads = 0L;
+            long recentBytes = 0L;
+            for(int i=0; i < WINDOW_BUCKETS; i++) {
+                long stamped = periods.get(i);
+                if((stamped > period-WINDOW_BUCKETS) && (stamped <= period)) {
+                    recentDownloads += windowDownloads.get(i);
+                    recentBytes += windowBytes.get(i);
+                }
+            }
+            return new DownloadCount(project,name,downloads.get(),successes.get(),bytes.get(),xferBytes.get(),recentDownloads,recentBytes);
+        }
+
+        void clear() {
+            downloads.set(0);
+            successes.set(0);
+            bytes.set(0);
+            xferBytes.set(0);
+            for(int i=0; i < WINDOW_BUCKETS; i++) {
+                periods.set(i,-1L);
+                windowDownloads.set(i,0L);
+                windowBytes.set(i,0L);
+            }
+        }
+    }
+}
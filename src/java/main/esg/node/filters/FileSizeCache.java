@@ -0,0 +1,309 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Bounded, time-limited cache of the sizes of the files behind
+   download urls.  The access logging filter needs the size of the
+   requested file (to tell a complete transfer from a partial one), and
+   getting it costs a stat() against the archive filesystem, which on
+   NFS/GPFS mounts can be slow under load.  Popular files are
+   downloaded over and over, so the size is remembered per url for a
+   while (the time-to-live) instead of being looked up every time.
+   Files found not to exist are remembered too.
+
+   When the cache is full, expired entries are swept out first and
+   then, if need be, an arbitrary tenth of the entries is dropped.
+
+   Optionally a WatchService is used to drop entries as soon as the
+   underlying file changes: the directory of every cached file is
+   registered (up to a limit) and create/modify/delete events in it
+   invalidate the entries for that file, found through an index of the
+   urls by file path (several urls may name the same file).  Without
+   it, a changed file is noticed when its entry expires.
+
+   Lookups take no lock; changes to the cache and the index are made
+   together under the index's lock, so that they agree.
+
+**/
+package esg.node.filters;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class FileSizeCache {
+
+    private static final Log log = LogFactory.getLog(FileSizeCache.class);
+
+    //Returned by getLength when there is no (live) entry for the url
+    public static final long MISS = Long.MIN_VALUE;
+
+    private final ConcurrentHashMap<String,Entry> cache;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final Map<String,Set<String>> urlsByPath = new HashMap<String,Set<String>>(); //guards changes to the cache
+
+    private WatchService watchService = null;
+    private Thread watchThread = null;
+    private final ConcurrentHashMap<Path,WatchKey> watchedDirs = new ConcurrentHashMap<Path,WatchKey>();
+    private int maxWatchedDirs = 1000;
+
+    public FileSizeCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = Math.max(1,maxEntries);
+        this.ttlMillis = ttlMillis;
+        this.cache = new ConcurrentHashMap<String,Entry>(Math.min(this.maxEntries,1024));
+    }
+
+    /**
+       @return the cached length of the file behind the url (0 if the
+       file does not exist, just as File.length()) or MISS
+    */
+    public long getLength(String url) {
+        Entry entry = cache.get(url);
+        if(entry == null) return MISS;
+        if(entry.expires < System.currentTimeMillis()) {
+            synchronized(urlsByPath) {
+                if(cache.remove(url,entry)) unindex(url,entry);
+            }
+            return MISS;
+        }
+        return entry.length;
+    }
+
+    /**
+       Does the stat() of the given file and caches the result for the url.
+       @return the length of the file (0 if it does not exist)
+    */
+    public long put(String url, File file) {
+        boolean exists = (file != null) && file.exists();
+        long length = exists ? file.length() : 0L;
+        Entry entry = new Entry((file == null) ? null : file.getPath(),length,exists,System.currentTimeMillis()+ttlMillis);
+        synchronized(urlsByPath) {
+            if(cache.size() >= maxEntries) evict();
+            unindex(url,cache.put(url,entry));
+            index(url,entry);
+        }
+        if(exists && (watchService != null)) watch(file.getParentFile());
+        return length;
+    }
+
+    /**
+       @return whether the file behind the url exists, null if there is no (live) entry for the url
+    */
+    public Boolean exists(String url) {
+        Entry entry = cache.get(url);
+        if((entry == null) || (entry.expires < System.currentTimeMillis())) return null;
+        return entry.exists;
+    }
+
+    public void invalidate(String url) {
+        synchronized(urlsByPath) {
+            unindex(url,cache.remove(url));
+        }
+    }
+
+    public void clear() {
+        synchronized(urlsByPath) {
+            cache.clear();
+            urlsByPath.clear();
+        }
+    }
+
+    public int size() { return cache.size(); }
+
+    //Must hold the index lock
+    private void evict() {
+        long now = System.currentTimeMillis();
+        for(Iterator<Map.Entry<String,Entry>> it = cache.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String,Entry> e = it.next();
+            if(e.getValue().expires >= now) continue;
+            it.remove();
+            unindex(e.getKey(),e.getValue());
+        }
+        if(cache.size() < maxEntries) return;
+        int toDrop = Math.max(1,maxEntries/10);
+        for(Iterator<Map.Entry<String,Entry>> it = cache.entrySet().iterator(); it.hasNext() && (toDrop > 0); toDrop--) {
+            Map.Entry<String,Entry> e = it.next();
+            it.remove();
+            unindex(e.getKey(),e.getValue());
+        }
+    }
+
+    //Must hold the index lock
+    private void index(String url, Entry entry) {
+        if(entry.path == null) return;
+        Set<String> urls = urlsByPath.get(entry.path);
+        if(urls == null) {
+            urls = new HashSet<String>(2);
+            urlsByPath.put(entry.path,urls);
+        }
+        urls.add(url);
+    }
+
+    //Must hold the index lock
+    private void unindex(String url, Entry entry) {
+        if((entry == null) || (entry.path == null)) return;
+        Set<String> urls = urlsByPath.get(entry.path);
+        if(urls == null) return;
+        urls.remove(url);
+        if(urls.isEmpty()) urlsByPath.remove(entry.path);
+    }
+
+    //------------------------------------
+    //Invalidation on filesystem change...
+    //------------------------------------
+
+    public synchronized void startWatching(int maxWatchedDirs) throws IOException {
+        if(watchService != null) return;
+        this.maxWatchedDirs = maxWatchedDirs;
+        watchService = FileSystems.getDefault().newWatchService();
+        watchThread = new Thread(new Runnable() {
+                public void run() { processEvents(); }
+            },"FileSizeCacheWatcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+        log.info("Watching (up to "+maxWatchedDirs+") directories of cached files for changes");
+    }
+
+    public synchronized void stopWatching() {
+        if(watchService == null) return;
+        try{
+            watchService.close();
+        }catch(IOException e) {
+            log.warn(e);
+        }
+        watchService = null;
+        watchThread = null;
+        watchedDirs.clear();
+    }
+
+    private void watch(File dir) {
+        if(dir == null) return;
+        Path path = dir.toPath();
+        if(watchedDirs.containsKey(path) || (watchedDirs.size() >= maxWatchedDirs)) return;
+        WatchService ws = watchService;
+        if(ws == null) return;
+        try{
+            WatchKey key = path.register(ws,
+                                         StandardWatchEventKinds.ENTRY_CREATE,
+                                         StandardWatchEventKinds.ENTRY_MODIFY,
+                                         StandardWatchEventKinds.ENTRY_DELETE);
+            watchedDirs.put(path,key);
+        }catch(Exception e) {
+            log.debug("Could not watch ["+path+"]: "+e.getMessage());
+        }
+    }
+
+    private void processEvents() {
+        WatchService ws = watchService;
+        while(ws != null) {
+            WatchKey key = null;
+            try{
+                key = ws.take();
+            }catch(Exception e) {
+                //closed or interrupted: we are done
+                return;
+            }
+            Path dir = (Path)key.watchable();
+            for(WatchEvent<?> event : key.pollEvents()) {
+                if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    log.debug("Lost filesystem events for ["+dir+"], clearing cache");
+                    clear();
+                    continue;
+                }
+                invalidatePath(dir.resolve((Path)event.context()).toString());
+            }
+            if(!key.reset()) watchedDirs.remove(dir);
+        }
+    }
+
+    //Drops the entries of every url that names the file
+    void invalidatePath(String filePath) {
+        synchronized(urlsByPath) {
+            Set<String> urls = urlsByPath.remove(filePath);
+            if(urls == null) return;
+            for(String url : urls) cache.remove(url);
+        }
+    }
+
+    private static class Entry {
+        final String path;
+        final long length;
+        final boolean exists;
+        final long expires;
+        Entry(String path, long length, boolean exists, long expires) {
+            this.path = path;
+            this.length = length;
+            this.exists = exists;
+            this.expires = expires;
+        }
+    }
+
+    public String toString() {
+        return "FileSizeCache: [entries="+cache.size()+"/"+maxEntries+", ttl="+ttlMillis+"ms, watchedDirs="+watchedDirs.size()+"]";
+    }
+}
@@ -0,0 +1,279 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Logging facade for the filters.  The filters sit in front of every
+   request a data node serves, so their logging has to cost nothing
+   when it is turned off and as little as possible when it is on.
+
+   - Messages are parameterized ("resolved {} to {}") and only
+     formatted once the level is known to be enabled, so a disabled
+     call costs a level check.  The fixed-arity overloads mean no
+     varargs array is created either.  (Callers passing primitives
+     should still guard with isDebugEnabled() to avoid the boxing.)
+
+   - Optionally the (already formatted) messages are handed to a
+     background thread that does the actual writing, so request
+     threads never contend on the appender's lock or wait on its I/O.
+     If the queue is full the message is dropped and counted rather
+     than blocking the request.
+
+   - A per-request structured trace (see RequestTrace) that collects
+     key=value pairs along the way and writes them as one line when
+     the request is done.  startTrace() returns null unless tracing is
+     enabled, so it costs callers a null check otherwise.
+
+   Underneath it is plain commons-logging, as everywhere else.
+
+**/
+package esg.node.filters;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public final class FilterLog {
+
+    private static final int TRACE = 0;
+    private static final int DEBUG = 1;
+    private static final int INFO  = 2;
+    private static final int WARN  = 3;
+    private static final int ERROR = 4;
+
+    //Shared by all the filter loggers...
+    private static volatile BlockingQueue<Message> asyncQueue = null;
+    private static volatile boolean requestTraceEnabled = false;
+    private static final AtomicLong numDropped = new AtomicLong(0);
+    private static Thread asyncThread = null;
+
+    private final Log log;
+
+    private FilterLog(Log log) { this.log = log; }
+
+    public static FilterLog getLog(Class<?> clazz) { return new FilterLog(LogFactory.getLog(clazz)); }
+
+    //------------------------------------
+    //Configuration...
+    //------------------------------------
+
+    /**
+       Start writing log messages from a background thread.
+       @param capacity How many messages may be waiting to be written
+    */
+    public static synchronized void startAsync(int capacity) {
+        if(asyncQueue != null) return;
+        final BlockingQueue<Message> queue = new ArrayBlockingQueue<Message>(Math.max(1,capacity));
+        asyncThread = new Thread(new Runnable() {
+                public void run() {
+                    while(true) {
+                        try{
+                            queue.take().write();
+                        }catch(InterruptedException e) {
+                            //drain what is left and quit
+                            Message m = null;
+                            while(null != (m = queue.poll())) m.write();
+                            return;
+                        }catch(Throwable t) {
+                            //never let a bad message kill the logging thread
+                        }
+                    }
+                }
+            },"FilterLogWriter");
+        asyncThread.setDaemon(true);
+        asyncThread.start();
+        asyncQueue = queue;
+    }
+
+    public static synchronized void stopAsync() {
+        if(asyncQueue == null) return;
+        asyncQueue = null;
+        asyncThread.interrupt();
+        try{ asyncThread.join(5000); }catch(InterruptedException e) { Thread.currentThread().interrupt(); }
+        asyncThread = null;
+        if(numDropped.get() > 0) LogFactory.getLog(FilterLog.class).warn("Dropped ["+numDropped.get()+"] log messages (queue full)");
+    }
+
+    public static void setRequestTraceEnabled(boolean enabled) { requestTraceEnabled = enabled; }
+    public static boolean isRequestTraceEnabled() { return requestTraceEnabled; }
+    public static long getNumDropped() { return numDropped.get(); }
+
+    //------------------------------------
+    //Level checks...
+    //------------------------------------
+
+    public boolean isTraceEnabled() { return log.isTraceEnabled(); }
+    public boolean isDebugEnabled() { return log.isDebugEnabled(); }
+    public boolean isInfoEnabled()  { return log.isInfoEnabled(); }
+
+    //------------------------------------
+    //Logging calls...
+    //------------------------------------
+
+    public void trace(String msg) { if(log.isTraceEnabled()) emit(TRACE,msg,null); }
+    public void trace(String fmt, Object a1) { if(log.isTraceEnabled()) emit(TRACE,format(fmt,a1,null,null),null); }
+    public void trace(String fmt, Object a1, Object a2) { if(log.isTraceEnabled()) emit(TRACE,format(fmt,a1,a2,null),null); }
+    public void trace(String fmt, Object a1, Object a2, Object a3) { if(log.isTraceEnabled()) emit(TRACE,format(fmt,a1,a2,a3),null); }
+
+    public void debug(String msg) { if(log.isDebugEnabled()) emit(DEBUG,msg,null); }
+    public void debug(String fmt, Object a1) { if(log.isDebugEnabled()) emit(DEBUG,format(fmt,a1,null,null),null); }
+    public void debug(String fmt, Object a1, Object a2) { if(log.isDebugEnabled()) emit(DEBUG,format(fmt,a1,a2,null),null); }
+    public void debug(String fmt, Object a1, Object a2, Object a3) { if(log.isDebugEnabled()) emit(DEBUG,format(fmt,a1,a2,a3),null); }
+
+    public void info(String msg) { if(log.isInfoEnabled()) emit(INFO,msg,null); }
+    public void info(String fmt, Object a1) { if(log.isInfoEnabled()) emit(INFO,format(fmt,a1,null,null),null); }
+    public void info(String fmt, Object a1, Object a2) { if(log.isInfoEnabled()) emit(INFO,format(fmt,a1,a2,null),null); }
+
+    public void warn(String msg) { if(log.isWarnEnabled()) emit(WARN,msg,null); }
+    public void warn(String fmt, Object a1) { if(log.isWarnEnabled()) emit(WARN,format(fmt,a1,null,null),null); }
+
+    public void error(String msg) { if(log.isErrorEnabled()) emit(ERROR,msg,null); }
+    public void error(String msg, Throwable t) { if(log.isErrorEnabled()) emit(ERROR,msg,t); }
+    public void error(Throwable t) { if(log.isErrorEnabled()) emit(ERROR,String.valueOf(t),t); }
+
+    //------------------------------------
+    //Per-request trace...
+    //------------------------------------
+
+    /**
+       @return a new trace for the request, or null if request tracing is off
+    */
+    public RequestTrace startTrace(String url) {
+        if(!requestTraceEnabled || !log.isInfoEnabled()) return null;
+        return new RequestTrace(this,url);
+    }
+
+    /**
+       Collects what happened to one request as key=value pairs with
+       the time (in microseconds since the trace started) each was
+       added, and logs them as a single line (at INFO) on finish().
+    */
+    public static final class RequestTrace {
+        private final FilterLog owner;
+        private final long start = System.nanoTime();
+        private final StringBuilder sb = new StringBuilder(256);
+
+        RequestTrace(FilterLog owner, String url) {
+            this.owner = owner;
+            sb.append("trace url=[").append(url).append(']');
+        }
+
+        public RequestTrace add(String key, Object value) {
+            sb.append(' ').append(key).append("=[").append(value).append("]@").append((System.nanoTime()-start)/1000L);
+            return this;
+        }
+
+        public RequestTrace add(String key, long value) {
+            sb.append(' ').append(key).append("=[").append(value).append("]@").append((System.nanoTime()-start)/1000L);
+            return this;
+        }
+
+        public void finish() {
+            sb.append(" total=").append((System.nanoTime()-start)/1000L).append("us");
+            owner.emit(INFO,sb.toString(),null);
+        }
+    }
+
+    //------------------------------------
+    //Internals...
+    //------------------------------------
+
+    //Substitutes the arguments for the "{}" markers in order
+    static String format(String fmt, Object a1, Object a2, Object a3) {
+        StringBuilder sb = new StringBuilder(fmt.length()+64);
+        int argIdx = 0;
+        int from = 0;
+        int idx = 0;
+        while((idx = fmt.indexOf("{}",from)) >= 0) {
+            sb.append(fmt,from,idx);
+            sb.append((argIdx == 0) ? a1 : (argIdx == 1) ? a2 : a3);
+            argIdx++;
+            from = idx+2;
+            if(argIdx == 3) break;
+        }
+        sb.append(fmt,from,fmt.length());
+        return sb.toString();
+    }
+
+    private void emit(int level, String msg, Throwable t) {
+        BlockingQueue<Message> queue = asyncQueue;
+        if(queue == null) { write(log,level,msg,t); return; }
+        if(!queue.offer(new Message(log,level,msg,t))) numDropped.incrementAndGet();
+    }
+
+    private static void write(Log log, int level, String msg, Throwable t) {
+        switch(level) {
+        case TRACE: log.trace(msg,t); break;
+        case DEBUG: log.debug(msg,t); break;
+        case INFO:  log.info(msg,t);  break;
+        case WARN:  log.warn(msg,t);  break;
+        default:    log.error(msg,t); break;
+        }
+    }
+
+    private static final class Message {
+        final Log log;
+        final int level;
+        final String msg;
+        final Throwable t;
+        Message(Log log, int level, String msg, Throwable t) {
+            this.log = log;
+            this.level = level;
+            this.msg = msg;
+            this.t = t;
+        }
+        void write() { FilterLog.write(log,level,msg,t); }
+    }
+}
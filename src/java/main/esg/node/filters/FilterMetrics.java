@@ -0,0 +1,217 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Where the time goes in the filters.
+
+   Latency histograms (see LatencyHistogram) for the steps the
+   filters take on the way in and out of a download:
+
+   classify - AccessLoggingFilter deciding if the url gets logged
+   resolve  - finding the size of the file behind the url
+   ingress  - recording the start of a download (insert or enqueue)
+   egress   - recording the end of a download (update or enqueue)
+   filter   - total time AccessLoggingFilter adds to a request
+              (everything but the rest of the chain)
+   drs      - UrlResolvingFilter resolving a DRS url
+
+   plus counters of what happened to the requests and, in the deferred
+   logging mode, the downloads in flight (see AccessLoggingInFlight).  There is one
+   instance per class loader (the filters of a webapp share it); it is
+   published over JMX and as JSON by FilterMetricsServlet.
+
+**/
+package esg.node.filters;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+import esg.common.Utils;
+
+public final class FilterMetrics implements FilterMetricsMXBean {
+
+    private static final Log log = LogFactory.getLog(FilterMetrics.class);
+
+    public static final String OBJECT_NAME = "esg.node.filters:type=FilterMetrics";
+
+    private static final FilterMetrics instance = new FilterMetrics();
+    private static int registrations = 0;
+    private static ObjectName registeredName = null;
+
+    public final LatencyHistogram classify = new LatencyHistogram("classify");
+    public final LatencyHistogram resolve  = new LatencyHistogram("resolve");
+    public final LatencyHistogram ingress  = new LatencyHistogram("ingress");
+    public final LatencyHistogram egress   = new LatencyHistogram("egress");
+    public final LatencyHistogram filter   = new LatencyHistogram("filter");
+    public final LatencyHistogram drs      = new LatencyHistogram("drs");
+    private final LatencyHistogram[] histograms = { classify, resolve, ingress, egress, filter, drs };
+
+    public final AtomicLong requests      = new AtomicLong(0);
+    public final AtomicLong exempt        = new AtomicLong(0);
+    public final AtomicLong uninteresting = new AtomicLong(0);
+    public final AtomicLong unauthorized  = new AtomicLong(0);
+    public final AtomicLong logged        = new AtomicLong(0);
+    public final AtomicLong resolved      = new AtomicLong(0);
+    public final AtomicLong errors        = new AtomicLong(0);
+
+    private volatile AccessLoggingInFlight inFlight = null;
+
+    private FilterMetrics() { }
+
+    //Set by AccessLoggingFilter in the deferred mode (null otherwise)
+    public void setInFlight(AccessLoggingInFlight inFlight) { this.inFlight = inFlight; }
+
+    public static FilterMetrics getInstance() { return instance; }
+
+    //------------------------------------
+    //JMX registration, counted since more than one filter uses it
+    //------------------------------------
+
+    public static synchronized void register() {
+        if(registrations++ > 0) return;
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            //(one per webapp, see Utils.jmxName)
+            ObjectName name = Utils.jmxName(OBJECT_NAME);
+            if(server.isRegistered(name)) {
+                log.warn("JMX name ["+name+"] is taken, filter metrics not registered");
+                return;
+            }
+            server.registerMBean(instance,name);
+            registeredName = name;
+        }catch(Exception e) {
+            log.warn("Could not register filter metrics with JMX: "+e.getMessage());
+        }
+    }
+
+    public static synchronized void unregister() {
+        if(registrations == 0 || --registrations > 0) return;
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if(registeredName != null && server.isRegistered(registeredName)) server.unregisterMBean(registeredName);
+            registeredName = null;
+        }catch(Exception e) {
+            log.warn("Could not unregister filter metrics from JMX: "+e.getMessage());
+        }
+    }
+
+    //------------------------------------
+    //FilterMetricsMXBean
+    //------------------------------------
+
+    public long getRequests() { return requests.get(); }
+    public long getExemptRequests() { return exempt.get(); }
+    public long getUninterestingRequests() { return uninteresting.get(); }
+    public long getUnauthorizedRequests() { return unauthorized.get(); }
+    public long getLoggedRequests() { return logged.get(); }
+    public long getResolvedRequests() { return resolved.get(); }
+    public long getErrors() { return errors.get(); }
+    public int  getInFlightDownloads() { AccessLoggingInFlight f = inFlight; return (f == null) ? 0 : f.getInFlight(); }
+    public long getAbandonedDownloads() { AccessLoggingInFlight f = inFlight; return (f == null) ? 0 : f.getNumAbandoned(); }
+
+    public Map<String,Long> getLatencyMicros() {
+        Map<String,Long> latencies = new LinkedHashMap<String,Long>();
+        for(LatencyHistogram h : histograms) {
+            latencies.put(h.getName()+".count",h.getCount());
+            latencies.put(h.getName()+".mean",h.getMeanNanos()/1000L);
+            latencies.put(h.getName()+".p50",h.getPercentileNanos(50.0)/1000L);
+            latencies.put(h.getName()+".p99",h.getPercentileNanos(99.0)/1000L);
+            latencies.put(h.getName()+".max",h.getMaxNanos()/1000L);
+        }
+        return latencies;
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("{\"counters\":{")
+            .append("\"requests\":").append(requests.get())
+            .append(",\"exempt\":").append(exempt.get())
+            .append(",\"uninteresting\":").append(uninteresting.get())
+            .append(",\"unauthorized\":").append(unauthorized.get())
+            .append(",\"logged\":").append(logged.get())
+            .append(",\"resolved\":").append(resolved.get())
+            .append(",\"errors\":").append(errors.get())
+            .append("},\"latency\":{");
+        for(int i=0; i < histograms.length; i++) {
+            if(i > 0) sb.append(',');
+            histograms[i].appendJson(sb);
+        }
+        sb.append('}');
+        AccessLoggingInFlight f = inFlight;
+        if(f != null) {
+            sb.append(",\"inFlight\":");
+            f.appendJson(sb);
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    public void reset() {
+        for(LatencyHistogram h : histograms) h.reset();
+        requests.set(0);
+        exempt.set(0);
+        uninteresting.set(0);
+        unauthorized.set(0);
+        logged.set(0);
+        resolved.set(0);
+        errors.set(0);
+    }
+}
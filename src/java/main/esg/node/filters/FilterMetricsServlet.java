@@ -0,0 +1,135 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Serves the filter metrics (see FilterMetrics) as JSON, for
+   monitoring tools that would rather poll HTTP than speak JMX.
+   Map it next to the filters, preferably behind whatever protects
+   the webapp's admin pages:
+
+  <servlet>
+    <servlet-name>FilterMetrics</servlet-name>
+    <servlet-class>esg.node.filters.FilterMetricsServlet</servlet-class>
+  </servlet>
+  <servlet-mapping>
+    <servlet-name>FilterMetrics</servlet-name>
+    <url-pattern>/esgf-filter-metrics</url-pattern>
+  </servlet-mapping>
+
+  In the deferred logging mode the downloads in flight (as of the last
+  snapshot) are included, with the user as the hash the access log
+  stores and without the client's address.
+
+  A POST with reset=true zeroes the metrics, if it is allowed to:
+  either the user has the role given by the init-param reset.role, or
+  the request carries the token given by the init-param reset.token in
+  an X-ESGF-Metrics-Token header (a header, so that other sites' pages
+  cannot make the browser send it).  Without either init-param reset
+  is turned down.
+
+  <init-param>
+    <param-name>reset.token</param-name>
+    <param-value>***</param-value>
+  </init-param>
+
+**/
+package esg.node.filters;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class FilterMetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    static final String TOKEN_HEADER = "X-ESGF-Metrics-Token";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private String resetRole = null;
+    private byte[] resetToken = null;
+
+    public void init() throws ServletException {
+        resetRole = getInitParameter("reset.role");
+        String token = getInitParameter("reset.token");
+        if((token != null) && !token.trim().isEmpty()) resetToken = token.trim().getBytes(UTF8);
+    }
+
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control","no-cache");
+        resp.getWriter().write(FilterMetrics.getInstance().toJson());
+    }
+
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if(Boolean.valueOf(req.getParameter("reset"))) {
+            if(!mayReset(req)) {
+                resp.sendError(HttpServletResponse.SC_FORBIDDEN,"Not allowed to reset the filter metrics");
+                return;
+            }
+            FilterMetrics.getInstance().reset();
+        }
+        doGet(req,resp);
+    }
+
+    boolean mayReset(HttpServletRequest req) {
+        if((resetRole != null) && req.isUserInRole(resetRole)) return true;
+        String token = req.getHeader(TOKEN_HEADER);
+        return (resetToken != null) && (token != null) && MessageDigest.isEqual(resetToken,token.trim().getBytes(UTF8));
+    }
+}
@@ -0,0 +1,179 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   A lock-free latency histogram in the style of HdrHistogram.
+
+   Values (nanoseconds) are counted in buckets laid out log-linearly:
+   every power of two is split into 16 equal sub-buckets, so a value
+   is never reported more than ~6% away from what was recorded no
+   matter if it was 2us or 20s.  The whole range of a long fits in
+   under 1000 buckets (an AtomicLongArray, ~8K) and recording is a
+   couple of shifts and an atomic increment - no locks, no
+   allocation - so it can sit on the request path of every download.
+
+   Reads (percentiles etc.) walk the buckets while writers carry on,
+   so they are a near, not exact, point in time view. That is fine
+   for monitoring.
+
+**/
+package esg.node.filters;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+
+    private static final int SUB_BITS  = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong sum = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    public LatencyHistogram(String name) { this.name = name; }
+
+    public String getName() { return name; }
+
+    /**
+       Records the time elapsed since startNanos (from System.nanoTime())
+    */
+    public void recordSince(long startNanos) { record(System.nanoTime() - startNanos); }
+
+    public void record(long nanos) {
+        if(nanos < 0) nanos = 0;
+        counts.incrementAndGet(indexFor(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long currentMax;
+        while(nanos > (currentMax = max.get())) {
+            if(max.compareAndSet(currentMax,nanos)) break;
+        }
+    }
+
+    public long getCount() { return count.get(); }
+    public long getMaxNanos() { return max.get(); }
+
+    public long getMeanNanos() {
+        long n = count.get();
+        return (n == 0) ? 0 : sum.get() / n;
+    }
+
+    /**
+       @param percentile 0.0 - 100.0
+       @return the (upper bound of the bucket holding the) value at the
+       given percentile, in nanoseconds, 0 if nothing was recorded
+    */
+    public long getPercentileNanos(double percentile) {
+        long n = count.get();
+        if(n == 0) return 0;
+        long rank = (long)Math.ceil((Math.min(100.0,Math.max(0.0,percentile)) / 100.0) * n);
+        if(rank < 1) rank = 1;
+        long seen = 0;
+        for(int i=0; i < NUM_BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= rank) return Math.min(upperBound(i),max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for(int i=0; i < NUM_BUCKETS; i++) counts.set(i,0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    //Values below SUB_COUNT get a bucket each, above that the bucket
+    //is picked by the position of the highest bit (the power of two)
+    //and the SUB_BITS bits after it.
+    static int indexFor(long value) {
+        if(value < SUB_COUNT) return (int)value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BITS;
+        int sub = (int)(value >>> shift) & (SUB_COUNT - 1);
+        return (shift + 1) * SUB_COUNT + sub;
+    }
+
+    static long lowerBound(int index) {
+        if(index < SUB_COUNT) return index;
+        int shift = (index / SUB_COUNT) - 1;
+        int sub = index % SUB_COUNT;
+        return ((long)(SUB_COUNT + sub)) << shift;
+    }
+
+    static long upperBound(int index) {
+        if(index < SUB_COUNT) return index;
+        int shift = (index / SUB_COUNT) - 1;
+        return lowerBound(index) + ((1L << shift) - 1);
+    }
+
+    //Summary in microseconds, as a JSON object
+    void appendJson(StringBuilder sb) {
+        sb.append('"').append(name).append("\":{")
+            .append("\"count\":").append(getCount())
+            .append(",\"meanMicros\":").append(getMeanNanos()/1000L)
+            .append(",\"p50Micros\":").append(getPercentileNanos(50.0)/1000L)
+            .append(",\"p90Micros\":").append(getPercentileNanos(90.0)/1000L)
+            .append(",\"p99Micros\":").append(getPercentileNanos(99.0)/1000L)
+            .append(",\"p999Micros\":").append(getPercentileNanos(99.9)/1000L)
+            .append(",\"maxMicros\":").append(getMaxNanos()/1000L)
+            .append('}');
+    }
+
+    public String toString() {
+        return name+": count="+getCount()+" p50="+getPercentileNanos(50.0)/1000L+"us p99="+getPercentileNanos(99.0)/1000L+"us max="+getMaxNanos()/1000L+"us";
+    }
+}
@@ -51,16 +51,25 @@
 /**
    Description:
 
+   Resolves the path part of a download url to the local filesystem
+   path of the file, using the mount points (thredds_dataset_roots)
+   read from esg.ini.  Ex: with the mount point "esg_dataroot" -->
+   "/esg/data", the path "/esg_dataroot/cmip5/foo.nc" resolves to
+   "/esg/data/cmip5/foo.nc".
+
+   The mount points are kept in a trie keyed by path segment, so a
+   lookup is a longest-prefix match that costs O(path depth) no matter
+   how many mount points there are, and allocates nothing but the
+   resulting string.  The trie is never modified once built, lookups
+   only read it, so any number of request threads can resolve
+   concurrently.  Loading a new set of mount points builds a new trie
+   and swaps it in atomically; requests in flight finish against the
+   old one without blocking.
+
 **/
 package esg.node.filters;
 
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
-import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
-import java.util.TreeSet;
-import java.util.Comparator;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -68,12 +77,12 @@ import org.apache.commons.logging.impl.*;
 
 public class MountedPathResolver implements esg.common.Resolver {
     
-    
-    private List<MountPoint> mountPoints = null;
+    private static final Log log = LogFactory.getLog(MountedPathResolver.class);
 
-    public MountedPathResolver() {
-        this.mountPoints = new ArrayList<MountPoint>(5);
-    }
+    private volatile Node root = new Node();
+    private volatile int numMountPoints = 0;
+
+    public MountedPathResolver() { }
 
     public MountedPathResolver(Map<String,String> readMountpoints) {
         this();
@@ -81,57 +90,129 @@ public class MountedPathResolver implements esg.common.Resolver {
     }
 
     //Up-front loading, getting data into the resolver
-    //adding an unordered mountpoint map
+    //adding an unordered mountpoint map (replaces any previous mounts)
     public void addMountPoints(Map<String,String> readMountpoints) {
-        this.mountPoints.clear();
+        setMountPoints(readMountpoints);
+    }
 
-        Comparator<? super String> stringLengthComparator = new Comparator<String>() {
-            public int compare(String o1, String o2) {
-                if(o1.length() > o2.length())      { return -1; }
-                else if(o1.length() < o2.length()) { return  1;}
-                else { return  0; }
-            }
-        };
-                
-        //Just sort the keys in length order.
-        TreeSet<String> rmpSorted = new TreeSet<String>(stringLengthComparator);
-        rmpSorted.addAll(readMountpoints.keySet());
-        
-        for(String key : rmpSorted) {
-            addMountPoint(key,readMountpoints.get(key));
+    /**
+       Atomically replaces the current mount points with the given
+       ones.  Lookups running concurrently see either the old or the
+       new set, never a mix, and are never blocked.
+
+       @param readMountpoints map of mount point (url path prefix) to local path
+       @return the number of mount points in the new set
+    */
+    public int setMountPoints(Map<String,String> readMountpoints) {
+        Node newRoot = new Node();
+        int count = 0;
+        for(Map.Entry<String,String> entry : readMountpoints.entrySet()) {
+            if(addMountPoint(newRoot,entry.getKey(),entry.getValue())) count++;
         }
+        this.root = newRoot;
+        this.numMountPoints = count;
+        return count;
     }
-    
-    private synchronized void addMountPoint(String mountpoint, String localpath) {
-        System.out.println("Adding mountpoint: "+mountpoint+" --> "+localpath);
-        this.mountPoints.add(new MountPoint(Pattern.compile("/"+mountpoint+"/(.*$)").matcher(""),localpath));
+
+    private static boolean addMountPoint(Node root, String mountpoint, String localpath) {
+        if((mountpoint == null) || (localpath == null)) return false;
+        Node node = root;
+        for(String segment : mountpoint.split("/")) {
+            if(!(segment = segment.trim()).isEmpty()) node = node.childFor(segment);
+        }
+        if(node == root) return false;
+        log.info("Adding mountpoint: "+mountpoint+" --> "+localpath);
+        node.localpath = localpath;
+        return true;
     }
     
     public String resolve(String input) {
-        String out = null;
-        System.out.println("Resolving "+input);
-        System.out.println("Scanning over ["+mountPoints.size()+"] mounts");
-        for(MountPoint mp : mountPoints) {
-            mp.mountmatcher.reset(input);
-            if(mp.mountmatcher.find()) {
-                System.out.print("+");
-                out = mp.localpath+java.io.File.separator+mp.mountmatcher.group(1);
-                break;
+        if(input == null) return null;
+        Node node = root;
+        String localpath = null;
+        int restStart = -1;
+        int length = input.length();
+        int begin = 0;
+
+        //walk the path a segment at a time, remembering the deepest
+        //mount point that is followed by more path
+        while(begin < length) {
+            while((begin < length) && (input.charAt(begin) == '/')) begin++;
+            int end = input.indexOf('/',begin);
+            if(end < 0) break; //a mount point must be followed by a "/"
+            if(null == (node = node.get(input,begin,end))) break;
+            if(node.localpath != null) {
+                localpath = node.localpath;
+                restStart = end+1;
             }
-            System.out.print("-");
+            begin = end+1;
         }
-        System.out.println("Resolved to local path: ["+out+"]");
+
+        String out = (localpath == null) ? null : localpath+java.io.File.separator+input.substring(restStart);
+        if(log.isDebugEnabled()) log.debug("Resolved ["+input+"] to local path: ["+out+"]");
         return out;
     }
 
-    private class MountPoint {
-        Matcher mountmatcher = null;
+    public int getNumMountPoints() { return numMountPoints; }
+
+    //------------------------------------
+    //Trie...
+    //------------------------------------
+
+    //Children are kept in a small open addressed hash table so that
+    //segments can be looked up straight out of the input string
+    //(hash and compare the region) without creating substrings.
+    private static class Node {
+        String[] keys = new String[4];
+        Node[] children = new Node[4];
+        int size = 0;
         String localpath = null;
-        MountPoint(Matcher mountmatcher, String localpath) {
-            this.mountmatcher = mountmatcher;
-            this.localpath = localpath;
+
+        Node get(String s, int begin, int end) {
+            int len = end-begin;
+            int mask = keys.length-1;
+            for(int i = hash(s,begin,end) & mask; keys[i] != null; i = (i+1) & mask) {
+                if((keys[i].length() == len) && s.regionMatches(begin,keys[i],0,len)) return children[i];
+            }
+            return null;
+        }
+
+        Node childFor(String segment) {
+            Node child = get(segment,0,segment.length());
+            if(child != null) return child;
+            if((size+1)*2 > keys.length) grow();
+            child = new Node();
+            put(segment,child);
+            return child;
+        }
+
+        private void put(String key, Node child) {
+            int mask = keys.length-1;
+            int i = hash(key,0,key.length()) & mask;
+            while(keys[i] != null) i = (i+1) & mask;
+            keys[i] = key;
+            children[i] = child;
+            size++;
+        }
+
+        private void grow() {
+            String[] oldKeys = keys;
+            Node[] oldChildren = children;
+            keys = new String[oldKeys.length*2];
+            children = new Node[oldKeys.length*2];
+            size = 0;
+            for(int i=0; i<oldKeys.length; i++) {
+                if(oldKeys[i] != null) put(oldKeys[i],oldChildren[i]);
+            }
+        }
+
+        //same as String.hashCode() over the region, spread a bit
+        private static int hash(String s, int begin, int end) {
+            int h = 0;
+            for(int i=begin; i<end; i++) h = 31*h + s.charAt(i);
+            return h ^ (h >>> 16);
         }
     }
 
-    public String toString() { return mountPoints.toString(); }
+    public String toString() { return "MountedPathResolver: ["+numMountPoints+" mount points]"; }
 }
@@ -0,0 +1,278 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Serves a file that UrlResolvingFilter has resolved a DRS url to,
+   so that whatever is behind the filter (THREDDS) does not have to
+   work out the same thing again.  How is up to the mode:
+
+   chain   - don't: the request goes on down the filter chain as
+             before, with the resolved path left in the request
+             attribute esg.drs.resolved.path (the default).
+   forward - forward the request to a context that serves the data
+             root statically (ex: a Tomcat context whose docBase is
+             the data root, reachable when crossContext="true").
+   header  - answer with just a header naming the file (X-Sendfile for
+             Apache mod_xsendfile / lighttpd, or X-Accel-Redirect for
+             nginx) and let the front end web server send it.
+   stream  - send the file ourselves, through FileChannel.transferTo,
+             or by handing it to Tomcat's sendfile when allowed and
+             the response is not wrapped (a wrapper, such as
+             AccessLoggingFilter's, would not see the bytes; list the
+             DRS paths in its access.logging.sendfile.paths to have
+             them left unwrapped).  Only whole files are streamed:
+             requests with a Range or a conditional header go down
+             the chain, to a servlet that answers them properly.
+
+   For forward and header the local path usually has to be rewritten
+   into the front end's terms: a path under "root" has root replaced
+   by "prefix" (a path not under root is left to the chain).
+
+   Only GET and HEAD requests are served; anything else, and files
+   that are not there, go down the chain untouched.
+
+   Forward, header and stream answer the request from inside
+   UrlResolvingFilter, so the filters mapped after it never see it.
+   The DRS filter must therefore be mapped AFTER the authorization
+   filters and AccessLoggingFilter.  The servlet API does not say in
+   which order filters are mapped, so this is checked on each
+   request instead: a request is only served here if it has been
+   authorized and logged (AccessLoggingFilter's request attributes are
+   set), anything else goes on down the chain as in chain mode.
+   UrlResolvingFilter also falls back to chain mode at init if
+   AccessLoggingFilter is not registered in the web app at all.
+
+**/
+package esg.node.filters;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.FilterRegistration;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class ResolvedResourceServer {
+
+    public static final String RESOLVED_PATH_ATTRIBUTE = "esg.drs.resolved.path";
+
+    public enum Mode { CHAIN, FORWARD, HEADER, STREAM }
+
+    private static final FilterLog log = FilterLog.getLog(ResolvedResourceServer.class);
+
+    private final Mode mode;
+    private final ServletContext servletContext;
+    private String root = null;
+    private String prefix = "";
+    private String forwardContext = null;
+    private String headerName = "X-Sendfile";
+    private boolean useSendfile = false;
+    private final AtomicBoolean warnedUnchecked = new AtomicBoolean(false);
+
+    public ResolvedResourceServer(Mode mode, ServletContext servletContext) {
+        this.mode = mode;
+        this.servletContext = servletContext;
+    }
+
+    public Mode getMode() { return mode; }
+
+    /**
+       @return true if an AccessLoggingFilter is registered in the web
+       app, which the modes other than chain need (see above)
+    */
+    public static boolean isAccessLoggingRegistered(ServletContext servletContext) {
+        try{
+            for(FilterRegistration registration : servletContext.getFilterRegistrations().values()) {
+                if(AccessLoggingFilter.class.getName().equals(registration.getClassName())) return true;
+            }
+        }catch(UnsupportedOperationException e) {
+            log.warn("Cannot list the filters of this web app: {}",e.getMessage());
+        }
+        return false;
+    }
+
+    //Local directory whose paths are rewritten to be under prefix (null to rewrite nothing)
+    public ResolvedResourceServer setRoot(String root) {
+        this.root = ((root == null) || root.isEmpty()) ? null : (root.endsWith("/") ? root.substring(0,root.length()-1) : root);
+        return this;
+    }
+    public ResolvedResourceServer setPrefix(String prefix) {
+        this.prefix = (prefix == null) ? "" : (prefix.endsWith("/") ? prefix.substring(0,prefix.length()-1) : prefix);
+        return this;
+    }
+    public ResolvedResourceServer setForwardContext(String forwardContext) { this.forwardContext = forwardContext; return this; }
+    public ResolvedResourceServer setHeaderName(String headerName) { this.headerName = headerName; return this; }
+    public ResolvedResourceServer setUseSendfile(boolean useSendfile) { this.useSendfile = useSendfile; return this; }
+
+    /**
+       @return true if the response has been taken care of (the chain
+       must not be called), false if the request should go on down the
+       chain
+    */
+    public boolean serve(HttpServletRequest req, HttpServletResponse res, String resourcePath) throws IOException, ServletException {
+        req.setAttribute(RESOLVED_PATH_ATTRIBUTE,resourcePath);
+        if(mode == Mode.CHAIN) return false;
+
+        String method = req.getMethod();
+        boolean head = "HEAD".equals(method);
+        if(!head && !"GET".equals(method)) return false;
+
+        //only when the filters in front have authorized and logged it
+        if(!Boolean.TRUE.equals(req.getAttribute(AccessLoggingFilter.AUTHORIZATION_REQUEST_ATTRIBUTE)) ||
+           !Boolean.TRUE.equals(req.getAttribute(AccessLoggingFilter.LOGGED_REQUEST_ATTRIBUTE))) {
+            if(warnedUnchecked.compareAndSet(false,true)) {
+                log.warn("Resolved request was not authorized and logged before getting here, leaving it to the chain (is the DRS filter mapped after the authorization and access logging filters?)");
+            }
+            return false;
+        }
+
+        File file = new File(resourcePath);
+        if(!file.isFile()) {
+            log.warn("Resolved resource does not exist: [{}]",resourcePath);
+            return false;
+        }
+
+        switch(mode) {
+        case FORWARD: return forward(req,res,resourcePath);
+        case HEADER:  return header(res,file,resourcePath);
+        case STREAM:  return !isPartialOrConditional(req) && stream(req,res,file,head);
+        default:      return false;
+        }
+    }
+
+    //The path in the front end's terms, null if it is not under root
+    String rewrite(String resourcePath) {
+        if(root == null) return prefix+resourcePath;
+        if(!resourcePath.startsWith(root) ||
+           ((resourcePath.length() > root.length()) && (resourcePath.charAt(root.length()) != '/'))) return null;
+        return prefix+resourcePath.substring(root.length());
+    }
+
+    private boolean forward(HttpServletRequest req, HttpServletResponse res, String resourcePath) throws IOException, ServletException {
+        String path = rewrite(resourcePath);
+        if(path == null) return false;
+        ServletContext context = (forwardContext == null) ? servletContext : servletContext.getContext(forwardContext);
+        if(context == null) {
+            log.warn("Cannot forward to context [{}] (is crossContext enabled?)",forwardContext);
+            return false;
+        }
+        RequestDispatcher dispatcher = context.getRequestDispatcher(path);
+        if(dispatcher == null) return false;
+        log.debug("Forwarding to [{}]",path);
+        dispatcher.forward(req,res);
+        return true;
+    }
+
+    private boolean header(HttpServletResponse res, File file, String resourcePath) {
+        String path = rewrite(resourcePath);
+        if(path == null) return false;
+        log.debug("{}: [{}]",headerName,path);
+        res.setContentType(contentType(file));
+        res.setHeader(headerName,path);
+        return true;
+    }
+
+    private boolean stream(HttpServletRequest req, HttpServletResponse res, File file, boolean head) throws IOException {
+        long length = file.length();
+        res.setContentType(contentType(file));
+        res.setContentLengthLong(length);
+        if(head || (length == 0)) return true;
+
+        if(useSendfile && !(res instanceof ServletResponseWrapper) &&
+           Boolean.TRUE.equals(req.getAttribute(AccessLoggingFilter.SENDFILE_SUPPORTED_ATTRIBUTE))) {
+            req.setAttribute(AccessLoggingFilter.SENDFILE_FILENAME_ATTRIBUTE,file.getAbsolutePath());
+            req.setAttribute(AccessLoggingFilter.SENDFILE_START_ATTRIBUTE,Long.valueOf(0L));
+            req.setAttribute(AccessLoggingFilter.SENDFILE_END_ATTRIBUTE,Long.valueOf(length));
+            return true;
+        }
+
+        FileInputStream in = new FileInputStream(file);
+        try{
+            FileChannel channel = in.getChannel();
+            WritableByteChannel out = Channels.newChannel(res.getOutputStream());
+            long position = 0;
+            while(position < length) {
+                long sent = channel.transferTo(position,length-position,out);
+                if(sent <= 0) break;
+                position += sent;
+            }
+        }finally {
+            in.close();
+        }
+        return true;
+    }
+
+    //Stream always sends the whole file with a 200
+    private boolean isPartialOrConditional(HttpServletRequest req) {
+        return (req.getHeader("Range") != null) ||
+            (req.getHeader("If-Modified-Since") != null) ||
+            (req.getHeader("If-None-Match") != null) ||
+            (req.getHeader("If-Match") != null) ||
+            (req.getHeader("If-Unmodified-Since") != null);
+    }
+
+    private String contentType(File file) {
+        String name = file.getName();
+        if(name.endsWith(".nc")) return "application/x-netcdf";
+        String type = (servletContext == null) ? null : servletContext.getMimeType(name);
+        return (type == null) ? "application/octet-stream" : type;
+    }
+}
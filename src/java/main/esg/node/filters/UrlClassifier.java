@@ -0,0 +1,207 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Decides, in a single pass over the request URL, what the access
+   logging filter should do with a request.  This replaces running
+   the exempt-extension, exempt-service and extension regexes (which
+   all start with "http.*" and so backtrack over the whole URL) one
+   after the other on every request.
+
+   The URL is classified as one of:
+
+   EXEMPT          - ends with an exempt extension or is under an exempt service
+   NOT_INTERESTING - does not end with one of the extensions we log
+   LOG             - should be logged; the result also carries the path
+                     to resolve against the mount points
+
+   Extensions are kept in a trie of reversed (lower case) strings
+   that is walked backwards from the end of the URL, exempt services
+   in a trie walked forwards from the start of the URL path.  Neither
+   lookup allocates; only a LOG result (and its path) is allocated.
+   Matching is case insensitive, as the regexes were.
+
+**/
+package esg.node.filters;
+
+public class UrlClassifier {
+
+    public enum Type { EXEMPT, NOT_INTERESTING, LOG }
+
+    public static final Result EXEMPT = new Result(Type.EXEMPT,null,false);
+    public static final Result NOT_INTERESTING = new Result(Type.NOT_INTERESTING,null,false);
+
+    private final Node extensions = new Node();
+    private final Node exemptExtensions = new Node();
+    private final Node exemptServices = new Node();
+    private final String downloadPrefix;
+
+    /**
+       @param extensions Extensions of the files that are to be logged (ex: ".nc")
+       @param exemptExtensions Extensions of the files that are never logged (ex: ".xml")
+       @param exemptServices Url path prefixes of services that are never logged (ex: "thredds/wms")
+       @param downloadPrefix Url path prefix under which files are served from the mount points (ex: "thredds/fileServer")
+    */
+    public UrlClassifier(String[] extensions, String[] exemptExtensions, String[] exemptServices, String downloadPrefix) {
+        for(String extension : extensions) addReversed(this.extensions,extension);
+        for(String extension : exemptExtensions) addReversed(this.exemptExtensions,extension);
+        for(String service : exemptServices) add(this.exemptServices,trimSlashes(service));
+        this.downloadPrefix = trimSlashes(downloadPrefix);
+    }
+
+    public Result classify(String url) {
+        if(url == null) return NOT_INTERESTING;
+
+        if(matchesSuffix(exemptExtensions,url)) return EXEMPT;
+
+        //Find where the path starts: scheme://host[:port]/path
+        int pathStart = -1;
+        int schemeEnd = url.indexOf("://");
+        if(schemeEnd >= 0) pathStart = url.indexOf('/',schemeEnd+3);
+        if((pathStart >= 0) && matchesPrefix(exemptServices,url,pathStart+1)) return EXEMPT;
+
+        if(!matchesSuffix(extensions,url)) return NOT_INTERESTING;
+        if(pathStart < 0) return new Result(Type.LOG,"",false);
+
+        if((downloadPrefix.length() > 0) && url.regionMatches(true,pathStart+1,downloadPrefix,0,downloadPrefix.length())) {
+            return new Result(Type.LOG,url.substring(pathStart+1+downloadPrefix.length()),true);
+        }
+        return new Result(Type.LOG,url.substring(pathStart+1),false);
+    }
+
+    /**
+       The outcome of classifying an url.  For LOG results the path is
+       the part of the url after the download prefix (when mounted is
+       true) to be resolved against the mount points, otherwise the
+       url path itself (without the leading "/").
+    */
+    public static class Result {
+        public final Type type;
+        public final String path;
+        public final boolean mounted;
+        Result(Type type, String path, boolean mounted) {
+            this.type = type;
+            this.path = path;
+            this.mounted = mounted;
+        }
+        public String toString() { return type+((path == null) ? "" : (mounted ? " (mounted) " : " ")+path); }
+    }
+
+    //------------------------------------
+    //Trie...
+    //------------------------------------
+
+    private static String trimSlashes(String s) {
+        if(s == null) return "";
+        s = s.trim();
+        int begin = 0;
+        int end = s.length();
+        while((begin < end) && (s.charAt(begin) == '/')) begin++;
+        while((end > begin) && (s.charAt(end-1) == '/')) end--;
+        return s.substring(begin,end);
+    }
+
+    private static void add(Node root, String key) {
+        if((key = key.trim()).isEmpty()) return;
+        Node node = root;
+        for(int i=0; i<key.length(); i++) node = node.childFor(Character.toLowerCase(key.charAt(i)));
+        node.terminal = true;
+    }
+
+    private static void addReversed(Node root, String key) {
+        add(root,new StringBuilder(key.trim()).reverse().toString());
+    }
+
+    //true if s ends with any of the keys in the (reversed) trie
+    private static boolean matchesSuffix(Node root, String s) {
+        Node node = root;
+        for(int i=s.length()-1; i>=0; i--) {
+            if(null == (node = node.get(Character.toLowerCase(s.charAt(i))))) return false;
+            if(node.terminal) return true;
+        }
+        return false;
+    }
+
+    //true if s, starting at offset, begins with any of the keys in the trie followed by a "/"
+    private static boolean matchesPrefix(Node root, String s, int offset) {
+        Node node = root;
+        for(int i=offset; i<s.length(); i++) {
+            if(node.terminal && (s.charAt(i) == '/')) return true;
+            if(null == (node = node.get(Character.toLowerCase(s.charAt(i))))) return false;
+        }
+        return false;
+    }
+
+    private static class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        boolean terminal = false;
+
+        Node get(char c) {
+            for(int i=0; i<keys.length; i++) {
+                if(keys[i] == c) return children[i];
+            }
+            return null;
+        }
+
+        Node childFor(char c) {
+            Node child = get(c);
+            if(child != null) return child;
+            child = new Node();
+            keys = java.util.Arrays.copyOf(keys,keys.length+1);
+            children = java.util.Arrays.copyOf(children,children.length+1);
+            keys[keys.length-1] = c;
+            children[children.length-1] = child;
+            return child;
+        }
+    }
+}
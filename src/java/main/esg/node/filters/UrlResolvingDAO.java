@@ -61,25 +61,22 @@ import java.util.Properties;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.net.URL;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import javax.sql.DataSource;
 
-import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
 
+import esg.common.db.StatementRunner;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.*;
 
 import esg.common.Resolver;
 
-//TODO: As a performance feature, perhaps put in a caching mechanism
-// you know, path -> targetResource
-// The tricky part is putting in the mechanism to invalidate cached items.
-// (hey maybe use the java interface to memcache!? :-) sexy...)
-// Could be nice use it with the access logging system to histogram access pattern on the fly!
-
 /**
    Utility for Resolving URLs (that adhere to the DRS taxonomy) - to the local resource path, using sql database lookup.
  */
@@ -96,21 +93,28 @@ public class UrlResolvingDAO implements Resolver, Serializable {
         "da.name='drs_id' and "+
         "da.value=?";
 
+    //Every resolvable (drs_id, version, filename) in one pass, for warming the cache
+    private static final String urlResolutionPreloadQuery = 
+        "select da.value, dv.version, f.base, fv.location from file f, file_version fv, dataset_file_version dfv, dataset_version dv, dataset_attr da "+
+        "where f.id=fv.file_id and "+
+        "fv.id=dfv.file_version_id and "+
+        "dfv.dataset_version_id=dv.id and "+
+        "dv.dataset_id=da.dataset_id and "+
+        "da.name='drs_id'";
+
+    //Rows fetched per round trip when streaming the preload query
+    private static final int PRELOAD_FETCH_SIZE = 1000;
+
     private static final Log log = LogFactory.getLog(UrlResolvingDAO.class);
     
     private DataSource dataSource = null;
-    private QueryRunner queryRunner = null;
+    private StatementRunner queryRunner = null;
     private ResultSetHandler<String> resolutionResultSetHandler = null;
+    private DRSResolutionCache resolutionCache = null;
     
     private String urlTestRegex="(https?)://(.*)$";
     private Pattern urlTestPattern = null;
     
-    private String splitPathRegex="/";
-    private Pattern splitPathPattern = null;
-    
-    private String splitQueryRegex="&";
-    private Pattern splitQueryPattern= null;
-    
     public UrlResolvingDAO(DataSource dataSource) {
         this.setDataSource(dataSource);
         init();
@@ -121,14 +125,13 @@ public class UrlResolvingDAO implements Resolver, Serializable {
     
     //Initialize result set handlers...
     public void init() { 
-        splitPathPattern  = Pattern.compile(splitPathRegex);
-        splitQueryPattern = Pattern.compile(splitQueryRegex);
         urlTestPattern = Pattern.compile(urlTestRegex);
     }
     
     public void setDataSource(DataSource dataSource) {
         this.dataSource = dataSource;
-        this.queryRunner = new QueryRunner(dataSource);
+        this.queryRunner = new StatementRunner(dataSource);
+        queryRunner.register("UrlResolvingDAO.urlResolution",urlResolutionQuery);
         this.resolutionResultSetHandler = new ResultSetHandler<String>() {
             public String handle(ResultSet rs) throws SQLException {
                 if(!rs.next()) { return null; }
@@ -138,36 +141,97 @@ public class UrlResolvingDAO implements Resolver, Serializable {
         
     }
 
+    /**
+       Remember resolutions in the given cache (null to stop caching)
+    */
+    public void setResolutionCache(DRSResolutionCache resolutionCache) { this.resolutionCache = resolutionCache; }
+    public DRSResolutionCache getResolutionCache() { return resolutionCache; }
+
+    /**
+       Fills the resolution cache from the published catalog with a
+       single query whose results are streamed (not read into memory
+       all at once), stopping when the cache is full.
+
+       @return The number of resolutions loaded
+    */
+    public int preloadResolutionCache() {
+        DRSResolutionCache cache = resolutionCache;
+        if((cache == null) || (dataSource == null)) return 0;
+        int count = 0;
+        int capacity = cache.capacity();
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        boolean autoCommit = true;
+        try{
+            conn = dataSource.getConnection();
+            //(postgres only uses a cursor, honoring the fetch size, inside a transaction)
+            autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            stmt = conn.prepareStatement(urlResolutionPreloadQuery,ResultSet.TYPE_FORWARD_ONLY,ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(PRELOAD_FETCH_SIZE);
+            rs = stmt.executeQuery();
+            while((count < capacity) && rs.next()) {
+                cache.put(new DRSKey(rs.getString(1),rs.getInt(2),rs.getString(3)),rs.getString(4));
+                count++;
+            }
+            conn.commit();
+        }catch(SQLException ex) {
+            log.error("Could not preload DRS resolution cache: "+ex.getMessage());
+        }finally {
+            try{ if(rs != null) rs.close(); }catch(SQLException e) { }
+            try{ if(stmt != null) stmt.close(); }catch(SQLException e) { }
+            try{
+                if(conn != null) {
+                    conn.setAutoCommit(autoCommit);
+                    conn.close();
+                }
+            }catch(SQLException e) { log.error(e); }
+        }
+        log.info("Preloaded ["+count+"] DRS resolutions");
+        return count;
+    }
+
     /**
        Resolves the property items to the file resource they represent on the "local" system.
        @param drsProps Property object holding key/value pairs prescribed by the DRS syntax 
        @return The string value referencing the resource the DRS syntax resolves to.
      */
     public String resolveDRSProperties(Properties drsProps) {
+        if(log.isDebugEnabled()) log.debug("URLResolvingDAO Parsed Props: "+drsProps);
+        DRSKey key = new DRSKey();
+        for(String name : drsProps.stringPropertyNames()) {
+            int slot = DRSKey.slotFor(name);
+            if(slot >= 0) key.set(slot,drsProps.getProperty(name));
+        }
+        return resolveDRSKey(key);
+    }
+
+    /**
+       Resolves the parsed DRS url to the file resource it represents on the "local" system.
+       @param key The parts of the DRS url (kept only as a copy, so may be reused)
+       @return The string value referencing the resource the DRS syntax resolves to.
+     */
+    public String resolveDRSKey(DRSKey key) {
         String targetResource = null;
         try{
-
-            System.out.println("URLResolvingDAO Parsed Props: "+drsProps);
-
-            String filename = drsProps.getProperty(DRSConstants.FILE);
-            int version =  Integer.valueOf(drsProps.getProperty(DRSConstants.VERSION)).intValue();
-            String drsid = 
-                drsProps.getProperty(DRSConstants.PROJECT)+"."+
-                drsProps.getProperty(DRSConstants.PRODUCT)+"."+
-                drsProps.getProperty(DRSConstants.INSTITUTION)+"."+
-                drsProps.getProperty(DRSConstants.MODEL)+"."+
-                drsProps.getProperty(DRSConstants.EXPERIMENT)+"."+
-                drsProps.getProperty(DRSConstants.FREQUENCY)+"."+
-                drsProps.getProperty(DRSConstants.REALM)+"."+
-                drsProps.getProperty(DRSConstants.TABLE,"")+"."+
-                drsProps.getProperty(DRSConstants.ENSEMBLE);
+            String filename = key.getFilename();
+            int version = key.getVersion();
+            String drsid = key.getDrsID();
             
-            System.out.println("URLResolvingDAO - Query Args: (filename=["+filename+"], version=["+version+"], drsid=["+drsid+"])");
+            if(log.isDebugEnabled()) log.debug("URLResolvingDAO - Query Args: (filename=["+filename+"], version=["+version+"], drsid=["+drsid+"])");
             
+            DRSResolutionCache cache = resolutionCache;
+            if(cache != null) {
+                DRSResolutionCache.Resolution cached = cache.lookup(key);
+                if(cached != null) return cached.location;
+            }
+
             //Issue query to resolve the parsed DRS parameters into where the target resource resides on this data-node
             targetResource = queryRunner.query(urlResolutionQuery,resolutionResultSetHandler,filename,version,drsid);
+            if(cache != null) cache.put(key.copy(),targetResource);
             
-            System.out.println("URLResolvingDAO - Resolved Resource: ["+targetResource+"]");
+            if(log.isDebugEnabled()) log.debug("URLResolvingDAO - Resolved Resource: ["+targetResource+"]");
             return targetResource; 
             
         }catch(SQLException ex) {
@@ -203,8 +267,26 @@ public class UrlResolvingDAO implements Resolver, Serializable {
        @see UrlResolvingDAO#resolveDRSPath(String)
     */
     public String resolveDRSUrl(String inputUrlString) throws java.net.MalformedURLException {
-        URL inputURL = new URL(inputUrlString);
-        return resolveDRSUrl(inputURL);
+        //http(s) urls are taken apart in place, anything else goes through java.net.URL
+        int pathStart = -1;
+        if(inputUrlString.startsWith("http://")) {
+            pathStart = inputUrlString.indexOf('/',7);
+        }else if(inputUrlString.startsWith("https://")) {
+            pathStart = inputUrlString.indexOf('/',8);
+        }else {
+            return resolveDRSUrl(new URL(inputUrlString));
+        }
+        int end = inputUrlString.indexOf('#');
+        if(end < 0) end = inputUrlString.length();
+        int queryStart = inputUrlString.indexOf('?');
+        if((queryStart >= 0) && (queryStart < end)) {
+            return resolveDRSKey(new DRSKey().parseQuery(inputUrlString,queryStart+1,end));
+        }
+        if(pathStart < 0) return null;
+
+        DRSKey key = new DRSKey();
+        if(!key.parsePath(inputUrlString,pathStart,end)) return null;
+        return resolveDRSKey(key);
     }
 
     /**
@@ -238,37 +320,16 @@ public class UrlResolvingDAO implements Resolver, Serializable {
 
        @param path DRS specified "cannonical" path to this data resource (file)
        @return The string value referencing the resource the DRS syntax resolves to.<p>
-       @see  UrlResolvingDAO#resolveDRSProperties(Properties)
+       @see  DRSKey#parsePath(String)
     */
     public String resolveDRSPath(String path) {
-        //make sure truncate starting "/"
-        if((path.length() > 0) && path.startsWith("/")) {
-            path = path.substring(1);
-        }
-        
         //TODO: Do more scrubbing... no "/../" etc...
 
-        System.out.println("URLResolvingDAO: Resolving Input Path: "+path);
+        if(log.isDebugEnabled()) log.debug("URLResolvingDAO: Resolving Input Path: "+path);
 
-        Properties drsProps = new Properties();
-        String[] drsPathElements = splitPathPattern.split(path);
-        if(drsPathElements.length != 11) { return null; } //TODO make an exception here and throw it!
-
-        int i = -1;
-        drsProps.setProperty(DRSConstants.PROJECT,"cmip5");
-        drsProps.setProperty(DRSConstants.PRODUCT,drsPathElements[++i]);
-        drsProps.setProperty(DRSConstants.INSTITUTION,drsPathElements[++i]);
-        drsProps.setProperty(DRSConstants.MODEL,drsPathElements[++i]);
-        drsProps.setProperty(DRSConstants.EXPERIMENT,drsPathElements[++i]);
-        drsProps.setProperty(DRSConstants.FREQUENCY,drsPathElements[++i]);
-        drsProps.setProperty(DRSConstants.REALM,drsPathElements[++i]);
-        drsProps.setProperty(DRSConstants.TABLE,drsPathElements[++i]);
-        drsProps.setProperty(DRSConstants.ENSEMBLE,drsPathElements[++i]);
-        drsProps.setProperty(DRSConstants.VERSION,drsPathElements[++i]);
-        drsProps.setProperty(DRSConstants.VARIABLE,drsPathElements[++i]);
-        drsProps.setProperty(DRSConstants.FILE,drsPathElements[++i]);
-        
-        return resolveDRSProperties(drsProps);
+        DRSKey key = new DRSKey();
+        if(!key.parsePath(path)) { return null; } //TODO make an exception here and throw it!
+        return resolveDRSKey(key);
     }
     
 
@@ -279,19 +340,7 @@ public class UrlResolvingDAO implements Resolver, Serializable {
        @see UrlResolvingDAO#resolveDRSUrl(String)
      */
     String resolveDRSQuery(String inputUrlQuery) {
-        if((inputUrlQuery.length() > 0) && inputUrlQuery.startsWith("?")) {
-            inputUrlQuery = inputUrlQuery.substring(1);
-        }
-
-        Properties drsProps = new Properties();
-        String[] queryPairs = splitQueryPattern.split(inputUrlQuery);
-        int idx=0;
-        for(String drsPair : queryPairs) {
-            //Key=Value
-            drsProps.setProperty(drsPair.substring(0,(idx=drsPair.indexOf("="))), drsPair.substring(idx+1));
-            idx=0;
-        }
-        return resolveDRSProperties(drsProps);
+        return resolveDRSKey(new DRSKey().parseQuery(inputUrlQuery));
     }
 
 }
@@ -90,6 +90,23 @@
     <url-pattern>/*</url-pattern>
   </filter-mapping>
 
+  Optional parameters (as init-params):
+
+  drs.cache.size          - number of DRS resolutions remembered, 0 to disable (default 10000)
+  drs.cache.ttl           - how long (ms) a resolved location is trusted, 0 for until evicted (default 600000)
+  drs.cache.negative.ttl  - how long (ms) a url that resolved to nothing is remembered (default 30000)
+  drs.cache.preload       - true to fill the cache from the published catalog at startup (default false)
+  drs.serve.mode          - chain | forward | header | stream, what to do with a resolved file (default chain),
+                            see ResolvedResourceServer.  Anything but chain answers the request here, so
+                            this filter must then be mapped after the authorization filters and the
+                            AccessLoggingFilter (requests they have not passed are left to the chain)
+  drs.serve.root          - local directory rewritten to drs.serve.prefix for forward and header
+  drs.serve.prefix        - what drs.serve.root is rewritten to (ex: /protected for nginx)
+  drs.serve.forward.context - context to forward to, needs crossContext="true" (default this one)
+  drs.serve.header        - header naming the file: X-Sendfile | X-Accel-Redirect | ... (default X-Sendfile)
+  drs.serve.sendfile      - true to let Tomcat sendfile streamed files whose response is not wrapped (default false)
+  db.pool.*               - connection pool tuning, see DatabaseResource
+
 **/
 package esg.node.filters;
 
@@ -98,6 +115,7 @@ import java.io.IOException;
 import java.io.File;
 import java.util.Properties;
 import java.util.Map;
+import java.util.Enumeration;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -110,40 +128,62 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-import org.apache.commons.logging.impl.*;
-
 import esg.common.db.DatabaseResource;
 
 public class UrlResolvingFilter implements Filter {
 
-    private static Log log = LogFactory.getLog(UrlResolvingFilter.class);
+    private static final FilterLog log = FilterLog.getLog(UrlResolvingFilter.class);
+    private static final FilterMetrics metrics = FilterMetrics.getInstance();
     
     FilterConfig filterConfig = null;
     UrlResolvingDAO urlResolvingDAO = null;
     Properties dbProperties = null;
     private Pattern urlPattern = null;
+    private ResolvedResourceServer resourceServer = null;
 
 
     public void init(FilterConfig filterConfig) throws ServletException {
-        System.out.println("Initializing filter: "+this.getClass().getName());
+        log.info("Initializing filter: {}",this.getClass().getName());
         this.filterConfig = filterConfig;
         dbProperties = new Properties();
-        System.out.println("FilterConfig is : "+filterConfig);
-        System.out.println("db.protocol is  : "+filterConfig.getInitParameter("db.protocol"));
+        log.debug("FilterConfig is : {}",filterConfig);
+        log.debug("db.protocol is  : {}",filterConfig.getInitParameter("db.protocol"));
         dbProperties.put("db.protocol",filterConfig.getInitParameter("db.protocol"));
         dbProperties.put("db.host",filterConfig.getInitParameter("db.host"));
         dbProperties.put("db.port",filterConfig.getInitParameter("db.port"));
         dbProperties.put("db.database",filterConfig.getInitParameter("db.database"));
         dbProperties.put("db.user",filterConfig.getInitParameter("db.user"));
         dbProperties.put("db.password",filterConfig.getInitParameter("db.password"));
+        //connection pool tuning (see DatabaseResource)
+        for(Enumeration<String> names = filterConfig.getInitParameterNames(); names.hasMoreElements();) {
+            String name = names.nextElement();
+            if(name.startsWith("db.pool.")) dbProperties.put(name,filterConfig.getInitParameter(name));
+        }
 
-        log.trace("Database parameters: "+dbProperties);
+        log.trace("Database parameters: {}",dbProperties);
 
         DatabaseResource.init(filterConfig.getInitParameter("db.driver")).setupDataSource(dbProperties);
         DatabaseResource.getInstance().showDriverStats();
         urlResolvingDAO = new UrlResolvingDAO(DatabaseResource.getInstance().getDataSource());
+
+        //------------------------------------------------------------------------
+        // Remember resolutions so popular urls don't go to the database every time...
+        //------------------------------------------------------------------------
+        int cacheSize = Integer.parseInt(getParameter("drs.cache.size","10000"));
+        if(cacheSize > 0) {
+            urlResolvingDAO.setResolutionCache(new DRSResolutionCache(cacheSize,
+                                                                      Long.parseLong(getParameter("drs.cache.ttl","600000")),
+                                                                      Long.parseLong(getParameter("drs.cache.negative.ttl","30000"))));
+            if(Boolean.valueOf(getParameter("drs.cache.preload","false"))) {
+                //warm up in the background, the filter works (just slower) until then
+                final UrlResolvingDAO dao = urlResolvingDAO;
+                Thread preloader = new Thread(new Runnable() {
+                        public void run() { dao.preloadResolutionCache(); }
+                    },"DRSResolutionCachePreloader");
+                preloader.setDaemon(true);
+                preloader.start();
+            }
+        }
         
         
         String extensionsParam = filterConfig.getInitParameter("extensions");
@@ -155,16 +195,43 @@ public class UrlResolvingFilter implements Filter {
             sb.append(extensions[i].trim());
             if(i<extensions.length-1) sb.append("|");
         }
-        System.out.println("looking for extensions: "+sb.toString());
+        log.info("looking for extensions: {}",sb);
         String regex = "http.*(?:"+sb.toString()+")$";
-        System.out.println("Regex = "+regex);
+        log.debug("Regex = {}",regex);
         
         urlPattern = Pattern.compile(regex,Pattern.CASE_INSENSITIVE);
         
-        log.trace(urlResolvingDAO.toString());
+        //------------------------------------------------------------------------
+        // What to do with the files urls resolve to...
+        //------------------------------------------------------------------------
+        resourceServer = new ResolvedResourceServer(ResolvedResourceServer.Mode.valueOf(getParameter("drs.serve.mode","chain").toUpperCase()),
+                                                    filterConfig.getServletContext())
+            .setRoot(getParameter("drs.serve.root",null))
+            .setPrefix(getParameter("drs.serve.prefix",""))
+            .setForwardContext(getParameter("drs.serve.forward.context",null))
+            .setHeaderName(getParameter("drs.serve.header","X-Sendfile"))
+            .setUseSendfile(Boolean.valueOf(getParameter("drs.serve.sendfile","false")));
+        if((resourceServer.getMode() != ResolvedResourceServer.Mode.CHAIN) &&
+           !ResolvedResourceServer.isAccessLoggingRegistered(filterConfig.getServletContext())) {
+            log.error("drs.serve.mode "+resourceServer.getMode()+" needs the AccessLoggingFilter in front of this filter, it is not registered, using chain");
+            resourceServer = new ResolvedResourceServer(ResolvedResourceServer.Mode.CHAIN,filterConfig.getServletContext());
+        }
+        log.info("Serving resolved files by: {}",resourceServer.getMode());
+
+        log.trace("{}",urlResolvingDAO);
+        FilterMetrics.register();
+    }
+
+    //Filter init-param, or the default when not given
+    private String getParameter(String name, String defaultValue) {
+        String value = filterConfig.getInitParameter(name);
+        return (value == null) ? defaultValue : value.trim();
     }
 
     public void destroy() { 
+        if((urlResolvingDAO != null) && (urlResolvingDAO.getResolutionCache() != null)) {
+            log.info("{}",urlResolvingDAO.getResolutionCache());
+        }
         this.filterConfig = null; 
         this.dbProperties.clear();
         this.urlResolvingDAO = null;
@@ -172,6 +239,7 @@ public class UrlResolvingFilter implements Filter {
         //Shutting down this resource under the assuption that no one
         //else is using this resource but us
         DatabaseResource.getInstance().shutdownResource();
+        FilterMetrics.unregister();
     }
 
     @SuppressWarnings("unchecked")
@@ -181,8 +249,6 @@ public class UrlResolvingFilter implements Filter {
         
         if(filterConfig == null) return;
         
-        boolean success = false;
-        
         //firewall off any errors so that nothing stops the show...
         try {
             if(urlResolvingDAO != null) {
@@ -197,40 +263,35 @@ public class UrlResolvingFilter implements Filter {
                 
                 if(m.matches()) {
                     
-                    System.out.println("Executing Url Filter For: "+url);
+                    log.debug("Executing Url Filter For: {}",url);
+                    long drsStart = System.nanoTime();
                     String resourcePath = urlResolvingDAO.resolveDRSUrl(url);
-                    //if(null != resourcePath) {
-                    //    File resolvedResource = new File(resourcePath);
-                    //    if(!resolvedResource.exists()) { 
-                    //        log.error("The resolved resource does not exist! ["+url+" -> "+resourcePath+"]");
-                    //        ((HttpServletResponse)response).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, 
-                    //                                                  "Requested Resource Not Present! ["+url+"]");
-                    //        return;
-                    //    }
-                    //    String contentType = "application/x-netcdf";
-                    //    //ServletUtil.returnFile(req, res, resolvedResource, contentType);
-                    //    
-                    //}
-                    //This would not work... threw IllegalStateException...
-                    //filterConfig.getServletContext().getRequestDispatcher(urlResolvingDAO.resolveUrl(url)).forward(request,response);
-
-                    log.debug("*Passing through chain...");
-                    chain.doFilter(request, response);
+                    metrics.drs.recordSince(drsStart);
+                    metrics.resolved.incrementAndGet();
+
+                    //Serve the resolved file ourselves if so configured
+                    //(then the chain must not be run as well)
+                    if((resourcePath != null) && resourceServer.serve(req,res,resourcePath)) {
+                        log.debug("Served [{}] -> [{}]",url,resourcePath);
+                        return;
+                    }
                     
                 }else {
-                    log.debug("No url resolving for: "+url);
+                    log.debug("No url resolving for: {}",url);
                 }
                 
             }else{
                 log.error("DAO is null :["+urlResolvingDAO+"]");
                 HttpServletResponse resp = (HttpServletResponse)response;
                 resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Invalid State Of ESG Url Resolving Filter");
+                return;
             }
             
         }catch(Throwable t) {
             log.error(t);
             HttpServletResponse resp = (HttpServletResponse)response;
-            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Caught unforseen Exception in ESG Url Resolving Filter");
+            if(!resp.isCommitted()) resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Caught unforseen Exception in ESG Url Resolving Filter");
+            return;
         }
         
         log.debug("Passing through chain...");
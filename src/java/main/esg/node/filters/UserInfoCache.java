@@ -0,0 +1,147 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   Memo of what the access log records about a user: the hash of the
+   user's id (openid) and the host of the IdP that issued it.  Both
+   used to be computed for every download, the hash with a SHA1 digest
+   shared by the DAO (which is why the DAO's methods were
+   synchronized) and the host with a regex over the openid.  The user
+   population of a node is small and keeps coming back, so here they
+   are computed once per user and looked up from then on, without
+   taking a lock.
+
+   The hashing itself is QuickHash (SHA1), which hashes with per
+   thread digests.  The memo is bounded: once it holds
+   capacity users an arbitrary slice of it is dropped to make room
+   (the users that matter come right back).
+
+**/
+package esg.node.filters;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import esg.common.QuickHash;
+
+public class UserInfoCache {
+
+    //URL Pattern: "http[s]?://([^:/]*)(:(?:[0-9]*))?/(.*/)*(.*$)"
+    //group 1 = host <<---what we want (userid = openid)
+    private static final Pattern urlPattern = Pattern.compile("http[s]?://([^:/]*)(:(?:[0-9]*))?/(.*/)*(.*$)",Pattern.CASE_INSENSITIVE);
+
+    private static final QuickHash sha1;
+    static {
+        try{
+            sha1 = new QuickHash("SHA1");
+        }catch(NoSuchAlgorithmException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final ConcurrentHashMap<String,UserInfo> users;
+    private final int capacity;
+
+    public UserInfoCache(int capacity) {
+        this.capacity = Math.max(1,capacity);
+        this.users = new ConcurrentHashMap<String,UserInfo>(Math.min(this.capacity,1024));
+    }
+
+    public static final class UserInfo {
+        public final String hash;
+        public final String idp;
+        UserInfo(String hash, String idp) {
+            this.hash = hash;
+            this.idp = idp;
+        }
+    }
+
+    public UserInfo get(String userID) {
+        if(userID == null) return compute(null);
+        UserInfo info = users.get(userID);
+        if(info != null) return info;
+        info = compute(userID);
+        if(users.size() >= capacity) evict();
+        UserInfo existing = users.putIfAbsent(userID,info);
+        return (existing == null) ? info : existing;
+    }
+
+    public String hash(String userID) { return get(userID).hash; }
+    public String idp(String userID) { return get(userID).idp; }
+
+    public int size() { return users.size(); }
+    public int capacity() { return capacity; }
+    public void clear() { users.clear(); }
+
+    //Drops about an eighth of the entries
+    private void evict() {
+        int n = Math.max(1,capacity/8);
+        for(Iterator<String> it = users.keySet().iterator(); it.hasNext() && n-- > 0;) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    static UserInfo compute(String userID) { return new UserInfo(sum(userID),idpHostname(userID)); }
+
+    static String sum(String plaintext) { return sha1.sum(plaintext); }
+
+    static String idpHostname(String userID) {
+        String idpHostname = "<no-idp>";
+        Matcher m = urlPattern.matcher(userID);
+        if(m.find()) idpHostname=m.group(1);
+        return idpHostname;
+    }
+}
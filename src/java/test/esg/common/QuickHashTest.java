@@ -0,0 +1,157 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid Federation (ESGF) Data Node Software   *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                             *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+package esg.common;
+
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class QuickHashTest {
+
+    //How QuickHash used to do it
+    private static String legacySum(String algo, String plaintext) throws Exception {
+        MessageDigest m = MessageDigest.getInstance(algo);
+        byte[] data = plaintext.getBytes("UTF-8");
+        m.update(data,0,data.length);
+        return String.format("%1$032X",new BigInteger(1,m.digest()));
+    }
+
+    private static final String[] INPUTS = { "", "a", "https://pcmdi9.llnl.gov/esgf-idp/openid/someone", "\u00e9t\u00e9 \ud83d\ude00 caf\u00e9" };
+
+    @Test
+    public void testSameAsBefore() throws Exception {
+        for(String algo : new String[] { "SHA1", "MD5", "SHA-256" }) {
+            QuickHash quickHash = new QuickHash(algo);
+            for(String s : INPUTS) assertEquals(algo+" ["+s+"]",legacySum(algo,s),quickHash.sum(s));
+            //leading zero digits
+            for(int i=0;i<2000;i++) assertEquals(legacySum(algo,"x"+i),quickHash.sum("x"+i));
+        }
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        QuickHash quickHash = new QuickHash("SHA1");
+        String text = INPUTS[3]+INPUTS[2];
+        byte[] bytes = text.getBytes("UTF-8");
+        String expected = quickHash.sum(text);
+
+        assertEquals(expected,quickHash.update(bytes,0,5).update(bytes,5,bytes.length-5).digest());
+        assertEquals(expected,quickHash.update(ByteBuffer.wrap(bytes)).digest());
+        assertEquals(expected,quickHash.update(INPUTS[3]).update(INPUTS[2]).digest());
+        assertEquals(expected,quickHash.update(new StringReader(text)).digest());
+
+        //a reader that splits the surrogate pair across reads
+        final String s = text;
+        java.io.Reader slow = new java.io.Reader() {
+                int pos = 0;
+                public int read(char[] buf, int off, int len) {
+                    if(pos >= s.length()) return -1;
+                    buf[off] = s.charAt(pos++);
+                    return 1;
+                }
+                public void close() { }
+            };
+        assertEquals(expected,quickHash.update(slow).digest());
+    }
+
+    @Test
+    public void testFast() throws Exception {
+        QuickHash quickHash = new QuickHash(QuickHash.FAST);
+        assertEquals(16,quickHash.sum("").length());
+        assertFalse(quickHash.sum("a").equals(quickHash.sum("b")));
+        assertFalse(quickHash.sum("").equals(quickHash.sum("\u0000")));
+        //word at a time and byte at a time have to agree wherever the input is split
+        byte[] data = INPUTS[3].getBytes("UTF-8");
+        String expected = quickHash.sum(INPUTS[3]);
+        for(int split=0; split <= data.length; split++) {
+            assertEquals(expected,quickHash.update(data,0,split).update(data,split,data.length-split).digest());
+        }
+        assertEquals(expected,quickHash.update(new StringReader(INPUTS[3])).digest());
+
+        //longer than the scratch buffer the words are read through
+        byte[] big = new byte[10001];
+        for(int i=0; i < big.length; i++) big[i] = (byte)(i*31);
+        for(int i=0; i < big.length; i++) quickHash.update(big,i,1);
+        String byByte = quickHash.digest();
+        assertEquals(byByte,quickHash.update(big).digest());
+        assertEquals(byByte,quickHash.update(big,0,3).update(big,3,big.length-3).digest());
+    }
+
+    @Test
+    public void testThreads() throws Exception {
+        final QuickHash quickHash = new QuickHash("SHA1");
+        final String expected = legacySum("SHA1",INPUTS[2]);
+        final boolean[] ok = { true };
+        Thread[] threads = new Thread[4];
+        for(int t=0;t<threads.length;t++) {
+            threads[t] = new Thread() {
+                    public void run() {
+                        for(int i=0;i<5000;i++) {
+                            if(!expected.equals(quickHash.sum(INPUTS[2]))) { synchronized(ok) { ok[0] = false; } }
+                        }
+                    }
+                };
+            threads[t].start();
+        }
+        for(Thread t : threads) t.join();
+        assertTrue(ok[0]);
+    }
+}
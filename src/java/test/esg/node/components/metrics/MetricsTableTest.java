@@ -0,0 +1,151 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+package esg.node.components.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class MetricsTableTest {
+
+    private static MetricsTable experiments() {
+        MetricsTable.Builder builder = new MetricsTable.Builder(MetricsExpDAO.COLUMNS,1);
+        builder.add("cmip5","historical",3,300L);
+        builder.add("cmip5","rcp45",1,1000L);
+        builder.add("obs4MIPs","historical",2,20L);
+        builder.add("cmip5","amip",5,300L);
+        return builder.build();
+    }
+
+    @Test
+    public void testDictionary() {
+        MetricsTable table = experiments();
+        assertEquals(4,table.size());
+        assertEquals(2,table.getNumKeys());
+        //cmip5, historical, rcp45, obs4MIPs, amip
+        assertEquals(5,table.getDictionarySize());
+        assertEquals(table.getKeyCode(0,1),table.getKeyCode(2,1));
+        assertEquals("obs4MIPs",table.getKey(2,0));
+        assertEquals("historical",table.getKey(2,1));
+        assertEquals(11L,table.getTotalCount());
+        assertEquals(1620L,table.getTotalSum());
+        assertEquals("[project: [cmip5] experiment: [historical] count: [3] sum: [300]]",
+                     table.toString().substring(0,table.toString().indexOf(", "))+"]");
+    }
+
+    @Test
+    public void testSortBySum() {
+        MetricsTable table = experiments();
+        assertArrayEquals(new int[] { 1, 0, 3, 2 },table.orderBySum());
+
+        MetricsTable sorted = table.sortedBySum();
+        assertEquals("rcp45",sorted.getKey(0,1));
+        assertEquals(1000L,sorted.getSum(0));
+        //equal sums keep their order
+        assertEquals("historical",sorted.getKey(1,1));
+        assertEquals("amip",sorted.getKey(2,1));
+        assertEquals(2,sorted.getCount(3));
+        //the original is untouched
+        assertEquals("historical",table.getKey(0,1));
+    }
+
+    @Test
+    public void testPlus() {
+        MetricsTable table = experiments();
+        Map<String,long[]> added = new HashMap<String,long[]>();
+        added.put(LiveDownloadStats.key("cmip5","historical"),new long[] { 2L, 50L });
+        added.put(LiveDownloadStats.key("cmip5","piControl"),new long[] { 1L, 7L });
+        MetricsTable merged = table.plus(added,true);
+        assertEquals(5,merged.size());
+        assertEquals(5,merged.getCount(0));
+        assertEquals(350L,merged.getSum(0));
+        assertEquals("cmip5",merged.getKey(4,0));
+        assertEquals("piControl",merged.getKey(4,1));
+        assertEquals(3,table.getCount(0));
+
+        //only onto the keys already there
+        MetricsTable matched = table.plus(added,false);
+        assertEquals(4,matched.size());
+        assertEquals(5,matched.getCount(0));
+
+        MetricsTable.Builder builder = new MetricsTable.Builder(MetricsUsersDAO.COLUMNS,4);
+        builder.add("someone",null,1,10L);
+        added.clear();
+        added.put("someone",new long[] { 1L, 10L });
+        added.put("someone-else",new long[] { 1L, 5L });
+        MetricsTable users = builder.build().plus(added,true);
+        assertEquals(2,users.size());
+        assertEquals(20L,users.getSum(0));
+        assertEquals("someone-else",users.getKey(1,0));
+        assertEquals("[userid: [someone] count: [2] sum: [20], userid: [someone-else] count: [1] sum: [5]]",users.toString());
+    }
+
+    @Test
+    public void testPlusDoesNotWrapCounts() {
+        MetricsTable.Builder builder = new MetricsTable.Builder(MetricsUsersDAO.COLUMNS,1);
+        builder.add("someone",null,Integer.MAX_VALUE,0L);
+        Map<String,long[]> added = new HashMap<String,long[]>();
+        added.put("someone",new long[] { 1L, 0L });
+        MetricsTable users = builder.build().plus(added,false);
+        assertEquals(Integer.MAX_VALUE+1L,users.getCount(0));
+        assertEquals(Integer.MAX_VALUE+1L,users.getTotalCount());
+    }
+
+    @Test
+    public void testEmpty() {
+        MetricsTable table = MetricsTable.empty(MetricsVarsDAO.COLUMNS);
+        assertEquals(0,table.size());
+        assertEquals(0,table.orderBySum().length);
+        assertEquals("[]",table.toString());
+        assertSame(table,table.plus(new HashMap<String,long[]>(),true));
+    }
+}
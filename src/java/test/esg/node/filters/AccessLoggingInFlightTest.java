@@ -0,0 +1,116 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+package esg.node.filters;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class AccessLoggingInFlightTest {
+
+    //Remembers what would have been inserted
+    private static class RecordingDAO extends AccessLoggingDAO {
+        final List<AccessLogRecord> written = new ArrayList<AccessLogRecord>();
+        public synchronized int logCompleteInfo(AccessLogRecord r) {
+            written.add(r);
+            return r.id = written.size();
+        }
+    }
+
+    private static AccessLogRecord record(String url) {
+        return new AccessLogRecord("https://idp.example.org/openid/someone",null,url,"0A","127.0.0.1","wget","thredds",0L,0L);
+    }
+
+    @Test
+    public void testFinishWritesOnce() {
+        RecordingDAO dao = new RecordingDAO();
+        AccessLoggingInFlight inFlight = new AccessLoggingInFlight(dao,null,60000L,60000L);
+        AccessLogRecord r = record("http://localhost/thredds/fileServer/a.nc");
+        inFlight.begin(r);
+        assertEquals(1,inFlight.getInFlight());
+
+        assertTrue(inFlight.finish(r,true,10L,100L,100L));
+        assertFalse(inFlight.finish(r,true,10L,100L,100L));
+        assertEquals(0,inFlight.getInFlight());
+        assertEquals(1,dao.written.size());
+        assertTrue(dao.written.get(0).success);
+        assertEquals(100L,dao.written.get(0).xferSize);
+    }
+
+    @Test
+    public void testAbandoned() {
+        RecordingDAO dao = new RecordingDAO();
+        AccessLoggingInFlight inFlight = new AccessLoggingInFlight(dao,null,60000L,60000L);
+        AccessLogRecord stuck = record("http://localhost/thredds/fileServer/stuck.nc");
+        AccessLogRecord fresh = record("http://localhost/thredds/fileServer/fresh.nc");
+        stuck.dataSize = 100L;
+        inFlight.begin(stuck);
+        inFlight.begin(fresh);
+
+        //nothing is old enough yet, both show up in the snapshot
+        assertEquals(0,inFlight.reap(60000L));
+        assertEquals(2,inFlight.getSnapshot().size());
+
+        //everything is "old enough"
+        assertEquals(2,inFlight.reap(0L));
+        assertEquals(2,inFlight.getNumAbandoned());
+        assertEquals(0,inFlight.getSnapshot().size());
+        assertFalse(stuck.success);
+        assertEquals(100L,stuck.dataSize);
+        assertEquals(-1L,stuck.xferSize);
+
+        //a late finish is not written again
+        assertFalse(inFlight.finish(stuck,true,10L,100L,100L));
+        assertEquals(1,inFlight.getNumLate());
+        assertEquals(2,dao.written.size());
+    }
+}
@@ -0,0 +1,187 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+package esg.node.filters;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class AccessLoggingSpoolTest {
+
+    //Remembers what would have been inserted, or fails like a database that is down
+    private static class RecordingDAO extends AccessLoggingDAO {
+        final List<AccessLogRecord> written = new ArrayList<AccessLogRecord>();
+        boolean down = false;
+        String poison = null;
+        public synchronized int logCompleteInfoBatch(List<AccessLogRecord> records) {
+            if(down) return 0;
+            for(AccessLogRecord r : records) if(r.url.equals(poison)) return 0;
+            written.addAll(records);
+            return records.size();
+        }
+    }
+
+    private File dir = null;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("spool",".test");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if(files != null) for(File f : files) f.delete();
+        dir.delete();
+    }
+
+    private static AccessLogRecord record(int i) {
+        AccessLogRecord r = new AccessLogRecord("https://idp.example.org/openid/user"+i,null,"http://localhost/thredds/fileServer/f"+i+".nc",
+                                                "0A","127.0.0.1",null,"thredds",1000L+i,1000L+i);
+        r.setEgressInfo((i % 2) == 0,10L*i,100L,100L);
+        return r;
+    }
+
+    @Test
+    public void testEncodeDecode() {
+        AccessLogRecord r = AccessLoggingSpool.decode(AccessLoggingSpool.encode(record(2)));
+        assertEquals("https://idp.example.org/openid/user2",r.userID);
+        assertNull(r.email);
+        assertNull(r.userAgent);
+        assertEquals("http://localhost/thredds/fileServer/f2.nc",r.url);
+        assertEquals(1002L,r.dateFetched);
+        assertTrue(r.success);
+        assertEquals(20L,r.duration);
+        assertEquals(100L,r.xferSize);
+    }
+
+    @Test
+    public void testDrainAcrossSegmentsAndRestart() throws Exception {
+        RecordingDAO dao = new RecordingDAO();
+        //smallest segment, so that the records span several of them
+        AccessLoggingSpool spool = new AccessLoggingSpool(dir,64*1024,100,10L,dao);
+        int n = 2000;
+        for(int i=0;i<n;i++) assertTrue(spool.append(record(i)));
+
+        //database down: nothing moves
+        dao.down = true;
+        assertEquals(-1,spool.drainBatch());
+        assertEquals(0,dao.written.size());
+
+        dao.down = false;
+        assertEquals(100,spool.drainBatch());
+        assertEquals(100,dao.written.size());
+
+        //"restart": a new spool picks up at the checkpoint
+        spool.shutdown(1000L);
+        RecordingDAO dao2 = new RecordingDAO();
+        AccessLoggingSpool spool2 = new AccessLoggingSpool(dir,64*1024,100,10L,dao2);
+        while(spool2.drainBatch() > 0) { }
+        assertEquals(n-100,dao2.written.size());
+        assertEquals("http://localhost/thredds/fileServer/f100.nc",dao2.written.get(0).url);
+        assertEquals("http://localhost/thredds/fileServer/f"+(n-1)+".nc",dao2.written.get(n-101).url);
+
+        //drained segments are gone, only the one being appended to is left
+        assertTrue(spool2.append(record(n)));
+        assertEquals(1,spool2.drainBatch());
+        assertEquals(0,spool2.drainBatch());
+        int segments = 0;
+        for(File f : dir.listFiles()) if(f.getName().endsWith(".seg")) segments++;
+        assertEquals(1,segments);
+    }
+
+    @Test
+    public void testPoisonRecordIsSetAside() throws Exception {
+        RecordingDAO dao = new RecordingDAO();
+        AccessLoggingSpool spool = new AccessLoggingSpool(dir,64*1024,10,10L,64,3,dao);
+        for(int i=0;i<20;i++) assertTrue(spool.append(record(i)));
+        dao.poison = "http://localhost/thredds/fileServer/f5.nc";
+
+        //the batch fails until it has had its attempts...
+        assertEquals(-1,spool.drainBatch());
+        assertEquals(-1,spool.drainBatch());
+        //...then goes in record by record, without the poison one
+        assertEquals(10,spool.drainBatch());
+        assertEquals(9,dao.written.size());
+        assertEquals(1,spool.getNumBadRecords());
+        assertTrue(new File(dir,"rejects").length() > 0);
+        assertEquals(10,spool.drainBatch());
+        assertEquals(19,dao.written.size());
+
+        //a database that is down does not get its records rejected
+        assertTrue(spool.append(record(20)));
+        dao.down = true;
+        for(int i=0;i<5;i++) assertEquals(-1,spool.drainBatch());
+        assertEquals(1,spool.getNumBadRecords());
+        dao.down = false;
+        assertEquals(1,spool.drainBatch());
+        spool.shutdown(1000L);
+    }
+
+    @Test
+    public void testFullSpoolTurnsAppendsDown() throws Exception {
+        RecordingDAO dao = new RecordingDAO();
+        AccessLoggingSpool spool = new AccessLoggingSpool(dir,64*1024,100,10L,2,5,dao);
+        int appended = 0;
+        while(spool.append(record(appended))) appended++;
+        assertEquals(1,spool.getNumRejected());
+        //draining the first segment makes room again
+        dao.down = false;
+        while(spool.drainBatch() > 0) { }
+        assertEquals(appended,dao.written.size());
+        assertTrue(spool.append(record(appended)));
+        spool.shutdown(1000L);
+    }
+}
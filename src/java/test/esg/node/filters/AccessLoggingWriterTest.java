@@ -0,0 +1,259 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+package esg.node.filters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class AccessLoggingWriterTest {
+
+    //Remembers what was written, in order, and can hold the writer
+    //thread up in its first batch until the gate is opened
+    private static class RecordingDAO extends AccessLoggingDAO {
+        final List<String> events = new ArrayList<String>();
+        final List<Integer> batches = new ArrayList<Integer>();
+        final CountDownLatch inBatch = new CountDownLatch(1);
+        volatile CountDownLatch gate = null;
+        int nextID = 1;
+
+        public int logIngressInfoBatch(List<AccessLogRecord> records) {
+            inBatch.countDown();
+            CountDownLatch g = gate;
+            if(g != null) {
+                try{ g.await(); }catch(InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+            synchronized(this) {
+                batches.add(records.size());
+                for(AccessLogRecord r : records) {
+                    if(r.id <= 0) r.id = nextID++;
+                    events.add("ingress "+r.url);
+                }
+                notifyAll();
+            }
+            return records.size();
+        }
+        public synchronized int logEgressInfoBatch(List<AccessLogRecord> records) {
+            for(AccessLogRecord r : records) events.add("egress "+r.url);
+            notifyAll();
+            return records.size();
+        }
+        public synchronized int logIngressInfo(String userID, String email, String url, String fileID, String remoteAddress,
+                                               String userAgent, String serviceName, long batchUpdateTime, long dateFetched) {
+            events.add("sync ingress "+url);
+            return nextID++;
+        }
+        public synchronized int logIngressInfo(AccessLogRecord r) {
+            events.add("sync ingress "+r.url);
+            return (r.id <= 0) ? (r.id = nextID++) : r.id;
+        }
+        public synchronized int logEgressInfo(int id, boolean success, long duration, long dataSize, long xferSize) {
+            events.add("sync egress "+id);
+            return 1;
+        }
+        synchronized List<String> events() { return new ArrayList<String>(events); }
+        synchronized void awaitEvents(int n, long millis) throws InterruptedException {
+            long end = System.currentTimeMillis()+millis;
+            while(events.size() < n && System.currentTimeMillis() < end) wait(10L);
+        }
+    }
+
+    private static AccessLogRecord record(String name) {
+        return new AccessLogRecord("https://idp.example.org/openid/someone",null,name,"0A","127.0.0.1",null,"thredds",0L,0L);
+    }
+
+    //Starts a writer with a queue of one and parks its thread in the
+    //first batch, then queues the given record, which fills the queue
+    private AccessLoggingWriter blockedWriter(RecordingDAO dao, AccessLoggingWriter.OverflowPolicy policy, AccessLogRecord queued) throws Exception {
+        dao.gate = new CountDownLatch(1);
+        AccessLoggingWriter writer = new AccessLoggingWriter(dao,1,1,10L,policy);
+        writer.start();
+        assertTrue(writer.logIngressInfo(record("first")));
+        assertTrue(dao.inBatch.await(5L,TimeUnit.SECONDS));
+        assertTrue(writer.logIngressInfo(queued));
+        return writer;
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        RecordingDAO dao = new RecordingDAO();
+        AccessLoggingWriter writer = blockedWriter(dao,AccessLoggingWriter.OverflowPolicy.DROP,record("queued"));
+        assertFalse(writer.logIngressInfo(record("dropped")));
+        assertEquals(1L,writer.getNumDropped());
+        dao.gate.countDown();
+        writer.shutdown(5000L);
+        assertEquals(2,dao.events().size());
+        assertFalse(dao.events().contains("ingress dropped"));
+    }
+
+    @Test
+    public void testBlockWhenFull() throws Exception {
+        RecordingDAO dao = new RecordingDAO();
+        final AccessLoggingWriter writer = blockedWriter(dao,AccessLoggingWriter.OverflowPolicy.BLOCK,record("queued"));
+        Thread blocked = new Thread() {
+                public void run() { writer.logIngressInfo(record("waited")); }
+            };
+        blocked.start();
+        blocked.join(200L);
+        assertTrue(blocked.isAlive());
+        dao.gate.countDown();
+        blocked.join(5000L);
+        assertFalse(blocked.isAlive());
+        writer.shutdown(5000L);
+        assertEquals(0L,writer.getNumDropped());
+        assertTrue(dao.events().contains("ingress waited"));
+    }
+
+    @Test
+    public void testSyncWhenFull() throws Exception {
+        RecordingDAO dao = new RecordingDAO();
+        AccessLoggingWriter writer = blockedWriter(dao,AccessLoggingWriter.OverflowPolicy.SYNC,record("queued"));
+
+        //an ingress goes straight to the database...
+        AccessLogRecord direct = record("direct");
+        assertTrue(writer.logIngressInfo(direct));
+        assertEquals("sync ingress direct",dao.events().get(0));
+
+        //...and so does its egress, since its row is there
+        assertTrue(writer.logEgressInfo(direct));
+        assertEquals("sync egress "+direct.id,dao.events().get(1));
+        dao.gate.countDown();
+        writer.shutdown(5000L);
+        assertEquals(0L,writer.getNumDropped());
+    }
+
+    //The egress of a record whose ingress is still in the queue has no
+    //row to update yet: it has to wait for the ingress, not be written through
+    private void assertEgressWaitsForIngress(AccessLogRecord queued) throws Exception {
+        RecordingDAO dao = new RecordingDAO();
+        final AccessLoggingWriter writer = blockedWriter(dao,AccessLoggingWriter.OverflowPolicy.SYNC,queued);
+        final AccessLogRecord record = queued;
+        Thread egress = new Thread() {
+                public void run() { writer.logEgressInfo(record); }
+            };
+        egress.start();
+        egress.join(200L);
+        assertTrue(egress.isAlive());
+        assertTrue(dao.events().isEmpty());
+        dao.gate.countDown();
+        egress.join(5000L);
+        writer.shutdown(5000L);
+        List<String> events = dao.events();
+        int ingressAt = events.indexOf("ingress "+queued.url);
+        int egressAt = events.indexOf("egress "+queued.url);
+        assertTrue(events.toString(),ingressAt >= 0);
+        assertTrue(events.toString(),egressAt > ingressAt);
+    }
+
+    @Test
+    public void testIngressBeforeEgressUnderSync() throws Exception {
+        assertEgressWaitsForIngress(record("queued"));
+    }
+
+    @Test
+    public void testPreallocatedIdIsNotInserted() throws Exception {
+        //the filter takes the id from the allocator before queuing the ingress
+        AccessLogRecord queued = record("preallocated");
+        queued.id = 42;
+        assertEgressWaitsForIngress(queued);
+    }
+
+    @Test
+    public void testFlushOnBatchSize() throws Exception {
+        RecordingDAO dao = new RecordingDAO();
+        AccessLoggingWriter writer = new AccessLoggingWriter(dao,100,3,60000L,AccessLoggingWriter.OverflowPolicy.BLOCK);
+        writer.start();
+        for(int i=0;i<3;i++) assertTrue(writer.logIngressInfo(record("r"+i)));
+        //long before the flush interval
+        dao.awaitEvents(3,5000L);
+        assertEquals(3,dao.events().size());
+        writer.shutdown(5000L);
+        assertEquals(3,dao.events().size());
+    }
+
+    @Test
+    public void testFlushOnInterval() throws Exception {
+        RecordingDAO dao = new RecordingDAO();
+        AccessLoggingWriter writer = new AccessLoggingWriter(dao,100,100,50L,AccessLoggingWriter.OverflowPolicy.BLOCK);
+        writer.start();
+        assertTrue(writer.logIngressInfo(record("alone")));
+        dao.awaitEvents(1,5000L);
+        assertEquals("ingress alone",dao.events().get(0));
+        assertTrue(writer.isRunning());
+        writer.shutdown(5000L);
+    }
+
+    @Test
+    public void testShutdownDrains() throws Exception {
+        RecordingDAO dao = new RecordingDAO();
+        AccessLoggingWriter writer = new AccessLoggingWriter(dao,100,100,60000L,AccessLoggingWriter.OverflowPolicy.BLOCK);
+        writer.start();
+        List<AccessLogRecord> records = new ArrayList<AccessLogRecord>();
+        for(int i=0;i<5;i++) {
+            AccessLogRecord r = record("d"+i);
+            records.add(r);
+            assertTrue(writer.logIngressInfo(r));
+        }
+        for(AccessLogRecord r : records) assertTrue(writer.logEgressInfo(r));
+        writer.shutdown(5000L);
+        assertFalse(writer.isRunning());
+        List<String> events = dao.events();
+        assertEquals(events.toString(),10,events.size());
+        for(int i=0;i<5;i++) assertTrue(events.indexOf("ingress d"+i) < events.indexOf("egress d"+i));
+
+        //once stopped, records are written through
+        assertTrue(writer.logIngressInfo(record("after")));
+        assertTrue(dao.events().contains("sync ingress after"));
+    }
+}
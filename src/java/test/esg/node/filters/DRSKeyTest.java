@@ -0,0 +1,94 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+package esg.node.filters;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class DRSKeyTest {
+
+    private static final String DRS_ID = "cmip5.output1.NOAA-GFDL.GFDL-CM3.historical.mon.atmos.Amon.r1i1p1";
+    private static final String FILE = "tas_Amon_GFDL-CM3_historical_r1i1p1_186001-186412.nc";
+
+    @Test
+    public void testParsePath() {
+        DRSKey key = new DRSKey();
+        assertTrue(key.parsePath("/output1/NOAA-GFDL/GFDL-CM3/historical/mon/atmos/Amon/r1i1p1/v20110601/tas/"+FILE));
+        assertEquals(DRS_ID,key.getDrsID());
+        assertEquals(20110601,key.getVersion());
+        assertEquals(FILE,key.getFilename());
+        assertEquals("tas",key.get(DRSKey.VARIABLE));
+
+        assertFalse(key.parsePath("output1/NOAA-GFDL/GFDL-CM3/historical/mon/atmos/Amon/r1i1p1/20110601/"+FILE));
+        assertFalse(key.parsePath("a/output1/NOAA-GFDL/GFDL-CM3/historical/mon/atmos/Amon/r1i1p1/20110601/tas/"+FILE));
+    }
+
+    @Test
+    public void testParseQuery() {
+        DRSKey key = new DRSKey().parseQuery("?project=cmip5&product=output1&institution=NOAA-GFDL&model=GFDL-CM3&experiment=historical"+
+                                             "&frequency=mon&realm=atmos&table=Amon&ensemble=r1i1p1&version=20110601&variable=tas&file="+FILE+"&junk");
+        assertEquals(DRS_ID,key.getDrsID());
+        assertEquals(20110601,key.getVersion());
+        assertEquals(FILE,key.getFilename());
+    }
+
+    @Test
+    public void testAsCacheKey() {
+        DRSKey parsed = new DRSKey();
+        parsed.parsePath("output1/NOAA-GFDL/GFDL-CM3/historical/mon/atmos/Amon/r1i1p1/20110601/tas/"+FILE);
+        DRSKey loaded = new DRSKey(DRS_ID,20110601,FILE);
+        assertEquals(loaded,parsed);
+        assertEquals(loaded.hashCode(),parsed.hashCode());
+        DRSKey copy = parsed.copy();
+        parsed.parsePath("output1/NOAA-GFDL/GFDL-CM3/historical/mon/atmos/Amon/r1i1p1/20110602/tas/"+FILE);
+        assertEquals(loaded,copy);
+        assertFalse(loaded.equals(parsed));
+    }
+}
@@ -0,0 +1,95 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+package esg.node.filters;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class DRSResolutionCacheTest {
+
+    private static DRSKey key(int i) {
+        return new DRSKey("cmip5.output1.NOAA-GFDL.GFDL-CM3.historical.mon.atmos.Amon.r1i1p1",20110601,"tas_"+i+".nc");
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        DRSResolutionCache cache = new DRSResolutionCache(100,0,60000);
+        assertNull(cache.lookup(key(1)));
+        cache.put(key(1),"/esg/data/tas_1.nc");
+        cache.put(key(2),null);
+        assertEquals("/esg/data/tas_1.nc",cache.lookup(key(1)).location);
+        DRSResolutionCache.Resolution negative = cache.lookup(key(2));
+        assertNotNull(negative);
+        assertNull(negative.location);
+        assertEquals(1,cache.getHits());
+        assertEquals(1,cache.getNegativeHits());
+        assertEquals(1,cache.getMisses());
+    }
+
+    @Test
+    public void testNegativeLookupsExpire() throws Exception {
+        DRSResolutionCache cache = new DRSResolutionCache(100,0,1);
+        cache.put(key(1),null);
+        Thread.sleep(10);
+        assertNull(cache.lookup(key(1)));
+
+        cache = new DRSResolutionCache(100,0,0);
+        cache.put(key(1),null);
+        assertNull(cache.lookup(key(1)));
+    }
+
+    @Test
+    public void testBounded() {
+        DRSResolutionCache cache = new DRSResolutionCache(160,0,0);
+        for(int i=0; i < 10000; i++) cache.put(key(i),"/esg/data/tas_"+i+".nc");
+        assertTrue(cache.size() <= cache.capacity());
+        assertEquals("/esg/data/tas_9999.nc",cache.lookup(key(9999)).location);
+    }
+}
@@ -0,0 +1,146 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+package esg.node.filters;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class DownloadAggregatorTest {
+
+    private static final String URL = "http://pcmdi9.llnl.gov/thredds/fileServer/cmip5/output1/MOHC/HadGEM2-ES/historical/mon/atmos/Amon/r1i1p1/v20110101/tas/tas_Amon.nc";
+    private static final String USER = "https://pcmdi9.llnl.gov/esgf-idp/openid/someone";
+
+    private static DownloadAggregator.DownloadCount find(List<DownloadAggregator.DownloadCount> counts, String name) {
+        for(DownloadAggregator.DownloadCount count : counts) if(count.getName().equals(name)) return count;
+        return null;
+    }
+
+    @Test
+    public void testKeys() {
+        DownloadAggregator aggregator = new DownloadAggregator();
+        aggregator.record(URL,USER,100L,100L,true,0L);
+        aggregator.record(URL,USER,100L,40L,false,0L);
+        aggregator.record("http://host/thredds/fileServer/other/file.nc",USER,10L,10L,true,0L);
+
+        DownloadAggregator.DownloadCount experiment = find(aggregator.getExperimentCounts(),"historical");
+        assertEquals("cmip5",experiment.getProject());
+        assertEquals(2L,experiment.getDownloads());
+        assertEquals(1L,experiment.getSuccesses());
+        assertEquals(200L,experiment.getBytes());
+        assertEquals(140L,experiment.getXferBytes());
+        assertEquals(2L,find(aggregator.getModelCounts(),"HadGEM2-ES").getDownloads());
+        //not a DRS path
+        assertEquals("",find(aggregator.getExperimentCounts(),"").getProject());
+        assertEquals(3L,find(aggregator.getUserCounts(),USER).getDownloads());
+        assertEquals(3L,aggregator.getTotal().getDownloads());
+    }
+
+    @Test
+    public void testDataRoot() {
+        DownloadAggregator aggregator = new DownloadAggregator();
+        aggregator.record(URL.replace("/fileServer/","/fileServer/esg_dataroot/"),USER,100L,100L,true,0L);
+        DownloadAggregator.DownloadCount experiment = find(aggregator.getExperimentCounts(),"historical");
+        assertEquals("cmip5",experiment.getProject());
+        assertEquals("cmip5",find(aggregator.getModelCounts(),"HadGEM2-ES").getProject());
+    }
+
+    @Test
+    public void testWindow() {
+        DownloadAggregator.Counter counter = new DownloadAggregator.Counter("p","n");
+        counter.add(10L,10L,true,0L);
+        counter.add(10L,10L,true,DownloadAggregator.BUCKET_MILLIS);
+        assertEquals(2L,counter.snapshot(DownloadAggregator.BUCKET_MILLIS).getRecentDownloads());
+        //the first one has slid out of the window
+        assertEquals(1L,counter.snapshot(DownloadAggregator.WINDOW_MILLIS).getRecentDownloads());
+        assertEquals(0L,counter.snapshot(2*DownloadAggregator.WINDOW_MILLIS).getRecentDownloads());
+        //a bucket is reused by a later period
+        counter.add(10L,10L,true,DownloadAggregator.WINDOW_MILLIS);
+        assertEquals(2L,counter.snapshot(DownloadAggregator.WINDOW_MILLIS).getRecentDownloads());
+        assertEquals(30L,counter.snapshot(DownloadAggregator.WINDOW_MILLIS).getBytes());
+        assertEquals(3L,counter.snapshot(2*DownloadAggregator.WINDOW_MILLIS).getDownloads());
+    }
+
+    @Test
+    public void testMaxKeys() {
+        DownloadAggregator aggregator = new DownloadAggregator();
+        aggregator.setMaxKeys(2);
+        for(int i=0;i<5;i++) aggregator.record(URL,USER+i,1L,1L,true,0L);
+        assertEquals(2,aggregator.getUserCounts().size());
+        assertEquals(3L,aggregator.getUncountedDownloads());
+        assertEquals(5L,aggregator.getTotal().getDownloads());
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        DownloadAggregator.register();
+        try{
+            DownloadAggregator.getInstance().reset();
+            DownloadAggregator.getInstance().record(URL,USER,100L,100L,true);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = DownloadAggregator.getRegisteredName();
+            assertEquals("DownloadAggregator",name.getKeyProperty("type"));
+            assertNotNull(name.getKeyProperty("context"));
+            CompositeData[] counts = (CompositeData[])server.getAttribute(name,"ExperimentCounts");
+            assertEquals(1,counts.length);
+            assertEquals("historical",counts[0].get("name"));
+            assertEquals(100L,counts[0].get("bytes"));
+        }finally{
+            DownloadAggregator.unregister();
+            DownloadAggregator.getInstance().reset();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+package esg.node.filters;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class FileSizeCacheTest {
+
+    private File file = null;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("filesize",".nc");
+        FileOutputStream out = new FileOutputStream(file);
+        try{
+            out.write(new byte[100]);
+        }finally{
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testHitAndExpiry() throws Exception {
+        FileSizeCache cache = new FileSizeCache(10,20L);
+        assertEquals(FileSizeCache.MISS,cache.getLength("u"));
+        assertEquals(100L,cache.put("u",file));
+        assertEquals(100L,cache.getLength("u"));
+        assertEquals(Boolean.TRUE,cache.exists("u"));
+        Thread.sleep(50L);
+        assertEquals(FileSizeCache.MISS,cache.getLength("u"));
+        assertNull(cache.exists("u"));
+        assertEquals(0,cache.size());
+    }
+
+    @Test
+    public void testMissingFile() {
+        FileSizeCache cache = new FileSizeCache(10,60000L);
+        assertEquals(0L,cache.put("gone",new File(file.getPath()+".missing")));
+        assertEquals(0L,cache.getLength("gone"));
+        assertEquals(Boolean.FALSE,cache.exists("gone"));
+    }
+
+    @Test
+    public void testEvictionAtCapacity() {
+        FileSizeCache cache = new FileSizeCache(20,60000L);
+        for(int i=0;i<100;i++) cache.put("u"+i,file);
+        assertTrue(cache.size() <= 20);
+        assertEquals(100L,cache.getLength("u99"));
+        //whatever was evicted is gone from the index too
+        cache.invalidatePath(file.getPath());
+        assertEquals(0,cache.size());
+    }
+
+    @Test
+    public void testInvalidation() {
+        FileSizeCache cache = new FileSizeCache(10,60000L);
+        cache.put("a",file);
+        cache.put("b",file);
+        cache.put("other",new File(file.getPath()+".missing"));
+        cache.invalidate("a");
+        assertEquals(FileSizeCache.MISS,cache.getLength("a"));
+        assertEquals(100L,cache.getLength("b"));
+
+        //every url naming the file goes, the others stay
+        cache.put("a",file);
+        cache.invalidatePath(file.getPath());
+        assertEquals(FileSizeCache.MISS,cache.getLength("a"));
+        assertEquals(FileSizeCache.MISS,cache.getLength("b"));
+        assertEquals(0L,cache.getLength("other"));
+
+        //a url put again for another file is not dropped with the old one
+        cache.put("b",file);
+        cache.put("b",new File(file.getPath()+".missing"));
+        cache.invalidatePath(file.getPath());
+        assertEquals(0L,cache.getLength("b"));
+    }
+}
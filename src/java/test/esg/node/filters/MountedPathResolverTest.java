@@ -0,0 +1,107 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+package esg.node.filters;
+
+import java.io.File;
+import java.util.Map;
+import java.util.HashMap;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+/**
+   Description:
+   Test the MountedPathResolver code...
+**/
+public class MountedPathResolverTest {
+
+    private static final Log log = LogFactory.getLog(MountedPathResolverTest.class);
+
+    public MountedPathResolverTest() {
+        log.trace("Instantiating Test Case for MountedPathResolverTest");
+    }
+
+    @Test
+    public void testLongestPrefixMatch() {
+        Map<String,String> mounts = new HashMap<String,String>();
+        mounts.put("esg_dataroot","/esg/data");
+        mounts.put("esg_dataroot/cmip5","/gpfs/cmip5");
+        mounts.put("obs4MIPs","/esg/obs");
+
+        MountedPathResolver resolver = new MountedPathResolver(mounts);
+        assertEquals(3, resolver.getNumMountPoints());
+
+        assertEquals("/gpfs/cmip5"+File.separator+"output/foo.nc", resolver.resolve("/esg_dataroot/cmip5/output/foo.nc"));
+        assertEquals("/esg/data"+File.separator+"cmip3/foo.nc", resolver.resolve("/esg_dataroot/cmip3/foo.nc"));
+        assertEquals("/esg/data"+File.separator+"cmip5", resolver.resolve("/esg_dataroot/cmip5"));
+        assertEquals("/esg/obs"+File.separator+"foo.nc", resolver.resolve("obs4MIPs/foo.nc"));
+        assertNull(resolver.resolve("/esg_data/foo.nc"));
+        assertNull(resolver.resolve("/obs4mips/foo.nc"));
+        assertNull(resolver.resolve("/esg_dataroot"));
+    }
+
+    @Test
+    public void testSwap() {
+        Map<String,String> mounts = new HashMap<String,String>();
+        mounts.put("a","/old");
+        MountedPathResolver resolver = new MountedPathResolver(mounts);
+        assertEquals("/old"+File.separator+"x.nc", resolver.resolve("/a/x.nc"));
+
+        mounts.clear();
+        mounts.put("b","/new");
+        resolver.setMountPoints(mounts);
+        assertNull(resolver.resolve("/a/x.nc"));
+        assertEquals("/new"+File.separator+"x.nc", resolver.resolve("/b/x.nc"));
+    }
+}
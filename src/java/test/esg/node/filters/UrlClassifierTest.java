@@ -0,0 +1,109 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Earth System Grid Federation                              *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/                                      *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+package esg.node.filters;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+/**
+   Description:
+   Test the UrlClassifier code...
+**/
+public class UrlClassifierTest {
+
+    private static final Log log = LogFactory.getLog(UrlClassifierTest.class);
+
+    private UrlClassifier classifier = null;
+
+    public UrlClassifierTest() {
+        log.trace("Instantiating Test Case for UrlClassifierTest");
+    }
+
+    @Before
+    public void setUp() {
+        classifier = new UrlClassifier(new String[] {".nc", " .foo"},
+                                       new String[] {".xml"},
+                                       new String[] {"thredds/wms", "las"},
+                                       "thredds/fileServer");
+    }
+
+    @Test
+    public void testExempt() {
+        assertSame(UrlClassifier.EXEMPT, classifier.classify("http://host/thredds/catalog.xml"));
+        assertSame(UrlClassifier.EXEMPT, classifier.classify("https://host:8443/thredds/catalog.XML"));
+        assertSame(UrlClassifier.EXEMPT, classifier.classify("http://host/thredds/wms/cmip5/foo.nc"));
+        assertSame(UrlClassifier.EXEMPT, classifier.classify("http://host:80/LAS/foo.nc"));
+    }
+
+    @Test
+    public void testNotInteresting() {
+        assertSame(UrlClassifier.NOT_INTERESTING, classifier.classify("http://host/thredds/fileServer/cmip5/foo.txt"));
+        assertSame(UrlClassifier.NOT_INTERESTING, classifier.classify("http://host/thredds/wmsx"));
+        assertSame(UrlClassifier.NOT_INTERESTING, classifier.classify("http://host/thredds/fileServer/cmip5/foo.nc4"));
+        assertSame(UrlClassifier.NOT_INTERESTING, classifier.classify(null));
+    }
+
+    @Test
+    public void testLog() {
+        UrlClassifier.Result result = classifier.classify("http://host:8080/thredds/fileServer/cmip5/output/foo.NC");
+        assertEquals(UrlClassifier.Type.LOG, result.type);
+        assertTrue(result.mounted);
+        assertEquals("/cmip5/output/foo.NC", result.path);
+
+        result = classifier.classify("http://host/thredds/wms2/bar.foo");
+        assertEquals(UrlClassifier.Type.LOG, result.type);
+        assertFalse(result.mounted);
+        assertEquals("thredds/wms2/bar.foo", result.path);
+    }
+}
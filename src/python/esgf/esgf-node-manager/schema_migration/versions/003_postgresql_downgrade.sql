@@ -0,0 +1,22 @@
+--
+-- PostgreSQL database dump
+--
+
+SET client_encoding = 'UTF8';
+SET standard_conforming_strings = off;
+SET check_function_bodies = false;
+SET client_min_messages = warning;
+SET escape_string_warning = off;
+
+SET search_path = esgf_node_manager, pg_catalog;
+
+SET default_tablespace = '';
+
+SET default_with_oids = false;
+
+-- Staging table for the egress (download completion) information of
+-- access_logging rows
+
+DROP TABLE IF EXISTS esgf_node_manager.access_logging_egress;
+
+SET search_path = public, pg_catalog;
@@ -0,0 +1,58 @@
+--
+-- PostgreSQL database dump
+--
+
+SET client_encoding = 'UTF8';
+SET standard_conforming_strings = off;
+SET check_function_bodies = false;
+SET client_min_messages = warning;
+SET escape_string_warning = off;
+
+SET search_path = esgf_node_manager, pg_catalog;
+
+SET default_tablespace = '';
+
+SET default_with_oids = false;
+
+-- Download metrics rollups, advanced by the metrics component with the
+-- access_logging rows newer than the watermark it keeps in
+-- metrics_run_log (the highest access_logging id already counted)
+
+alter table esgf_node_manager.metrics_run_log add last_access_logging_id bigint default 0;
+
+-- The access_logging ids already counted, kept for a window of ids
+-- below the watermark, so that rows that commit below it after it has
+-- moved past them are still counted (once) by the next advance.
+-- last_rolled_id is the id at and below which they are no longer kept.
+
+alter table esgf_node_manager.metrics_run_log add last_rolled_id bigint default 0;
+
+CREATE TABLE esgf_node_manager.metrics_dl_rolled (
+    id bigint NOT NULL,
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE esgf_node_manager.metrics_dl_experiment (
+    project character varying NOT NULL,
+    experiment character varying NOT NULL,
+    downloads bigint NOT NULL,
+    bytes bigint NOT NULL,
+    PRIMARY KEY (project, experiment)
+);
+
+CREATE TABLE esgf_node_manager.metrics_dl_model (
+    project character varying NOT NULL,
+    model character varying NOT NULL,
+    downloads bigint NOT NULL,
+    bytes bigint NOT NULL,
+    PRIMARY KEY (project, model)
+);
+
+CREATE TABLE esgf_node_manager.metrics_dl_user (
+    user_id character varying NOT NULL,
+    downloads bigint NOT NULL,
+    bytes bigint NOT NULL,
+    PRIMARY KEY (user_id)
+);
+
+SET search_path = public, pg_catalog;
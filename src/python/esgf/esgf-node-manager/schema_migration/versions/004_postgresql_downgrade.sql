@@ -0,0 +1,26 @@
+--
+-- PostgreSQL database dump
+--
+
+SET client_encoding = 'UTF8';
+SET standard_conforming_strings = off;
+SET check_function_bodies = false;
+SET client_min_messages = warning;
+SET escape_string_warning = off;
+
+SET search_path = esgf_node_manager, pg_catalog;
+
+SET default_tablespace = '';
+
+SET default_with_oids = false;
+
+-- Download metrics rollups
+
+DROP TABLE IF EXISTS esgf_node_manager.metrics_dl_experiment;
+DROP TABLE IF EXISTS esgf_node_manager.metrics_dl_model;
+DROP TABLE IF EXISTS esgf_node_manager.metrics_dl_user;
+DROP TABLE IF EXISTS esgf_node_manager.metrics_dl_rolled;
+alter table esgf_node_manager.metrics_run_log drop column last_rolled_id;
+alter table esgf_node_manager.metrics_run_log drop column last_access_logging_id;
+
+SET search_path = public, pg_catalog;
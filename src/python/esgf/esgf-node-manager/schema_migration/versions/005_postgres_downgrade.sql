@@ -0,0 +1,27 @@
+--
+-- PostgreSQL database dump
+--
+
+SET client_encoding = 'UTF8';
+SET standard_conforming_strings = off;
+SET check_function_bodies = false;
+SET client_min_messages = warning;
+SET escape_string_warning = off;
+
+SET search_path = esgf_node_manager, pg_catalog;
+
+SET default_tablespace = '';
+
+SET default_with_oids = false;
+
+-- The latest version of every published file
+
+DROP TRIGGER IF EXISTS esgf_nm_latest_file_dataset ON public.file;
+DROP TRIGGER IF EXISTS esgf_nm_latest_file_version ON public.file_version;
+DROP FUNCTION IF EXISTS esgf_node_manager.refresh_latest_file_dataset();
+DROP FUNCTION IF EXISTS esgf_node_manager.refresh_latest_file_version();
+DROP FUNCTION IF EXISTS esgf_node_manager.sync_latest_file_version(integer);
+DROP INDEX IF EXISTS public.esgf_nm_file_version_file_idx;
+DROP TABLE IF EXISTS esgf_node_manager.latest_file_version;
+
+SET search_path = public, pg_catalog;
@@ -0,0 +1,102 @@
+--
+-- PostgreSQL database dump
+--
+
+SET client_encoding = 'UTF8';
+SET standard_conforming_strings = off;
+SET check_function_bodies = false;
+SET client_min_messages = warning;
+SET escape_string_warning = off;
+
+SET search_path = esgf_node_manager, pg_catalog;
+
+SET default_tablespace = '';
+
+SET default_with_oids = false;
+
+-- The latest version of every published file (with its size, url,
+-- modification time and dataset), for the metrics and notification
+-- queries to join against instead of working it out from all of
+-- file_version each time.  Kept up to date by triggers on the
+-- publisher's file_version table, and on its file table for a file
+-- moving to another dataset (needs plpgsql, installed by default from
+-- PostgreSQL 9.0, and pg_advisory_xact_lock, from 9.1).  A file's row
+-- is recomputed under a transaction level advisory lock on the file
+-- id, so that publishers writing versions of the same file at once
+-- take turns instead of one of them failing on the primary key.
+
+CREATE TABLE esgf_node_manager.latest_file_version (
+    file_id integer NOT NULL,
+    version integer NOT NULL,
+    size bigint,
+    url character varying,
+    mod_time double precision,
+    dataset_id integer,
+    PRIMARY KEY (file_id)
+);
+
+CREATE INDEX latest_file_version_url_idx ON esgf_node_manager.latest_file_version (url);
+CREATE INDEX latest_file_version_dataset_idx ON esgf_node_manager.latest_file_version (dataset_id);
+
+-- (for the trigger to find a file's latest version without a scan)
+CREATE INDEX esgf_nm_file_version_file_idx ON public.file_version (file_id, version);
+
+CREATE FUNCTION esgf_node_manager.sync_latest_file_version(fid integer) RETURNS void AS $$
+BEGIN
+    PERFORM pg_advisory_xact_lock(hashtext('esgf_node_manager.latest_file_version'), fid);
+    UPDATE esgf_node_manager.latest_file_version AS l
+        SET version = fv.version, size = fv.size, url = fv.url, mod_time = fv.mod_time, dataset_id = f.dataset_id
+        FROM (SELECT * FROM public.file_version WHERE file_id = fid ORDER BY version DESC LIMIT 1) AS fv, public.file AS f
+        WHERE l.file_id = fid AND f.id = fid;
+    IF NOT FOUND THEN
+        INSERT INTO esgf_node_manager.latest_file_version (file_id, version, size, url, mod_time, dataset_id)
+            SELECT fv.file_id, fv.version, fv.size, fv.url, fv.mod_time, f.dataset_id
+            FROM public.file_version AS fv, public.file AS f
+            WHERE fv.file_id = fid AND f.id = fv.file_id
+            AND NOT EXISTS (SELECT 1 FROM esgf_node_manager.latest_file_version WHERE file_id = fid)
+            ORDER BY fv.version DESC LIMIT 1;
+        IF NOT FOUND THEN
+            -- no versions (or no file) left
+            DELETE FROM esgf_node_manager.latest_file_version WHERE file_id = fid;
+        END IF;
+    END IF;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION esgf_node_manager.refresh_latest_file_version() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        PERFORM esgf_node_manager.sync_latest_file_version(OLD.file_id);
+        RETURN NULL;
+    END IF;
+    PERFORM esgf_node_manager.sync_latest_file_version(NEW.file_id);
+    IF TG_OP = 'UPDATE' AND OLD.file_id <> NEW.file_id THEN
+        PERFORM esgf_node_manager.sync_latest_file_version(OLD.file_id);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION esgf_node_manager.refresh_latest_file_dataset() RETURNS trigger AS $$
+BEGIN
+    PERFORM esgf_node_manager.sync_latest_file_version(NEW.id);
+    IF OLD.id <> NEW.id THEN
+        PERFORM esgf_node_manager.sync_latest_file_version(OLD.id);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER esgf_nm_latest_file_version AFTER INSERT OR UPDATE OR DELETE ON public.file_version
+    FOR EACH ROW EXECUTE PROCEDURE esgf_node_manager.refresh_latest_file_version();
+
+CREATE TRIGGER esgf_nm_latest_file_dataset AFTER UPDATE OF id, dataset_id ON public.file
+    FOR EACH ROW WHEN (OLD.id IS DISTINCT FROM NEW.id OR OLD.dataset_id IS DISTINCT FROM NEW.dataset_id)
+    EXECUTE PROCEDURE esgf_node_manager.refresh_latest_file_dataset();
+
+INSERT INTO esgf_node_manager.latest_file_version (file_id, version, size, url, mod_time, dataset_id)
+    SELECT fv.file_id, fv.version, fv.size, fv.url, fv.mod_time, f.dataset_id
+    FROM (SELECT file_id, max(version) AS mv FROM public.file_version GROUP BY file_id) AS mver, public.file_version AS fv, public.file AS f
+    WHERE fv.file_id = mver.file_id AND fv.version = mver.mv AND f.id = fv.file_id;
+
+SET search_path = public, pg_catalog;